@@ -0,0 +1,44 @@
+package com.jenkins.plugins.sparknotify;
+
+import com.cloudbees.plugins.credentials.CredentialsDescriptor;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+
+/**
+ * Credentials whose authorization header is put straight into
+ * {@link SparkCredentialsCache}, since secrets cannot be decrypted without a
+ * running jenkins
+ */
+final class BenchmarkCredentials implements StandardCredentials {
+	private static final long serialVersionUID = 1L;
+
+	private final String id;
+
+	BenchmarkCredentials(final String id) {
+		this.id = id;
+	}
+
+	void cacheAuthorization() {
+		SparkCredentialsCache.putAuthorization(this, "Bearer " + id);
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getDescription() {
+		return id;
+	}
+
+	@Override
+	public CredentialsScope getScope() {
+		return CredentialsScope.GLOBAL;
+	}
+
+	@Override
+	public CredentialsDescriptor getDescriptor() {
+		return null;
+	}
+}
@@ -0,0 +1,85 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+/**
+ * Building and serializing the request body for one space
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessagePayloadBenchmark {
+	private static final String ROOM_ID = "Y2lzY29zcGFyazovL3VzL1JPT00vYmJjZWIxYWQtNDNmMS0zYjU4LTkxNDctZjE0YmIwYzRkMTU0";
+
+	/** message length in characters; the longest is sent in parts */
+	@Param({ "200", "8000", "100000" })
+	private int size;
+
+	private String message;
+	private ObjectWriter writer;
+	private SparkMessagePayload payload;
+
+	@Setup
+	public void setUp() throws SparkNotifyException {
+		char[] text = new char[size];
+		Arrays.fill(text, 'x');
+		for (int i = 0; i < size; i += 40) {
+			// quotes and newlines need escaping
+			text[i] = i % 80 == 0 ? '"' : '\n';
+		}
+		message = new String(text);
+		writer = new ObjectMapper().writerFor(SparkMessage.class);
+		payload = SparkMessagePayload.of(message, SparkMessageType.MARKDOWN);
+	}
+
+	@Benchmark
+	public SparkMessage build() throws SparkNotifyException {
+		return new SparkMessageBuilder().roomId(ROOM_ID).message(message).messageType(SparkMessageType.MARKDOWN)
+				.build();
+	}
+
+	@Benchmark
+	public byte[] buildAndSerialize() throws IOException {
+		return writer.writeValueAsBytes(build());
+	}
+
+	@Benchmark
+	public byte[] encodePayload() throws IOException {
+		return write(SparkMessagePayload.of(message, SparkMessageType.MARKDOWN));
+	}
+
+	@Benchmark
+	public byte[] reusePayload() throws IOException {
+		return write(payload);
+	}
+
+	private static byte[] write(final SparkMessagePayload payload) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (int part = 0; part < payload.getPartCount(); part++) {
+			payload.forSpace(ROOM_ID, part).getEntity().write(output);
+		}
+		return output.toByteArray();
+	}
+}
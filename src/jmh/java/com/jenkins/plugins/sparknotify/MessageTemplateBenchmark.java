@@ -0,0 +1,88 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * Message rendering: the original regex and replace expansion against
+ * compiled templates
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageTemplateBenchmark {
+	/** approximate message length in characters */
+	@Param({ "200", "8000" })
+	private int size;
+
+	/** distinct variables referenced by the message */
+	@Param({ "2", "16" })
+	private int variables;
+
+	private String message;
+	private EnvVars env;
+	private SparkMessageTemplate template;
+
+	@Setup
+	public void setUp() {
+		env = new EnvVars();
+		// a typical build environment is much larger than what a message uses
+		for (int i = 0; i < 60; i++) {
+			env.put("BUILD_VAR_" + i, "value-" + i);
+		}
+		for (int i = 0; i < variables; i++) {
+			env.put("VAR" + i, "replacement value " + i);
+		}
+
+		StringBuilder builder = new StringBuilder(size + 64);
+		int i = 0;
+		while (builder.length() < size) {
+			int var = i % variables;
+			switch (i % 3) {
+			case 0:
+				builder.append("Build ${env.VAR").append(var).append("} finished; ");
+				break;
+			case 1:
+				builder.append("**changes** by $VAR").append(var).append(" in ");
+				break;
+			default:
+				builder.append("[console](${VAR").append(var).append("}) costs $$5\n");
+				break;
+			}
+			i++;
+		}
+		message = builder.toString();
+		template = SparkMessageTemplate.compile(message);
+	}
+
+	@Benchmark
+	public String legacyReplace() {
+		return SparkMessageTemplate.replaceEnvVars(message, env);
+	}
+
+	@Benchmark
+	public String compileAndRender() {
+		return SparkMessageTemplate.compile(message).render(env);
+	}
+
+	@Benchmark
+	public String renderCompiled() {
+		return template.render(env);
+	}
+}
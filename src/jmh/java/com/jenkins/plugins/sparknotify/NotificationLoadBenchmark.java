@@ -0,0 +1,135 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * Hundreds of concurrent builds each notifying many spaces through the shared
+ * sender pool, against the api stub. Throughput is builds notified per
+ * second; the sample time percentiles are how long a build's executor is
+ * held by the notification step.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(200)
+@State(Scope.Benchmark)
+public class NotificationLoadBenchmark {
+	private static final String MESSAGE = "**${env.JOB_NAME}** build [#${env.BUILD_NUMBER}](${env.BUILD_URL}) "
+			+ "finished with $BUILD_STATUS";
+	private static final int TOKENS = 4;
+
+	/**
+	 * healthy: no faults; slow: 200 ms per request; faulty: 5% 429, 2% 503
+	 * and 1% dropped connections
+	 */
+	@Param({ "healthy", "slow", "faulty" })
+	private String scenario;
+
+	@Param({ "10", "50" })
+	private int spaces;
+
+	private SparkApiStub stub;
+	private List<BenchmarkCredentials> credentials;
+	private List<String> spaceIds;
+
+	@Setup
+	public void setUp() throws IOException {
+		stub = new SparkApiStub();
+		switch (scenario) {
+		case "slow":
+			stub.latency(200);
+			break;
+		case "faulty":
+			stub.latency(20).rateLimited(0.05, 1).serverErrors(0.02).dropped(0.01);
+			break;
+		default:
+			stub.latency(20);
+			break;
+		}
+		stub.start();
+		SparkGlobalConfiguration.setDefaultApiUrl(stub.getApiUrl());
+		// the stub is local; pacing would only measure the limiter
+		SparkRateLimiter.setDisabled(true);
+
+		credentials = new ArrayList<>(TOKENS);
+		for (int i = 0; i < TOKENS; i++) {
+			credentials.add(new BenchmarkCredentials("token-" + i));
+		}
+		spaceIds = new ArrayList<>(spaces);
+		for (int i = 0; i < spaces; i++) {
+			spaceIds.add("space-" + i);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void cacheAuthorization() {
+		for (BenchmarkCredentials credential : credentials) {
+			credential.cacheAuthorization();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.println();
+		System.out.println("Spark api stub: " + stub);
+		System.out.println("Connection pool: " + SparkTransport.get().getStatistics());
+		stub.stop();
+	}
+
+	/**
+	 * Per benchmark thread: one job building over and over
+	 */
+	@State(Scope.Thread)
+	public static class Build {
+		private static int jobs;
+
+		private int job;
+		private int number;
+		private EnvVars env;
+
+		@Setup
+		public void setUp() {
+			synchronized (Build.class) {
+				job = jobs++;
+			}
+			env = new EnvVars();
+			env.put("JOB_NAME", "job-" + job);
+			env.put("BUILD_STATUS", "SUCCESS");
+		}
+
+		EnvVars next() {
+			number++;
+			env.put("BUILD_NUMBER", String.valueOf(number));
+			env.put("BUILD_URL", "http://jenkins/job/job-" + job + "/" + number + "/");
+			return env;
+		}
+	}
+
+	@Benchmark
+	public List<SparkSendResult> notifyBuild(final Build build) throws InterruptedException {
+		SparkNotifier notifier = new SparkNotifier(credentials.get(build.job % TOKENS), build.next());
+		return notifier.sendMessages(spaceIds, MESSAGE, SparkMessageType.MARKDOWN);
+	}
+}
@@ -0,0 +1,69 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Space name lookups, and loading the room index from a stub of the paginated
+ * rooms listing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomIndexBenchmark {
+	@Param({ "1000", "50000" })
+	private int rooms;
+
+	private SparkApiStub stub;
+	private SparkRoomIndex index;
+
+	@Setup
+	public void setUp() throws IOException {
+		stub = new SparkApiStub().rooms(rooms).start();
+		SparkGlobalConfiguration.setDefaultApiUrl(stub.getApiUrl());
+		index = load();
+		if (index.size() != rooms) {
+			throw new IllegalStateException("Indexed " + index.size() + " of " + rooms + " rooms");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		stub.stop();
+	}
+
+	@Benchmark
+	public String resolve() throws SparkNotifyException {
+		return index.resolve("room-" + ThreadLocalRandom.current().nextInt(rooms));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public SparkRoomIndex fullLoad() throws IOException {
+		return load();
+	}
+
+	private static SparkRoomIndex load() throws IOException {
+		SparkRoomIndex loaded = SparkRoomIndex.standalone("Bearer benchmark");
+		loaded.refresh();
+		return loaded;
+	}
+}
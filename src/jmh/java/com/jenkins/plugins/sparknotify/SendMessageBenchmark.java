@@ -0,0 +1,73 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full send, from rendering to the response, against a loopback http
+ * server so the numbers do not depend on the network
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendMessageBenchmark {
+	private static final String MESSAGE = "**${env.JOB_NAME}** build #${env.BUILD_NUMBER} finished: [console](${env.BUILD_URL})";
+	private static final int SPACES = 10;
+
+	private final BenchmarkCredentials credentials = new BenchmarkCredentials("benchmark");
+	private SparkApiStub stub;
+	private SparkNotifier notifier;
+	private List<String> spaceIds;
+
+	@Setup
+	public void setUp() throws IOException {
+		stub = new SparkApiStub().start();
+		SparkGlobalConfiguration.setDefaultApiUrl(stub.getApiUrl());
+		// the stub is local; pacing would only measure the limiter
+		SparkRateLimiter.setDisabled(true);
+
+		notifier = new SparkNotifier(credentials, null);
+		spaceIds = new ArrayList<>(SPACES);
+		for (int i = 0; i < SPACES; i++) {
+			spaceIds.add("space-" + i);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void cacheAuthorization() {
+		credentials.cacheAuthorization();
+	}
+
+	@TearDown
+	public void tearDown() {
+		stub.stop();
+	}
+
+	@Benchmark
+	public int sendMessage() throws IOException {
+		return notifier.sendMessage("space-0", MESSAGE, SparkMessageType.MARKDOWN);
+	}
+
+	@Benchmark
+	public List<SparkSendResult> sendMessagesToTenSpaces() throws InterruptedException {
+		return notifier.sendMessages(spaceIds, MESSAGE, SparkMessageType.MARKDOWN);
+	}
+}
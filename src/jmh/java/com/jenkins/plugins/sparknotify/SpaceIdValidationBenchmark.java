@@ -0,0 +1,40 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Space id validation as run by the config page form validators
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpaceIdValidationBenchmark {
+	@Param({ "bbceb1ad-43f1-3b58-9147-f14bb0c4d154",
+			"Y2lzY29zcGFyazovL3VzL1JPT00vYmJjZWIxYWQtNDNmMS0zYjU4LTkxNDctZjE0YmIwYzRkMTU0",
+			"not a space id" })
+	private String spaceId;
+
+	@Benchmark
+	public boolean isRoomIdValid() {
+		return SparkMessage.isRoomIdValid(spaceId);
+	}
+
+	@Benchmark
+	public boolean uncached() {
+		return SparkSpaceIdValidator.check(spaceId);
+	}
+}
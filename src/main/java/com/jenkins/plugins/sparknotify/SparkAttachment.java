@@ -0,0 +1,154 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * A file sent with a message. Only its location is held; the content is
+ * streamed from the agent or controller it lives on each time the message is
+ * posted, so attachments never sit in the controller's heap.
+ */
+public final class SparkAttachment {
+	/** largest file the spark api accepts */
+	static final long MAX_LENGTH = 100L * 1024 * 1024;
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private final FilePath file;
+	private final String name;
+	private final String contentType;
+
+	private SparkAttachment(final FilePath file) {
+		this.file = file;
+		name = file.getName();
+		String guessed = URLConnection.guessContentTypeFromName(name);
+		contentType = guessed != null ? guessed : DEFAULT_CONTENT_TYPE;
+	}
+
+	/**
+	 * Finds the file relative to the workspace or, failing that, the run's
+	 * archived artifacts. The path may not leave either, so a job cannot send
+	 * files of the controller or agent it has no business reading.
+	 *
+	 * @param workspace
+	 *            may be null if the step has no workspace
+	 */
+	public static SparkAttachment resolve(final String path, final FilePath workspace, final Run<?, ?> run)
+			throws IOException, InterruptedException {
+		if (isAbsolute(path) || hasParentSegment(path)) {
+			throw new SparkNotifyException("Could not attach " + path
+					+ " because it must be a path inside the workspace or archived artifacts");
+		}
+		FilePath file = null;
+		if (workspace != null) {
+			file = find(workspace, path);
+		}
+		if (file == null && run != null) {
+			file = find(new FilePath(run.getArtifactsDir()), path);
+		}
+		if (file == null) {
+			throw new SparkNotifyException(
+					"Could not find attachment " + path + " in the workspace or archived artifacts");
+		}
+		if (file.isDirectory()) {
+			throw new SparkNotifyException("Could not attach " + path + " because it is a directory");
+		}
+		if (file.length() > MAX_LENGTH) {
+			throw new SparkNotifyException("Could not attach " + path + " because it is larger than 100 MB");
+		}
+		return new SparkAttachment(file);
+	}
+
+	/**
+	 * @return the file if it exists under root, or null if it does not exist
+	 */
+	private static FilePath find(final FilePath root, final String path) throws IOException, InterruptedException {
+		FilePath file = root.child(path);
+		if (!file.exists()) {
+			return null;
+		}
+		// a symbolic link may still point elsewhere
+		if (!file.act(new IsInside(root.getRemote()))) {
+			throw new SparkNotifyException("Could not attach " + path
+					+ " because it links to a file outside the workspace or archived artifacts");
+		}
+		return file;
+	}
+
+	/**
+	 * @return true for a unix, windows drive or unc path, whichever system
+	 *         the file is on
+	 */
+	private static boolean isAbsolute(final String path) {
+		return path.startsWith("/") || path.startsWith("\\") || path.matches("^[A-Za-z]:.*")
+				|| new File(path).isAbsolute();
+	}
+
+	private static boolean hasParentSegment(final String path) {
+		for (String segment : path.split("[/\\\\]")) {
+			if (segment.equals("..")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the canonical file is a descendant of the canonical root, on
+	 * the node the file is on
+	 */
+	private static final class IsInside extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final String root;
+
+		IsInside(final String root) {
+			this.root = root;
+		}
+
+		@Override
+		public Boolean invoke(final File file, final VirtualChannel channel) throws IOException {
+			File canonicalRoot = new File(root).getCanonicalFile();
+			File parent = file.getCanonicalFile().getParentFile();
+			while (parent != null) {
+				if (parent.equals(canonicalRoot)) {
+					return true;
+				}
+				parent = parent.getParentFile();
+			}
+			return false;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Copies the file through a fixed size buffer; from an agent it arrives
+	 * over the remoting channel a window at a time
+	 */
+	void writeTo(final OutputStream output) throws IOException {
+		try {
+			// copyTo closes the stream it is given; the request body continues after the file
+			file.copyTo(new CloseShieldOutputStream(output));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading attachment " + name);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending to an endpoint after repeated failures. While open every send
+ * fails fast; after the cool down a single trial request decides whether to
+ * close again. A trial that ends without a verdict, such as one that was rate
+ * limited, or that has not reported back within the connect and read
+ * timeouts, hands the trial to the next request.
+ */
+public class SparkCircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final ConcurrentMap<String, SparkCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAtNanos;
+	private boolean trialInFlight;
+	private long trialStartedNanos;
+
+	public static SparkCircuitBreaker forEndpoint(final String endpoint) {
+		SparkCircuitBreaker breaker = BREAKERS.get(endpoint);
+		if (breaker == null) {
+			SparkCircuitBreaker created = new SparkCircuitBreaker();
+			breaker = BREAKERS.putIfAbsent(endpoint, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * @return true if the caller is sending the trial request, and must report
+	 *         its outcome with onSuccess, onFailure or onNoVerdict
+	 * @throws OpenException
+	 *             if the breaker is open
+	 */
+	public synchronized boolean checkAllowed(final PrintStream logger) throws SparkNotifyException {
+		SparkGlobalConfiguration config = SparkGlobalConfiguration.get();
+		long now = System.nanoTime();
+		switch (state) {
+		case CLOSED:
+			return false;
+		case OPEN:
+			if (now - openedAtNanos >= TimeUnit.SECONDS.toNanos(config.getCircuitBreakerCooldown())) {
+				state = State.HALF_OPEN;
+				log(logger, "Spark api circuit breaker half-open; sending a trial request");
+				return startTrial(now);
+			}
+			break;
+		case HALF_OPEN:
+			if (!trialInFlight || now - trialStartedNanos >= TimeUnit.SECONDS
+					.toNanos(config.getConnectTimeout() + config.getReadTimeout())) {
+				return startTrial(now);
+			}
+			// a trial request is already in flight
+			break;
+		default:
+			break;
+		}
+		throw new OpenException();
+	}
+
+	private boolean startTrial(final long now) {
+		trialInFlight = true;
+		trialStartedNanos = now;
+		return true;
+	}
+
+	/**
+	 * Records an attempt that ended without saying whether the endpoint is
+	 * healthy, so another request may be the trial
+	 *
+	 * @param trial
+	 *            what checkAllowed returned for the attempt
+	 */
+	public synchronized void onNoVerdict(final boolean trial) {
+		if (trial && state == State.HALF_OPEN) {
+			trialInFlight = false;
+		}
+	}
+
+	public synchronized void onSuccess(final PrintStream logger) {
+		consecutiveFailures = 0;
+		trialInFlight = false;
+		if (state != State.CLOSED) {
+			state = State.CLOSED;
+			log(logger, "Spark api circuit breaker closed");
+		}
+	}
+
+	public synchronized void onFailure(final PrintStream logger) {
+		consecutiveFailures++;
+		trialInFlight = false;
+		int threshold = SparkGlobalConfiguration.get().getCircuitBreakerThreshold();
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= threshold)) {
+			state = State.OPEN;
+			openedAtNanos = System.nanoTime();
+			log(logger, "Spark api circuit breaker opened after " + consecutiveFailures
+					+ " consecutive failures; failing fast for "
+					+ SparkGlobalConfiguration.get().getCircuitBreakerCooldown() + " seconds");
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private static void log(final PrintStream logger, final String message) {
+		if (logger != null) {
+			logger.println(message);
+		}
+	}
+
+	/**
+	 * Thrown instead of sending while the breaker is open
+	 */
+	public static class OpenException extends SparkNotifyException {
+		private static final long serialVersionUID = 1L;
+
+		public OpenException() {
+			super("Could not send message because the spark api is failing; not retrying until the circuit breaker closes");
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many messages may be sent to the spark api at once, adjusted from the
+ * round trip times and errors of recent requests. Once per window of
+ * requests the limit is scaled by how close the average round trip is to the
+ * api's round trip without load: it shrinks as requests start queueing and
+ * grows by about its square root while every slot is in use and the api keeps
+ * up. Rate limiting, server errors and timeouts cut it by a tenth at once.
+ * Every so often the limit drops to a quarter for two windows to measure the
+ * round trip without load again, so the limit recovers if the api has become
+ * slower for good.
+ *
+ * The limit stays between one and "Max Connections Per Host", since further
+ * requests would only wait for a pooled connection, and starts at
+ * "Concurrent Sends". With adaptive concurrency off it is "Concurrent Sends".
+ */
+public final class SparkConcurrencyLimit {
+	/** average round trip allowed, relative to the one without load, before the limit shrinks */
+	private static final double TOLERANCE = 1.5;
+	/** most the limit shrinks in one window from latency alone */
+	private static final double MIN_GRADIENT = 0.5;
+	private static final double BACKOFF = 0.9;
+	private static final double SMOOTHING = 0.2;
+	private static final int PROBE_INTERVAL_WINDOWS = 60;
+	private static final int PROBE_WINDOWS = 2;
+	private static final int PROBE_DIVISOR = 4;
+	private static final int MIN_WINDOW_SAMPLES = 5;
+	private static final long MIN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAX_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** created on first use, once the global configuration has loaded */
+	private static volatile SparkConcurrencyLimit instance;
+
+	private boolean adaptive;
+	private int maxLimit;
+	private double limit;
+	private double noLoadRttNanos;
+	private int windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+	/** windows left in the current probe, the last of which measures the round trip without load */
+	private int probeWindows;
+	private double limitBeforeProbe;
+
+	private long windowStart = System.nanoTime();
+	private int windowSamples;
+	private long windowRttNanos;
+	private boolean windowDropped;
+	/** messages waited for a slot during the window */
+	private volatile boolean windowSaturated;
+
+	SparkConcurrencyLimit(final SparkGlobalConfiguration config) {
+		configure(config);
+	}
+
+	public static SparkConcurrencyLimit get() {
+		SparkConcurrencyLimit limit = instance;
+		if (limit == null) {
+			synchronized (SparkConcurrencyLimit.class) {
+				if (instance == null) {
+					instance = new SparkConcurrencyLimit(SparkGlobalConfiguration.get());
+				}
+				limit = instance;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Applies changed global settings; an adaptive limit keeps its value
+	 * within the new bounds
+	 */
+	static void reconfigure(final SparkGlobalConfiguration config) {
+		synchronized (SparkConcurrencyLimit.class) {
+			if (instance == null) {
+				instance = new SparkConcurrencyLimit(config);
+			} else {
+				instance.configure(config);
+			}
+		}
+		SparkSendLanes.limitChanged();
+	}
+
+	private synchronized void configure(final SparkGlobalConfiguration config) {
+		boolean wasAdaptive = adaptive;
+		adaptive = config.isAdaptiveConcurrency();
+		maxLimit = getMaxLimit(config);
+		if (!adaptive || !wasAdaptive || limit == 0) {
+			limit = config.getSendThreads();
+			probeWindows = 0;
+			windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+		}
+		limit = Math.max(1, Math.min(maxLimit, limit));
+		limitBeforeProbe = Math.max(1, Math.min(maxLimit, limitBeforeProbe));
+	}
+
+	/**
+	 * @return the most messages the limit can allow, which the sender pool
+	 *         needs threads for
+	 */
+	static int getMaxLimit(final SparkGlobalConfiguration config) {
+		if (!config.isAdaptiveConcurrency()) {
+			return config.getSendThreads();
+		}
+		return Math.max(config.getSendThreads(), config.getMaxConnectionsPerRoute());
+	}
+
+	/**
+	 * @return messages that may be in flight at once
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Notes that a message had to wait for a slot, so the limit, not demand,
+	 * is what holds sending back
+	 */
+	void saturated() {
+		windowSaturated = true;
+	}
+
+	/**
+	 * Records a request that got a response
+	 */
+	void requestCompleted(final long started, final int status) {
+		long now = System.nanoTime();
+		sample(now - started, status == SparkRateLimiter.TOO_MANY_REQUESTS || SparkRetryPolicy.isRetryable(status),
+				now);
+	}
+
+	/**
+	 * Records a request that failed without a response
+	 */
+	void requestFailed(final long started, final Exception e) {
+		long now = System.nanoTime();
+		sample(now - started, e instanceof IOException, now);
+	}
+
+	/**
+	 * @param dropped
+	 *            true if the request was rate limited, failed on the server
+	 *            or timed out
+	 * @param now
+	 *            when the request completed
+	 */
+	void sample(final long rttNanos, final boolean dropped, final long now) {
+		boolean changed;
+		synchronized (this) {
+			if (!adaptive) {
+				return;
+			}
+			windowSamples++;
+			windowRttNanos += rttNanos;
+			windowDropped |= dropped;
+			long elapsed = now - windowStart;
+			if (elapsed < MAX_WINDOW_NANOS
+					&& (windowSamples < MIN_WINDOW_SAMPLES || elapsed < Math.max(MIN_WINDOW_NANOS, 2 * noLoadRttNanos))) {
+				return;
+			}
+			int previous = (int) limit;
+			update((double) windowRttNanos / windowSamples);
+			windowStart = now;
+			windowSamples = 0;
+			windowRttNanos = 0;
+			windowDropped = false;
+			windowSaturated = false;
+			changed = (int) limit > previous;
+		}
+		if (changed) {
+			SparkSendLanes.limitChanged();
+		}
+	}
+
+	private void update(final double rttNanos) {
+		if (probeWindows > 0) {
+			if (windowDropped) {
+				probeWindows = 0;
+				limit = Math.max(1, limitBeforeProbe * BACKOFF);
+				windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+				return;
+			}
+			// the first window still sees requests started under the old limit
+			if (--probeWindows == 0) {
+				noLoadRttNanos = rttNanos;
+				limit = limitBeforeProbe;
+				windowsUntilProbe = PROBE_INTERVAL_WINDOWS;
+			}
+			return;
+		}
+		if (noLoadRttNanos == 0 || rttNanos < noLoadRttNanos) {
+			noLoadRttNanos = rttNanos;
+		}
+
+		double next;
+		if (windowDropped) {
+			next = limit * BACKOFF;
+		} else {
+			double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * noLoadRttNanos / rttNanos));
+			double target = limit * gradient;
+			if (windowSaturated) {
+				target += Math.sqrt(limit);
+			}
+			next = limit * (1 - SMOOTHING) + target * SMOOTHING;
+		}
+		limit = Math.max(1, Math.min(maxLimit, next));
+		if (--windowsUntilProbe == 0) {
+			limitBeforeProbe = limit;
+			limit = Math.max(1, limit / PROBE_DIVISOR);
+			probeWindows = PROBE_WINDOWS;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+
+/**
+ * Remembers the authorization header built from credentials, so repeated
+ * sends do not ask the credentials for their secret again. Jenkins keeps a
+ * loaded secret decrypted, so this saves little for credentials stored in
+ * Jenkins itself; it matters for providers that fetch the secret on every
+ * access, and it lets the benchmarks send without a running Jenkins. The
+ * credentials themselves are looked up for every run, so the run's
+ * authentication and the usage tracking of the credentials plugin always
+ * apply. Entries expire after a few minutes and are dropped whenever
+ * something that can hold credentials is saved; nothing is persisted.
+ */
+public final class SparkCredentialsCache {
+	private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+	private static final int CACHE_SIZE = 256;
+
+	private static final Map<String, Authorization> AUTHORIZATIONS = lruMap();
+
+	private SparkCredentialsCache() {}
+
+	/**
+	 * {@link CredentialsProvider#findCredentialById(String, Class, Run,
+	 * com.cloudbees.plugins.credentials.domains.DomainRequirement...)}, never
+	 * cached: what an id resolves to depends on the run's authentication, and
+	 * the lookup records the use of the credentials
+	 */
+	public static Credentials find(final String credentialsId, final Run<?, ?> run) {
+		return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, run);
+	}
+
+	/**
+	 * @param credentials
+	 *            as just found for the run, so only a caller allowed to use
+	 *            them gets their header
+	 * @return the cached header for exactly these credentials, or null
+	 */
+	static String getAuthorization(final Credentials credentials) {
+		if (!(credentials instanceof StandardCredentials)) {
+			return null;
+		}
+		Authorization authorization = AUTHORIZATIONS.get(((StandardCredentials) credentials).getId());
+		if (authorization == null || authorization.credentials != credentials
+				|| System.nanoTime() - authorization.expiresAt >= 0) {
+			return null;
+		}
+		return authorization.header;
+	}
+
+	static void putAuthorization(final Credentials credentials, final String header) {
+		if (credentials instanceof StandardCredentials) {
+			AUTHORIZATIONS.put(((StandardCredentials) credentials).getId(),
+					new Authorization(credentials, header, System.nanoTime() + TTL_NANOS));
+		}
+	}
+
+	public static void invalidateAll() {
+		AUTHORIZATIONS.clear();
+	}
+
+	private static <V> Map<String, V> lruMap() {
+		return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		});
+	}
+
+	private static final class Authorization {
+		private final Credentials credentials;
+		private final String header;
+		private final long expiresAt;
+
+		Authorization(final Credentials credentials, final String header, final long expiresAt) {
+			this.credentials = credentials;
+			this.header = header;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Credentials live in the system store, in folders and on users; saving
+	 * any of them may change what an id resolves to
+	 */
+	@Extension
+	public static class Invalidator extends SaveableListener {
+		@Override
+		public void onChange(final Saveable o, final XmlFile file) {
+			if (o instanceof SystemCredentialsProvider || o instanceof ItemGroup || o instanceof User) {
+				invalidateAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses a message identical to one sent to the same space within the
+ * configured window. Only a hash of each message is kept, in insertion order,
+ * and the number of entries is capped so memory stays bounded however many
+ * messages are sent.
+ */
+public class SparkDeduplicator {
+	private static final int MAX_ENTRIES = 10000;
+	/** bytes of the sha-256 digest kept per message */
+	private static final int HASH_BYTES = 16;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final SparkDeduplicator INSTANCE = new SparkDeduplicator();
+
+	/**
+	 * when each recently sent message was claimed, oldest first; expiry is
+	 * worked out from the current window so changing it applies to every entry
+	 */
+	private final LinkedHashMap<String, Long> sent = new LinkedHashMap<>();
+
+	public static SparkDeduplicator get() {
+		return INSTANCE;
+	}
+
+	public static boolean isEnabled() {
+		return SparkGlobalConfiguration.get().getDedupWindow() > 0;
+	}
+
+	/**
+	 * @return a hash of the message content to pass to {@link #claim}
+	 */
+	public static String hash(final String message) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		}
+		byte[] hash = digest.digest(message.getBytes(StandardCharsets.UTF_8));
+		char[] hex = new char[HASH_BYTES * 2];
+		for (int i = 0; i < HASH_BYTES; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Records that the message is about to be sent
+	 *
+	 * @return a key to pass to {@link #release} if sending fails, or null if
+	 *         the same message was sent to the space within the window and
+	 *         should be suppressed
+	 */
+	public synchronized String claim(final String spaceId, final SparkMessageType messageType, final String hash) {
+		long now = System.nanoTime();
+		long windowNanos = TimeUnit.SECONDS.toNanos(SparkGlobalConfiguration.get().getDedupWindow());
+		evictExpired(now, windowNanos);
+
+		String key = spaceId + '\n' + messageType + '\n' + hash;
+		Long sentAt = sent.get(key);
+		if (sentAt != null && now - sentAt < windowNanos) {
+			return null;
+		}
+		sent.remove(key);
+		sent.put(key, now);
+		if (sent.size() > MAX_ENTRIES) {
+			Iterator<String> eldest = sent.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+		return key;
+	}
+
+	/**
+	 * Forgets a message that could not be sent, so an identical one is not
+	 * suppressed
+	 */
+	public synchronized void release(final String key) {
+		sent.remove(key);
+	}
+
+	private void evictExpired(final long now, final long windowNanos) {
+		Iterator<Map.Entry<String, Long>> entries = sent.entrySet().iterator();
+		while (entries.hasNext()) {
+			if (now - entries.next().getValue() < windowNanos) {
+				// entries are in the order they were claimed, so the rest are newer
+				return;
+			}
+			entries.remove();
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudbees.plugins.credentials.Credentials;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * One notification on its way through {@link SparkDispatcher}. The entry
+ * point fills in what to send; each stage adds what it produces for the
+ * stages after it.
+ */
+public class SparkDispatch {
+	private final String step;
+	private final Run<?, ?> run;
+	private final TaskListener listener;
+	private final EnvVars env;
+
+	private boolean disabled;
+	private boolean failOnError;
+	private boolean outboxAllowed;
+	private boolean background;
+	private String message;
+	private Map<String, String> presets = Collections.emptyMap();
+	private String messageType;
+	private SparkPriority priority = SparkPriority.NORMAL;
+	private Result buildResult;
+	private Set<Result> skippedResults = Collections.emptySet();
+	private int timeout;
+	private long deadlineNanos;
+	private boolean deadlineStarted;
+	private List<String> spaceIds = Collections.emptyList();
+	private List<String> spaceNames = Collections.emptyList();
+	private String credentialsId;
+	private String attachment;
+	private FilePath workspace;
+	private boolean async;
+	private boolean outboxUsed;
+
+	private String renderedMessage;
+	private long renderNanos;
+	private Credentials credentials;
+	private long credentialsNanos;
+	private SparkMessageType sparkMessageType;
+	private SparkMessagePayload payload;
+	private List<SparkSendResult> results;
+	private List<SparkSendResult> unresolved = Collections.emptyList();
+
+	/**
+	 * @param step
+	 *            which step is sending, as shown to the user
+	 */
+	public SparkDispatch(final String step, final Run<?, ?> run, final TaskListener listener, final EnvVars env) {
+		this.step = step;
+		this.run = run;
+		this.listener = listener;
+		this.env = env;
+	}
+
+	public String getStep() {
+		return step;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	public PrintStream getLogger() {
+		return listener.getLogger();
+	}
+
+	public EnvVars getEnv() {
+		return env;
+	}
+
+	public boolean isDisabled() {
+		return disabled;
+	}
+
+	public void setDisabled(final boolean disabled) {
+		this.disabled = disabled;
+	}
+
+	/**
+	 * @return true if a message that cannot be sent fails the step instead of
+	 *         only being logged
+	 */
+	public boolean isFailOnError() {
+		return failOnError;
+	}
+
+	public void setFailOnError(final boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+
+	/**
+	 * @return true if the message may be queued in the outbox when it is
+	 *         enabled, rather than sent from the build
+	 */
+	public boolean isOutboxAllowed() {
+		return outboxAllowed;
+	}
+
+	public void setOutboxAllowed(final boolean outboxAllowed) {
+		this.outboxAllowed = outboxAllowed;
+	}
+
+	/**
+	 * @return true if the step completes without waiting for the spark api,
+	 *         so nothing may be written to the build log once sending starts
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+
+	void setBackground(final boolean background) {
+		this.background = background;
+	}
+
+	/**
+	 * @return the message template as configured
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(final String message) {
+		this.message = message;
+	}
+
+	/**
+	 * @return variables that take precedence over the build environment when
+	 *         rendering
+	 */
+	public Map<String, String> getPresets() {
+		return presets;
+	}
+
+	public void setPresets(final Map<String, String> presets) {
+		this.presets = presets;
+	}
+
+	/**
+	 * @return the message type as configured; text if empty
+	 */
+	public String getMessageType() {
+		return messageType;
+	}
+
+	public void setMessageType(final String messageType) {
+		this.messageType = messageType;
+	}
+
+	/**
+	 * @return lane the message waits in while every send is busy; normal
+	 *         unless set
+	 */
+	public SparkPriority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(final SparkPriority priority) {
+		this.priority = priority != null ? priority : SparkPriority.NORMAL;
+	}
+
+	/**
+	 * @return result of the build when the message is sent, or null if it has
+	 *         none yet
+	 */
+	public Result getBuildResult() {
+		return buildResult;
+	}
+
+	public void setBuildResult(final Result buildResult) {
+		this.buildResult = buildResult;
+	}
+
+	/**
+	 * @return build results no message is sent for
+	 */
+	public Set<Result> getSkippedResults() {
+		return skippedResults;
+	}
+
+	public void setSkippedResults(final Set<Result> skippedResults) {
+		this.skippedResults = skippedResults;
+	}
+
+	/**
+	 * @return seconds the message may take to reach every space, or 0 for
+	 *         the global send timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(final int timeout) {
+		this.timeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Starts the timeout, once; every stage after it shares the one deadline
+	 */
+	void startDeadline() {
+		if (!deadlineStarted) {
+			int seconds = timeout > 0 ? timeout : SparkGlobalConfiguration.get().getSendTimeout();
+			deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			deadlineStarted = true;
+		}
+	}
+
+	/**
+	 * @return when every space must have the message, in
+	 *         {@link System#nanoTime()} terms
+	 */
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	public List<String> getSpaceIds() {
+		return spaceIds;
+	}
+
+	public void setSpaceIds(final List<String> spaceIds) {
+		this.spaceIds = spaceIds;
+	}
+
+	/**
+	 * @return titles of spaces given without an id, resolved to ids before
+	 *         sending
+	 */
+	public List<String> getSpaceNames() {
+		return spaceNames;
+	}
+
+	public void setSpaceNames(final List<String> spaceNames) {
+		this.spaceNames = spaceNames;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	public void setCredentialsId(final String credentialsId) {
+		this.credentialsId = credentialsId;
+	}
+
+	/**
+	 * @return path of a file to send with the message, relative to the
+	 *         workspace or the archived artifacts; may contain environment
+	 *         variables
+	 */
+	public String getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(final String attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * @return the workspace attachments are looked up in, or null if there is
+	 *         none
+	 */
+	public FilePath getWorkspace() {
+		return workspace;
+	}
+
+	public void setWorkspace(final FilePath workspace) {
+		this.workspace = workspace;
+	}
+
+	/**
+	 * @return true if stages must not block the calling thread on the spark api
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	void setAsync(final boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * @return true if the message was queued in the outbox rather than sent
+	 */
+	public boolean isOutboxUsed() {
+		return outboxUsed;
+	}
+
+	void setOutboxUsed(final boolean outboxUsed) {
+		this.outboxUsed = outboxUsed;
+	}
+
+	public String getRenderedMessage() {
+		return renderedMessage;
+	}
+
+	public long getRenderNanos() {
+		return renderNanos;
+	}
+
+	public void setRenderedMessage(final String renderedMessage, final long renderNanos) {
+		this.renderedMessage = renderedMessage;
+		this.renderNanos = renderNanos;
+	}
+
+	public Credentials getCredentials() {
+		return credentials;
+	}
+
+	public long getCredentialsNanos() {
+		return credentialsNanos;
+	}
+
+	public void setCredentials(final Credentials credentials, final long credentialsNanos) {
+		this.credentials = credentials;
+		this.credentialsNanos = credentialsNanos;
+	}
+
+	public SparkMessageType getSparkMessageType() {
+		return sparkMessageType;
+	}
+
+	public SparkMessagePayload getPayload() {
+		return payload;
+	}
+
+	public void setPayload(final SparkMessageType sparkMessageType, final SparkMessagePayload payload) {
+		this.sparkMessageType = sparkMessageType;
+		this.payload = payload;
+	}
+
+	/**
+	 * @return one result per space once sent, or null before
+	 */
+	public List<SparkSendResult> getResults() {
+		return results;
+	}
+
+	public void setResults(final List<SparkSendResult> results) {
+		this.results = results;
+	}
+
+	/**
+	 * @return a failure for each space name that could not be resolved
+	 */
+	public List<SparkSendResult> getUnresolved() {
+		return unresolved;
+	}
+
+	public void setUnresolved(final List<SparkSendResult> unresolved) {
+		this.unresolved = unresolved;
+	}
+}
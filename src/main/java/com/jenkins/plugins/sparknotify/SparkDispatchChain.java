@@ -0,0 +1,24 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+
+/**
+ * The stages after the current one in a {@link SparkDispatcher}
+ */
+public interface SparkDispatchChain {
+	/**
+	 * Runs the next stage
+	 */
+	void proceed() throws IOException, InterruptedException;
+
+	/**
+	 * Ends the dispatch without running the remaining stages
+	 */
+	void finish();
+
+	/**
+	 * Ends the dispatch with an error; for stages that continue on another
+	 * thread and cannot throw to the caller
+	 */
+	void fail(Exception e);
+}
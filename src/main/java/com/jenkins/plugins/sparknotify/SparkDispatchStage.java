@@ -0,0 +1,16 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+
+/**
+ * One step of {@link SparkDispatcher}'s pipeline
+ */
+public interface SparkDispatchStage {
+	/**
+	 * Does this stage's work, then calls exactly one of
+	 * {@link SparkDispatchChain#proceed()}, {@link SparkDispatchChain#finish()}
+	 * or {@link SparkDispatchChain#fail(Exception)}. When the dispatch is
+	 * asynchronous the call may happen later, from another thread.
+	 */
+	void process(SparkDispatch dispatch, SparkDispatchChain chain) throws IOException, InterruptedException;
+}
@@ -0,0 +1,506 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.cloudbees.plugins.credentials.Credentials;
+
+import hudson.AbortException;
+import hudson.Util;
+import hudson.model.Result;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * The path every notification takes, whichever step sends it: filter,
+ * render, resolve credentials and space names, serialize, send and record.
+ * The build step, post-build action and pipeline step only describe what to
+ * send and hand it to {@link #get()}.
+ */
+public class SparkDispatcher {
+	private static final Logger LOGGER = Logger.getLogger(SparkDispatcher.class.getName());
+	/** pipeline steps rendering and resolving at once; the rest wait their turn */
+	private static final int WORKER_THREADS = 8;
+
+	private static ThreadPoolExecutor workerExecutor;
+
+	/** skips disabled steps and notifications with no message or spaces */
+	public static final SparkDispatchStage FILTER = new FilterStage();
+	/** expands environment variables and the console tail in the message */
+	public static final SparkDispatchStage RENDER = new RenderStage();
+	public static final SparkDispatchStage RESOLVE_CREDENTIALS = new ResolveCredentialsStage();
+	/** looks up spaces given by name in the token's room index */
+	public static final SparkDispatchStage RESOLVE_SPACES = new ResolveSpacesStage();
+	/** encodes the request body shared by every space and finds the attachment */
+	public static final SparkDispatchStage SERIALIZE = new SerializeStage();
+	/** sends to every space, or queues in the outbox */
+	public static final SparkDispatchStage SEND = new SendStage();
+	/** adds the results to the run's trace and the build log */
+	public static final SparkDispatchStage RECORD = new RecordStage();
+
+	private static final SparkDispatcher DEFAULT = new SparkDispatcher(
+			Arrays.asList(FILTER, RENDER, RESOLVE_CREDENTIALS, RESOLVE_SPACES, SERIALIZE, SEND, RECORD));
+
+	private final List<SparkDispatchStage> stages;
+
+	public SparkDispatcher(final List<SparkDispatchStage> stages) {
+		this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+	}
+
+	/**
+	 * @return the dispatcher used by every step
+	 */
+	public static SparkDispatcher get() {
+		return DEFAULT;
+	}
+
+	public List<SparkDispatchStage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * Runs every stage on the calling thread, blocking while sending
+	 */
+	public void dispatch(final SparkDispatch dispatch) throws IOException, InterruptedException {
+		dispatch.startDeadline();
+		SynchronousCallback callback = new SynchronousCallback();
+		new Chain(dispatch, 0, callback).proceed();
+		callback.rethrow();
+	}
+
+	/**
+	 * Runs every stage without blocking on the spark api; stages after sending
+	 * run on the thread that receives the last response
+	 *
+	 * @param callback
+	 *            invoked once, when the last stage is done or a stage fails
+	 */
+	public void dispatchAsync(final SparkDispatch dispatch, final Callback callback) {
+		dispatch.startDeadline();
+		dispatch.setAsync(true);
+		try {
+			new Chain(dispatch, 0, callback).proceed();
+		} catch (Exception e) {
+			callback.failed(e);
+		}
+	}
+
+	/**
+	 * Like {@link #dispatchAsync}, but hands the stages to the dispatcher's
+	 * own pool so the calling thread does no rendering, credential lookups or
+	 * workspace access, e.g. the pipeline's CPS thread. The stages before
+	 * sending may block on the workspace or the room index, so they never run
+	 * on the sender pool, where they would hold up messages that already have
+	 * a slot.
+	 *
+	 * @return cancelling it interrupts the stages still running; the callback
+	 *         may still be invoked if cancelled too late
+	 */
+	public Future<?> dispatchOnWorkerPool(final SparkDispatch dispatch, final Callback callback) {
+		// waiting for a worker counts against the timeout
+		dispatch.startDeadline();
+		return getWorkerExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				dispatchAsync(dispatch, callback);
+			}
+		});
+	}
+
+	private static synchronized ThreadPoolExecutor getWorkerExecutor() {
+		if (workerExecutor == null) {
+			workerExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NamingThreadFactory(new DaemonThreadFactory(), "SparkDispatcher.worker"));
+			workerExecutor.allowCoreThreadTimeOut(true);
+		}
+		return workerExecutor;
+	}
+
+	/**
+	 * Runs the stages up to sending on the calling thread and returns; the
+	 * results are recorded on the run once every space has one, and failures
+	 * are logged to the system log since the build log may be closed by then
+	 */
+	public void dispatchInBackground(final SparkDispatch dispatch) {
+		dispatch.setBackground(true);
+		dispatchAsync(dispatch, new Callback() {
+			@Override
+			public void completed() {
+			}
+
+			@Override
+			public void failed(final Exception e) {
+				LOGGER.log(Level.WARNING, "Could not send spark notifications for " + dispatch.getRun(), e);
+			}
+		});
+	}
+
+	/**
+	 * Receives the outcome of {@link SparkDispatcher#dispatchAsync}
+	 */
+	public interface Callback {
+		void completed();
+
+		void failed(Exception e);
+	}
+
+	private final class Chain implements SparkDispatchChain {
+		private final SparkDispatch dispatch;
+		private final int index;
+		private final Callback callback;
+
+		Chain(final SparkDispatch dispatch, final int index, final Callback callback) {
+			this.dispatch = dispatch;
+			this.index = index;
+			this.callback = callback;
+		}
+
+		@Override
+		public void proceed() throws IOException, InterruptedException {
+			if (index < stages.size()) {
+				stages.get(index).process(dispatch, new Chain(dispatch, index + 1, callback));
+			} else {
+				callback.completed();
+			}
+		}
+
+		@Override
+		public void finish() {
+			callback.completed();
+		}
+
+		@Override
+		public void fail(final Exception e) {
+			callback.failed(e);
+		}
+	}
+
+	private static final class SynchronousCallback implements Callback {
+		private Exception failure;
+
+		@Override
+		public void completed() {
+		}
+
+		@Override
+		public void failed(final Exception e) {
+			failure = e;
+		}
+
+		void rethrow() throws IOException, InterruptedException {
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure instanceof InterruptedException) {
+				throw (InterruptedException) failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+		}
+	}
+
+	private static final class FilterStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			if (dispatch.isDisabled()) {
+				dispatch.getLogger().println("Spark Notifier Plugin Disabled!");
+				chain.finish();
+			} else if (!SparkMessage.isMessageValid(dispatch.getMessage())) {
+				skip(dispatch, chain, "Skipping spark notifications because no message was defined");
+			} else if (CollectionUtils.isEmpty(dispatch.getSpaceIds())
+					&& CollectionUtils.isEmpty(dispatch.getSpaceNames())) {
+				skip(dispatch, chain, "Skipping spark notifications because no spaces were defined");
+			} else if (isSkippedResult(dispatch)) {
+				// a configured filter, not a problem with the step
+				dispatch.getLogger().println(
+						"Skipping spark notifications because " + describe(dispatch.getBuildResult()));
+				chain.finish();
+			} else {
+				chain.proceed();
+			}
+		}
+
+		private static boolean isSkippedResult(final SparkDispatch dispatch) {
+			if (dispatch.getSkippedResults().isEmpty()) {
+				return false;
+			}
+			if (dispatch.getBuildResult() == null) {
+				dispatch.getLogger().println("Could not get result");
+				return false;
+			}
+			return dispatch.getSkippedResults().contains(dispatch.getBuildResult());
+		}
+
+		private static String describe(final Result result) {
+			if (result == Result.SUCCESS) {
+				return "job was successful";
+			} else if (result == Result.FAILURE) {
+				return "job failed";
+			} else if (result == Result.ABORTED) {
+				return "job was aborted";
+			}
+			return "job is unstable";
+		}
+
+		private static void skip(final SparkDispatch dispatch, final SparkDispatchChain chain, final String reason)
+				throws AbortException {
+			if (dispatch.isFailOnError()) {
+				throw new AbortException(reason);
+			}
+			dispatch.getLogger().println(reason);
+			chain.finish();
+		}
+	}
+
+	private static final class RenderStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			long started = System.nanoTime();
+			String message = SparkMessageTemplate.compile(dispatch.getMessage(), dispatch.getPresets())
+					.render(dispatch.getEnv());
+			message = SparkLogTail.expand(message, dispatch.getRun());
+			dispatch.setRenderedMessage(message, System.nanoTime() - started);
+			chain.proceed();
+		}
+	}
+
+	private static final class ResolveCredentialsStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			long started = System.nanoTime();
+			Credentials credentials = SparkCredentialsCache.find(dispatch.getCredentialsId(), dispatch.getRun());
+			dispatch.setCredentials(credentials, System.nanoTime() - started);
+			chain.proceed();
+		}
+	}
+
+	private static final class ResolveSpacesStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			if (CollectionUtils.isEmpty(dispatch.getSpaceNames())) {
+				chain.proceed();
+				return;
+			}
+			SparkNotifier notifier = new SparkNotifier(dispatch.getCredentials(), dispatch.getEnv())
+					.withTimeout(dispatch.getTimeout());
+			List<String> spaceIds = new ArrayList<>(dispatch.getSpaceIds());
+			List<SparkSendResult> unresolved = new ArrayList<>();
+			for (String spaceName : dispatch.getSpaceNames()) {
+				String name = dispatch.getEnv() != null ? dispatch.getEnv().expand(spaceName) : spaceName;
+				try {
+					// the room index may only use what is left of the send timeout
+					String spaceId = notifier.resolveSpaceName(name, dispatch.getDeadlineNanos());
+					if (!spaceIds.contains(spaceId)) {
+						spaceIds.add(spaceId);
+					}
+				} catch (SparkNotifyException e) {
+					unresolved.add(SparkSendResult.failure(name, e));
+				}
+			}
+			dispatch.setSpaceIds(spaceIds);
+			dispatch.setUnresolved(unresolved);
+			if (spaceIds.isEmpty()) {
+				// nothing that could be sent
+				dispatch.setResults(new ArrayList<SparkSendResult>());
+			}
+			chain.proceed();
+		}
+	}
+
+	private static final class SerializeStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			String messageType = StringUtils.isEmpty(dispatch.getMessageType()) ? "text" : dispatch.getMessageType();
+			SparkMessageType sparkMessageType = SparkMessageType.valueOf(messageType.toUpperCase());
+			try {
+				SparkMessagePayload payload = SparkMessagePayload.of(dispatch.getRenderedMessage(), sparkMessageType);
+				String attachment = Util.fixEmptyAndTrim(dispatch.getAttachment());
+				if (attachment != null) {
+					if (dispatch.getEnv() != null) {
+						attachment = dispatch.getEnv().expand(attachment);
+					}
+					if (dispatch.isBackground()) {
+						// the workspace may be gone or reused by the time a background send streams it
+						throw new SparkNotifyException("Could not attach " + attachment
+								+ " because messages sent in the background cannot have attachments");
+					}
+					payload = payload.withAttachment(
+							SparkAttachment.resolve(attachment, dispatch.getWorkspace(), dispatch.getRun()));
+				}
+				dispatch.setPayload(sparkMessageType, payload);
+			} catch (SparkNotifyException e) {
+				if (dispatch.isBackground() && dispatch.getLogger() != null) {
+					// still on the build's thread; the results only reach the build page
+					dispatch.getLogger().println(e.getMessage());
+				}
+				dispatch.setPayload(sparkMessageType, null);
+				dispatch.setResults(SparkNotifier.failures(dispatch.getSpaceIds(), e));
+			}
+			chain.proceed();
+		}
+	}
+
+	private static final class SendStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			if (dispatch.getResults() != null) {
+				// nothing that could be sent
+				chain.proceed();
+				return;
+			}
+
+			// the outbox only keeps the message; an attached file may be gone by the time it is delivered
+			if (dispatch.isOutboxAllowed() && SparkGlobalConfiguration.get().isUseOutbox()
+					&& !dispatch.getPayload().hasAttachment()) {
+				dispatch.setOutboxUsed(true);
+				dispatch.setResults(queue(dispatch));
+				chain.proceed();
+				return;
+			}
+
+			SparkNotifier notifier = new SparkNotifier(dispatch.getCredentials(), dispatch.getEnv(),
+					dispatch.isBackground() ? null : dispatch.getLogger()).withTimeout(dispatch.getTimeout());
+			if (dispatch.getRun() != null && dispatch.getCredentialsId() != null) {
+				// lets a digest that cannot be sent fall back to the outbox
+				notifier = notifier.withOrigin(dispatch.getRun(), dispatch.getCredentialsId());
+			}
+			if (dispatch.isBackground()) {
+				dispatch.getLogger().println(
+						"Sending spark notifications in the background; the results will be shown on the build page");
+			}
+			if (dispatch.isAsync()) {
+				notifier.sendRenderedAsync(dispatch.getSpaceIds(), dispatch.getRenderedMessage(),
+						dispatch.getSparkMessageType(), dispatch.getPayload(), dispatch.getRenderNanos(),
+						dispatch.getPriority(), dispatch.getDeadlineNanos(), new SparkSendCallback() {
+							@Override
+							public void completed(final List<SparkSendResult> results) {
+								dispatch.setResults(results);
+								try {
+									chain.proceed();
+								} catch (Exception e) {
+									chain.fail(e);
+								}
+							}
+						});
+				return;
+			}
+
+			dispatch.setResults(notifier.sendRendered(dispatch.getSpaceIds(), dispatch.getRenderedMessage(),
+					dispatch.getSparkMessageType(), dispatch.getPayload(), dispatch.getRenderNanos(),
+					dispatch.getPriority(), dispatch.getDeadlineNanos()));
+			chain.proceed();
+		}
+
+		private static List<SparkSendResult> queue(final SparkDispatch dispatch) throws IOException {
+			String message = dispatch.getRenderedMessage();
+			SparkMessageType messageType = dispatch.getSparkMessageType();
+			SparkOutbox outbox = SparkOutbox.get();
+			String contentHash = SparkDeduplicator.isEnabled() ? SparkDeduplicator.hash(message) : null;
+			List<SparkSendResult> results = new ArrayList<>(dispatch.getSpaceIds().size());
+			for (String spaceId : dispatch.getSpaceIds()) {
+				if (contentHash != null && SparkDeduplicator.get().claim(spaceId, messageType, contentHash) == null) {
+					results.add(SparkSendResult.suppressed(spaceId));
+					continue;
+				}
+				outbox.append(new SparkOutbox.Entry(dispatch.getRun(), dispatch.getCredentialsId(), spaceId,
+						messageType, message));
+				results.add(SparkSendResult.queued(spaceId));
+			}
+			return results;
+		}
+	}
+
+	private static final class RecordStage implements SparkDispatchStage {
+		@Override
+		public void process(final SparkDispatch dispatch, final SparkDispatchChain chain)
+				throws IOException, InterruptedException {
+			List<SparkSendResult> results = dispatch.getResults();
+			if (!dispatch.getUnresolved().isEmpty()) {
+				List<SparkSendResult> all = new ArrayList<>(dispatch.getUnresolved());
+				all.addAll(results);
+				results = all;
+			}
+			SparkNotificationAction.record(dispatch.getRun(), dispatch.getStep(), dispatch.getCredentialsNanos(),
+					results);
+			if (dispatch.isBackground()) {
+				logFailures(dispatch, results);
+				chain.proceed();
+				return;
+			}
+			PrintStream logger = dispatch.getLogger();
+			for (SparkSendResult result : results) {
+				logger.println("Sending message to spark space: " + result.getSpaceId());
+				Exception e = result.getException();
+				String error;
+				if (e == null) {
+					if (result.isQueued()) {
+						logger.println(dispatch.isOutboxUsed() ? "Message queued in outbox" : "Message queued for digest");
+						continue;
+					}
+					if (result.isSuppressed()) {
+						logger.println("Message suppressed; the same message was sent to this space recently");
+						continue;
+					}
+					if (result.getResponseCode() == Status.OK.getStatusCode()) {
+						logger.println("Message sent");
+						continue;
+					}
+					error = "Could not send message; response code: " + result.getResponseCode();
+				} else if (e instanceof SparkNotifyException) {
+					error = e.getMessage();
+				} else if (e instanceof IOException) {
+					// connection resets, connect and read timeouts, interrupted waits
+					error = "Could not send message because spark server did not provide a response; this is likely intermittent";
+				} else {
+					error = "Could not send message because of an unknown issue; please file an issue";
+				}
+				if (dispatch.isFailOnError()) {
+					throw new AbortException(error);
+				}
+				logger.println(error);
+			}
+			chain.proceed();
+		}
+
+		private static void logFailures(final SparkDispatch dispatch, final List<SparkSendResult> results) {
+			for (SparkSendResult result : results) {
+				if (result.isSuccess() || result.isQueued() || result.isSuppressed()) {
+					continue;
+				}
+				String message = "Could not send spark notification for " + dispatch.getRun() + " to space "
+						+ result.getSpaceId();
+				if (result.getException() != null) {
+					LOGGER.log(Level.WARNING, message, result.getException());
+				} else {
+					LOGGER.log(Level.WARNING, message + "; response code: " + result.getResponseCode());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Controller-wide settings shared by the build step, post-build step and
+ * pipeline step
+ */
+@Extension
+public class SparkGlobalConfiguration extends GlobalConfiguration {
+	public static final String DEFAULT_API_URL = "https://api.ciscospark.com/v1";
+	public static final int DEFAULT_SEND_THREADS = 10;
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	public static final int DEFAULT_READ_TIMEOUT = 30;
+	public static final int DEFAULT_IDLE_TIMEOUT = 60;
+	public static final int DEFAULT_RETRY_ATTEMPTS = 3;
+	public static final int DEFAULT_RETRY_DELAY = 500;
+	public static final int DEFAULT_RETRY_MAX_DELAY = 10;
+	public static final int DEFAULT_RETRY_DEADLINE = 60;
+	public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+	public static final int DEFAULT_CIRCUIT_BREAKER_COOLDOWN = 30;
+	public static final int DEFAULT_COALESCE_MAX_MESSAGES = 20;
+	public static final int DEFAULT_QUEUE_CAPACITY = 500;
+	public static final int DEFAULT_SEND_TIMEOUT = 120;
+	public static final int MAX_HEDGE_PERCENTILE = 99;
+
+	/** api url when none is configured; only benchmarks and tests change it */
+	private static volatile String defaultApiUrl = DEFAULT_API_URL;
+
+	private String apiUrl;
+	private int sendThreads = DEFAULT_SEND_THREADS;
+	private boolean adaptiveConcurrency = true;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private String overloadPolicy;
+	private boolean useOutbox;
+	private int coalesceWindow;
+	private int coalesceMaxMessages = DEFAULT_COALESCE_MAX_MESSAGES;
+	private int dedupWindow;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int retryAttempts = DEFAULT_RETRY_ATTEMPTS;
+	private int retryDelay = DEFAULT_RETRY_DELAY;
+	private int retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+	private int retryDeadline = DEFAULT_RETRY_DEADLINE;
+	private int sendTimeout = DEFAULT_SEND_TIMEOUT;
+	private int hedgePercentile;
+	private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+	private int circuitBreakerCooldown = DEFAULT_CIRCUIT_BREAKER_COOLDOWN;
+
+	public SparkGlobalConfiguration() {
+		this(true);
+	}
+
+	private SparkGlobalConfiguration(final boolean persisted) {
+		if (persisted) {
+			load();
+		}
+	}
+
+	/**
+	 * @return the saved configuration, or the defaults when Jenkins is not
+	 *         running
+	 */
+	public static SparkGlobalConfiguration get() {
+		Jenkins jenkins = Jenkins.getInstance();
+		SparkGlobalConfiguration config = null;
+		if (jenkins != null) {
+			config = jenkins.getDescriptorByType(SparkGlobalConfiguration.class);
+		}
+		return config != null ? config : new SparkGlobalConfiguration(false);
+	}
+
+	/**
+	 * @return base url of the spark api, without a trailing slash
+	 */
+	public String getApiUrl() {
+		String url = Util.fixEmptyAndTrim(apiUrl);
+		if (url == null) {
+			url = defaultApiUrl;
+		}
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	@DataBoundSetter
+	public void setApiUrl(final String apiUrl) {
+		this.apiUrl = Util.fixEmptyAndTrim(apiUrl);
+	}
+
+	/**
+	 * Only for benchmarks and tests, which run without a saved
+	 * configuration; null restores the spark api
+	 */
+	static void setDefaultApiUrl(final String apiUrl) {
+		defaultApiUrl = apiUrl != null ? apiUrl : DEFAULT_API_URL;
+	}
+
+	public int getSendThreads() {
+		return sendThreads > 0 ? sendThreads : DEFAULT_SEND_THREADS;
+	}
+
+	@DataBoundSetter
+	public void setSendThreads(final int sendThreads) {
+		this.sendThreads = sendThreads;
+	}
+
+	/**
+	 * @return true if the number of concurrent sends starts at the configured
+	 *         one and then follows the spark api's latency and errors
+	 */
+	public boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setAdaptiveConcurrency(final boolean adaptiveConcurrency) {
+		this.adaptiveConcurrency = adaptiveConcurrency;
+	}
+
+	/**
+	 * @return messages each priority lane holds while every send is busy
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+	}
+
+	@DataBoundSetter
+	public void setQueueCapacity(final int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return what happens to a message whose priority lane is full: BLOCK,
+	 *         DROP_OLDEST or REJECT
+	 */
+	public String getOverloadPolicy() {
+		return SparkSendLanes.OverloadPolicy.fromName(overloadPolicy).name();
+	}
+
+	@DataBoundSetter
+	public void setOverloadPolicy(final String overloadPolicy) {
+		this.overloadPolicy = Util.fixEmptyAndTrim(overloadPolicy);
+	}
+
+	/**
+	 * @return true if freestyle steps queue messages in the on-disk outbox
+	 *         instead of sending them from the build
+	 */
+	public boolean isUseOutbox() {
+		return useOutbox;
+	}
+
+	@DataBoundSetter
+	public void setUseOutbox(final boolean useOutbox) {
+		this.useOutbox = useOutbox;
+	}
+
+	/**
+	 * @return seconds during which further messages to a space are merged
+	 *         into a digest; 0 disables coalescing
+	 */
+	public int getCoalesceWindow() {
+		return Math.max(0, coalesceWindow);
+	}
+
+	@DataBoundSetter
+	public void setCoalesceWindow(final int coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	/**
+	 * @return held messages that trigger a digest before the window ends
+	 */
+	public int getCoalesceMaxMessages() {
+		return coalesceMaxMessages > 0 ? coalesceMaxMessages : DEFAULT_COALESCE_MAX_MESSAGES;
+	}
+
+	@DataBoundSetter
+	public void setCoalesceMaxMessages(final int coalesceMaxMessages) {
+		this.coalesceMaxMessages = coalesceMaxMessages;
+	}
+
+	/**
+	 * @return seconds during which a message identical to one already sent to
+	 *         a space is suppressed; 0 disables suppression
+	 */
+	public int getDedupWindow() {
+		return Math.max(0, dedupWindow);
+	}
+
+	@DataBoundSetter
+	public void setDedupWindow(final int dedupWindow) {
+		this.dedupWindow = dedupWindow;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnections(final int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * @return connect timeout in seconds
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout > 0 ? connectTimeout : DEFAULT_CONNECT_TIMEOUT;
+	}
+
+	@DataBoundSetter
+	public void setConnectTimeout(final int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return read timeout in seconds
+	 */
+	public int getReadTimeout() {
+		return readTimeout > 0 ? readTimeout : DEFAULT_READ_TIMEOUT;
+	}
+
+	@DataBoundSetter
+	public void setReadTimeout(final int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @return seconds a pooled connection may stay unused before it is closed
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+	}
+
+	@DataBoundSetter
+	public void setIdleTimeout(final int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return total attempts per message, including the first one
+	 */
+	public int getRetryAttempts() {
+		return retryAttempts > 0 ? retryAttempts : DEFAULT_RETRY_ATTEMPTS;
+	}
+
+	@DataBoundSetter
+	public void setRetryAttempts(final int retryAttempts) {
+		this.retryAttempts = retryAttempts;
+	}
+
+	/**
+	 * @return base backoff delay in milliseconds
+	 */
+	public int getRetryDelay() {
+		return retryDelay > 0 ? retryDelay : DEFAULT_RETRY_DELAY;
+	}
+
+	@DataBoundSetter
+	public void setRetryDelay(final int retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * @return longest backoff delay in seconds
+	 */
+	public int getRetryMaxDelay() {
+		return retryMaxDelay > 0 ? retryMaxDelay : DEFAULT_RETRY_MAX_DELAY;
+	}
+
+	@DataBoundSetter
+	public void setRetryMaxDelay(final int retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	/**
+	 * @return seconds after which no further retry is started
+	 */
+	public int getRetryDeadline() {
+		return retryDeadline > 0 ? retryDeadline : DEFAULT_RETRY_DEADLINE;
+	}
+
+	@DataBoundSetter
+	public void setRetryDeadline(final int retryDeadline) {
+		this.retryDeadline = retryDeadline;
+	}
+
+	/**
+	 * @return seconds a message may take to reach a space, from the moment it
+	 *         is sent until the last retry of its last part
+	 */
+	public int getSendTimeout() {
+		return sendTimeout > 0 ? sendTimeout : DEFAULT_SEND_TIMEOUT;
+	}
+
+	@DataBoundSetter
+	public void setSendTimeout(final int sendTimeout) {
+		this.sendTimeout = sendTimeout;
+	}
+
+	/**
+	 * @return percentile of request latency after which a request that has
+	 *         not started sending its body is sent again on another
+	 *         connection, or 0 if requests are not hedged
+	 */
+	public int getHedgePercentile() {
+		return hedgePercentile > 0 ? Math.min(hedgePercentile, MAX_HEDGE_PERCENTILE) : 0;
+	}
+
+	@DataBoundSetter
+	public void setHedgePercentile(final int hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * @return consecutive failures that open the circuit breaker
+	 */
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold > 0 ? circuitBreakerThreshold : DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+	}
+
+	@DataBoundSetter
+	public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * @return seconds the circuit breaker stays open before a trial request
+	 */
+	public int getCircuitBreakerCooldown() {
+		return circuitBreakerCooldown > 0 ? circuitBreakerCooldown : DEFAULT_CIRCUIT_BREAKER_COOLDOWN;
+	}
+
+	@DataBoundSetter
+	public void setCircuitBreakerCooldown(final int circuitBreakerCooldown) {
+		this.circuitBreakerCooldown = circuitBreakerCooldown;
+	}
+
+	public SparkTransport.Statistics getConnectionPoolStatistics() {
+		return SparkTransport.get().getStatistics();
+	}
+
+	/**
+	 * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest,
+	 *      net.sf.json.JSONObject)
+	 */
+	@Override
+	public boolean configure(final StaplerRequest req, final JSONObject json) throws FormException {
+		req.bindJSON(this, json);
+		save();
+		SparkNotifier.reconfigure(this);
+		SparkConcurrencyLimit.reconfigure(this);
+		SparkSendLanes.reconfigure(this);
+		SparkTransport.reconfigure(this);
+		return true;
+	}
+
+	public FormValidation doCheckApiUrl(@QueryParameter final String value) {
+		String url = Util.fixEmptyAndTrim(value);
+		if (url == null) {
+			return FormValidation.ok();
+		}
+		try {
+			String protocol = new URL(url).getProtocol();
+			if (!"https".equals(protocol) && !"http".equals(protocol)) {
+				return FormValidation.error("Only http and https urls are supported");
+			}
+			if ("http".equals(protocol)) {
+				return FormValidation.warning("Tokens will be sent unencrypted");
+			}
+			return FormValidation.ok();
+		} catch (MalformedURLException e) {
+			return FormValidation.error("Invalid url");
+		}
+	}
+
+	public FormValidation doCheckSendThreads(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckQueueCapacity(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public ListBoxModel doFillOverloadPolicyItems(@QueryParameter final String overloadPolicy) {
+		String selected = SparkSendLanes.OverloadPolicy.fromName(overloadPolicy).name();
+		return new ListBoxModel(new Option("Wait for room", "BLOCK", "BLOCK".equals(selected)),
+				new Option("Drop oldest waiting message", "DROP_OLDEST", "DROP_OLDEST".equals(selected)),
+				new Option("Reject new message", "REJECT", "REJECT".equals(selected)));
+	}
+
+	public FormValidation doCheckCoalesceWindow(@QueryParameter final String value) {
+		return FormValidation.validateNonNegativeInteger(value);
+	}
+
+	public FormValidation doCheckCoalesceMaxMessages(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckDedupWindow(@QueryParameter final String value) {
+		return FormValidation.validateNonNegativeInteger(value);
+	}
+
+	public FormValidation doCheckMaxConnections(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckMaxConnectionsPerRoute(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckConnectTimeout(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckReadTimeout(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckIdleTimeout(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckRetryAttempts(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckRetryDelay(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckRetryMaxDelay(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckRetryDeadline(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckSendTimeout(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckHedgePercentile(@QueryParameter final String value) {
+		FormValidation validation = FormValidation.validateNonNegativeInteger(value);
+		if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) > MAX_HEDGE_PERCENTILE) {
+			return FormValidation.error("Must be at most " + MAX_HEDGE_PERCENTILE);
+		}
+		return validation;
+	}
+
+	public FormValidation doCheckCircuitBreakerThreshold(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	public FormValidation doCheckCircuitBreakerCooldown(@QueryParameter final String value) {
+		return FormValidation.validatePositiveInteger(value);
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Notifier";
+	}
+}
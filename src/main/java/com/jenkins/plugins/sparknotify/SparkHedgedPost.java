@@ -0,0 +1,189 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import jenkins.util.Timer;
+
+/**
+ * One post to the spark api, sent again on another connection if it has not
+ * started sending its body by the time most requests have finished.
+ *
+ * The spark api has no idempotency key, so only the copy that starts writing
+ * its body first may write it; the other fails before the spark api has a
+ * complete request, and a message is never posted twice. Both copies must be
+ * sent chunked, so the body is written after the connection is open rather
+ * than buffered up front. Hedging therefore helps when leasing or opening a
+ * connection stalls, not when the spark api is slow to answer.
+ */
+final class SparkHedgedPost {
+	private static final int NO_WRITER = -1;
+	private static final int PRIMARY = 0;
+	private static final int HEDGE = 1;
+
+	private final Entity<StreamingOutput> entity;
+	private final Invocation.Builder hedgeRequest;
+	private final InvocationCallback<Response> callback;
+	/** the copy writing its body */
+	private final AtomicInteger writer = new AtomicInteger(NO_WRITER);
+	private final AtomicBoolean finished = new AtomicBoolean();
+	/** set once the hedge is sent or no longer may be */
+	private boolean hedgeDecided;
+	/** copies sent that have not failed before writing */
+	private int outstanding = 1;
+	private volatile ScheduledFuture<?> hedgeTimer;
+
+	private SparkHedgedPost(final Entity<StreamingOutput> entity, final Invocation.Builder hedgeRequest,
+			final InvocationCallback<Response> callback) {
+		this.entity = entity;
+		this.hedgeRequest = hedgeRequest;
+		this.callback = callback;
+	}
+
+	/**
+	 * @param deadlineNanos
+	 *            when the send must be finished; no hedge is sent so late it
+	 *            could not finish in time
+	 * @return nanoseconds to wait before hedging a request, or -1 if requests
+	 *         are not hedged now
+	 */
+	static long delayNanos(final long deadlineNanos) {
+		int percentile = SparkGlobalConfiguration.get().getHedgePercentile();
+		if (percentile == 0) {
+			return -1;
+		}
+		long delayNanos = SparkMetrics.get().latencyPercentileNanos(percentile);
+		if (delayNanos < 0 || System.nanoTime() + 2 * delayNanos > deadlineNanos) {
+			return -1;
+		}
+		return delayNanos;
+	}
+
+	/**
+	 * Posts the entity with the first request, and with the second after the
+	 * delay unless the first has started writing its body by then
+	 *
+	 * @param callback
+	 *            invoked once, with the response of the copy that wrote its
+	 *            body, or the failure if neither did
+	 */
+	static void post(final Invocation.Builder request, final Invocation.Builder hedgeRequest,
+			final Entity<StreamingOutput> entity, final long delayNanos, final InvocationCallback<Response> callback) {
+		final SparkHedgedPost post = new SparkHedgedPost(entity, hedgeRequest, callback);
+		post.hedgeTimer = Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				post.sendHedge();
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+		post.send(request, PRIMARY);
+	}
+
+	private void sendHedge() {
+		synchronized (this) {
+			if (writer.get() != NO_WRITER || hedgeDecided) {
+				return;
+			}
+			hedgeDecided = true;
+			outstanding++;
+		}
+		SparkMetrics.get().hedgeSent();
+		send(hedgeRequest, HEDGE);
+	}
+
+	private void send(final Invocation.Builder request, final int copy) {
+		Copy callback = new Copy(copy);
+		try {
+			request.async().post(copy(copy), callback);
+		} catch (RuntimeException e) {
+			callback.failed(e);
+		}
+	}
+
+	private Entity<StreamingOutput> copy(final int copy) {
+		final StreamingOutput body = entity.getEntity();
+		return Entity.entity(new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				if (!writer.compareAndSet(NO_WRITER, copy) && writer.get() != copy) {
+					throw new IOException("Not sending the message because another copy of the request is sending it");
+				}
+				if (copy == HEDGE) {
+					SparkMetrics.get().hedgeWon();
+				} else {
+					decideHedge();
+				}
+				body.write(output);
+			}
+		}, entity.getMediaType());
+	}
+
+	/**
+	 * Makes sure no hedge is sent from now on
+	 */
+	private void decideHedge() {
+		synchronized (this) {
+			hedgeDecided = true;
+		}
+		cancelHedge();
+	}
+
+	private void cancelHedge() {
+		ScheduledFuture<?> timer = hedgeTimer;
+		if (timer != null) {
+			timer.cancel(false);
+		}
+	}
+
+	private final class Copy implements InvocationCallback<Response> {
+		private final int copy;
+
+		Copy(final int copy) {
+			this.copy = copy;
+		}
+
+		@Override
+		public void completed(final Response response) {
+			if (finished.compareAndSet(false, true)) {
+				cancelHedge();
+				callback.completed(response);
+			} else {
+				response.close();
+			}
+		}
+
+		@Override
+		public void failed(final Throwable throwable) {
+			int current = writer.get();
+			if (current != NO_WRITER && current != copy) {
+				// the other copy is sending the message and reports how it went
+				return;
+			}
+			if (current == NO_WRITER) {
+				int remaining;
+				synchronized (SparkHedgedPost.this) {
+					// a connection that fails outright is retried, not hedged
+					hedgeDecided = true;
+					remaining = --outstanding;
+				}
+				cancelHedge();
+				if (remaining > 0) {
+					return;
+				}
+			}
+			if (finished.compareAndSet(false, true)) {
+				callback.failed(throwable);
+			}
+		}
+	}
+}
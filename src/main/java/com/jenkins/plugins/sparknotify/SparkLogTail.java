@@ -0,0 +1,178 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.console.ConsoleNote;
+import hudson.model.Run;
+
+/**
+ * Expands ${BUILD_LOG_TAIL:N} to the last N lines of the run's console. The
+ * log is read backwards from its end a block at a time until N lines are
+ * found, so the cost depends on N rather than on the size of the log.
+ */
+public final class SparkLogTail {
+	private static final Logger LOGGER = Logger.getLogger(SparkLogTail.class.getName());
+
+	static final String TOKEN_START = "${BUILD_LOG_TAIL";
+	private static final Pattern TOKEN = Pattern.compile("\\$\\{BUILD_LOG_TAIL(?::(\\d+))?\\}");
+	static final int DEFAULT_LINES = 20;
+	static final int MAX_LINES = 1000;
+	/** most bytes of the log read, however long its lines are */
+	static final int MAX_READ_BYTES = 1024 * 1024;
+	private static final int BLOCK_SIZE = 8192;
+
+	private SparkLogTail() {
+	}
+
+	/**
+	 * @return the message with every ${BUILD_LOG_TAIL} and
+	 *         ${BUILD_LOG_TAIL:N} replaced; the tail is inserted as is, not
+	 *         expanded further
+	 */
+	public static String expand(final String message, final Run<?, ?> run) {
+		if (run == null || message.indexOf(TOKEN_START) < 0) {
+			return message;
+		}
+		Matcher matcher = TOKEN.matcher(message);
+		StringBuffer expanded = new StringBuffer(message.length());
+		while (matcher.find()) {
+			int lines = DEFAULT_LINES;
+			if (matcher.group(1) != null) {
+				try {
+					lines = Math.min(MAX_LINES, Math.max(1, Integer.parseInt(matcher.group(1))));
+				} catch (NumberFormatException e) {
+					lines = MAX_LINES;
+				}
+			}
+			matcher.appendReplacement(expanded, Matcher.quoteReplacement(tail(run, lines)));
+		}
+		matcher.appendTail(expanded);
+		return expanded.toString();
+	}
+
+	private static String tail(final Run<?, ?> run, final int lines) {
+		try {
+			File log = run.getLogFile();
+			String tail;
+			if (log.getName().endsWith(".gz")) {
+				// compressed logs cannot be read backwards
+				StringBuilder joined = new StringBuilder();
+				List<String> logLines = run.getLog(lines);
+				for (String line : logLines) {
+					if (joined.length() > 0) {
+						joined.append('\n');
+					}
+					joined.append(line);
+				}
+				tail = joined.toString();
+			} else {
+				tail = read(log, run.getCharset(), lines);
+			}
+			return truncate(ConsoleNote.removeNotes(tail));
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not read the log of " + run, e);
+			return "";
+		}
+	}
+
+	/**
+	 * @return the last lines of the file without the final line break; fewer
+	 *         lines if they are longer than {@link #MAX_READ_BYTES} together
+	 */
+	static String read(final File file, final Charset charset, final int lines) throws IOException {
+		try (RandomAccessFile log = new RandomAccessFile(file, "r")) {
+			long end = log.length();
+			// a line break at the very end closes the last line rather than starting another
+			if (end > 0 && byteAt(log, end - 1) == '\n') {
+				end--;
+				if (end > 0 && byteAt(log, end - 1) == '\r') {
+					end--;
+				}
+			}
+			long limit = Math.max(0, end - MAX_READ_BYTES);
+			long start = limit;
+			byte[] block = new byte[BLOCK_SIZE];
+			long position = end;
+			int found = 0;
+			search: while (position > limit) {
+				int length = (int) Math.min(BLOCK_SIZE, position - limit);
+				position -= length;
+				log.seek(position);
+				log.readFully(block, 0, length);
+				for (int i = length - 1; i >= 0; i--) {
+					if (block[i] == '\n' && ++found == lines) {
+						start = position + i + 1;
+						break search;
+					}
+				}
+			}
+
+			byte[] tail = new byte[(int) (end - start)];
+			log.seek(start);
+			log.readFully(tail);
+			int from = 0;
+			if (found < lines && limit > 0) {
+				// the byte cap cut the search short, so the tail starts mid-line
+				from = firstLineStart(tail, charset);
+			}
+			return new String(tail, from, tail.length - from, charset);
+		}
+	}
+
+	/**
+	 * @return offset of the first whole line; of the first whole
+	 *         character if the bytes hold no line break
+	 */
+	private static int firstLineStart(final byte[] bytes, final Charset charset) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == '\n') {
+				return i + 1;
+			}
+		}
+		int from = 0;
+		if (StandardCharsets.UTF_8.equals(charset)) {
+			while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+				from++;
+			}
+		}
+		return from;
+	}
+
+	private static int byteAt(final RandomAccessFile file, final long position) throws IOException {
+		file.seek(position);
+		return file.read();
+	}
+
+	/**
+	 * Drops whole lines from the start until the tail fits in one message
+	 */
+	static String truncate(final String tail) {
+		byte[] bytes = tail.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= SparkMessageChunker.MAX_MESSAGE_BYTES) {
+			return tail;
+		}
+		int from = bytes.length - SparkMessageChunker.MAX_MESSAGE_BYTES;
+		int lineStart = from;
+		while (lineStart < bytes.length && bytes[lineStart - 1] != '\n') {
+			lineStart++;
+		}
+		if (lineStart < bytes.length) {
+			from = lineStart;
+		} else {
+			// one line longer than a message; keep its end, starting on a whole character
+			while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+				from++;
+			}
+		}
+		return new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+	}
+}
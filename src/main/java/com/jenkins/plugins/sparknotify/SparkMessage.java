@@ -1,13 +1,6 @@
 package com.jenkins.plugins.sparknotify;
 
-import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-
-import org.apache.commons.codec.binary.Base64;
-
 public class SparkMessage {
-	private final static String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
-
 	private String roomId;
 	private String text;
 	private String markdown;
@@ -53,24 +46,11 @@ public class SparkMessage {
 		return message != null && !message.isEmpty();
 	}
 
+	/**
+	 * @see SparkSpaceIdValidator#isValid(String)
+	 */
 	public static boolean isRoomIdValid(final String roomId) {
-		try {
-			UUID.fromString(roomId);
-			return true;
-		} catch (IllegalArgumentException e1) {
-			String roomIdDecodedFull = null;
-			try {
-				Base64 base64 = new Base64();
-				roomIdDecodedFull = new String(base64.decode(roomId), StandardCharsets.UTF_8);
-				if (!roomIdDecodedFull.startsWith(ROOM_ID_PREFIX)) {
-					return false;
-				}
-				UUID.fromString(roomIdDecodedFull.substring(ROOM_ID_PREFIX.length() + 1));
-				return true;
-			} catch (IllegalArgumentException e2) {
-				return false;
-			}
-		}
+		return SparkSpaceIdValidator.isValid(roomId);
 	}
 
 	public static class SparkMessageBuilder {
@@ -0,0 +1,428 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a message longer than the spark api accepts into parts that are
+ * each sent as their own message, in order. Parts are cut in one pass over
+ * the message, one part at a time, preferring the end of a line, then the
+ * end of a word, then any character.
+ *
+ * A markdown code block or html element open where a part is cut is closed
+ * at the end of that part and opened again at the start of the next, so each
+ * part renders on its own.
+ */
+final class SparkMessageChunker implements Iterator<String> {
+	/** the longest message the spark api accepts, in utf-8 bytes */
+	static final int MAX_MESSAGE_BYTES = 7439;
+
+	private static final int LINE = 0;
+	private static final int WORD = 1;
+	private static final int CHARACTER = 2;
+	/** inside an html tag, only when nothing else fits */
+	private static final int ANY = 3;
+
+	private static final String[] VOID_ELEMENTS = { "area", "base", "br", "col", "embed", "hr", "img", "input",
+			"link", "meta", "source", "track", "wbr" };
+
+	/**
+	 * A code block or element open at some point of the message; shared by
+	 * every point inside it, so remembering where a part could be cut costs
+	 * nothing
+	 */
+	private static final class Open {
+		private final Open parent;
+		/** the fence line or start tag, as written in the message */
+		private final String start;
+		private final String end;
+		/** html element name, or null for a code block */
+		private final String name;
+		private final char fenceChar;
+		private final int fenceLength;
+		private final int depth;
+		/** bytes to open this and every enclosing block again */
+		private final int startBytes;
+		/** bytes to close this and every enclosing block */
+		private final int endBytes;
+
+		Open(final Open parent, final String start, final String end, final String name, final char fenceChar,
+				final int fenceLength) {
+			this.parent = parent;
+			this.start = start;
+			this.end = end;
+			this.name = name;
+			this.fenceChar = fenceChar;
+			this.fenceLength = fenceLength;
+			depth = parent != null ? parent.depth + 1 : 1;
+			startBytes = utf8Length(start) + (parent != null ? parent.startBytes : 0);
+			endBytes = utf8Length(end) + (parent != null ? parent.endBytes : 0);
+		}
+	}
+
+	private final String message;
+	private final SparkMessageType messageType;
+	private final int maxBytes;
+	private int position;
+	/** blocks open at position */
+	private Open open;
+
+	// where the part being cut could end, by kind of boundary
+	private final int[] cutAt = new int[ANY + 1];
+	private final int[] cutBytes = new int[ANY + 1];
+	private final Open[] cutOpen = new Open[ANY + 1];
+
+	SparkMessageChunker(final String message, final SparkMessageType messageType) {
+		this(message, messageType, MAX_MESSAGE_BYTES);
+	}
+
+	SparkMessageChunker(final String message, final SparkMessageType messageType, final int maxBytes) {
+		this.message = message;
+		this.messageType = messageType;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the length the text is encoded to in utf-8
+	 */
+	static int utf8Length(final CharSequence text) {
+		int bytes = 0;
+		for (int i = 0; i < text.length(); i++) {
+			bytes += utf8Length(text.charAt(i));
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return bytes for the character; a surrogate pair counts four at its
+	 *         high surrogate
+	 */
+	private static int utf8Length(final char c) {
+		if (c < 0x80) {
+			return 1;
+		}
+		if (c < 0x800) {
+			return 2;
+		}
+		if (Character.isHighSurrogate(c)) {
+			return 4;
+		}
+		return Character.isLowSurrogate(c) ? 0 : 3;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < message.length();
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (open != null && open.startBytes + open.endBytes > maxBytes / 2) {
+			// too deeply nested to repeat in every part
+			open = null;
+		}
+		String part = cut();
+		if (part == null) {
+			open = null;
+			part = cut();
+		}
+		return part;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the next part, or null if not even one character fits with the
+	 *         blocks open at its start
+	 */
+	private String cut() {
+		int budget = maxBytes - (open != null ? open.startBytes : 0);
+		for (int kind = LINE; kind <= ANY; kind++) {
+			cutAt[kind] = -1;
+			cutOpen[kind] = null;
+		}
+
+		Open state = open;
+		Open pending = null;
+		int pendingAt = -1;
+		int tagEnd = -1;
+		int bytes = 0;
+		int i = position;
+		while (true) {
+			if (i == pendingAt) {
+				state = pending;
+				pendingAt = -1;
+			}
+			if (i > position && !splitsSurrogatePair(i)) {
+				int kind = boundary(i, tagEnd);
+				if (bytes + (state != null ? state.endBytes : 0) <= budget) {
+					cutAt[kind] = i;
+					cutBytes[kind] = bytes;
+					cutOpen[kind] = state;
+				}
+			}
+			if (i == message.length()) {
+				// the rest of the message fits; it closes its own blocks
+				return part(message.length(), null);
+			}
+
+			char c = message.charAt(i);
+			bytes += utf8Length(c);
+			if (bytes > budget) {
+				break;
+			}
+			if (i >= tagEnd) {
+				// nothing past what is left of the budget can end up in this part
+				int limit = (int) Math.min(message.length(), (long) i + budget - bytes + 1);
+				if (messageType == SparkMessageType.MARKDOWN && (i == 0 || message.charAt(i - 1) == '\n')
+						&& pendingAt < 0) {
+					int lineEnd = fenceLineEnd(i, state, limit);
+					if (lineEnd >= 0) {
+						pending = fence(i, lineEnd, state);
+						pendingAt = lineEnd;
+					}
+				} else if (messageType == SparkMessageType.HTML && c == '<') {
+					int end = tagEnd(i, limit);
+					if (end > message.length()) {
+						// cut anywhere inside it rather than between its words
+						tagEnd = end;
+					} else if (end > 0) {
+						tagEnd = end;
+						pending = tag(i, end, state);
+						pendingAt = end;
+					}
+				}
+			}
+			i++;
+		}
+
+		int kind = chooseCut(budget);
+		if (kind < 0) {
+			return null;
+		}
+		return part(cutAt[kind], cutOpen[kind]);
+	}
+
+	private boolean splitsSurrogatePair(final int i) {
+		return i < message.length() && Character.isLowSurrogate(message.charAt(i))
+				&& Character.isHighSurrogate(message.charAt(i - 1));
+	}
+
+	/**
+	 * @return what kind of boundary lies just before the character at i
+	 */
+	private int boundary(final int i, final int tagEnd) {
+		if (i < tagEnd) {
+			return ANY;
+		}
+		char previous = message.charAt(i - 1);
+		if (previous == '\n') {
+			return LINE;
+		}
+		if (Character.isWhitespace(previous) || messageType == SparkMessageType.HTML && previous == '>'
+				&& i == tagEnd) {
+			return WORD;
+		}
+		return CHARACTER;
+	}
+
+	/**
+	 * Prefers the end of a line unless it leaves the part less than half
+	 * full, then whichever of a line or word ends last
+	 *
+	 * @return the kind of boundary to cut at, or -1 if none fits
+	 */
+	private int chooseCut(final int budget) {
+		if (cutAt[LINE] >= 0 && cutBytes[LINE] >= budget / 2) {
+			return LINE;
+		}
+		if (cutAt[WORD] >= 0 || cutAt[LINE] >= 0) {
+			return cutAt[WORD] > cutAt[LINE] ? WORD : LINE;
+		}
+		if (cutAt[CHARACTER] >= 0) {
+			return CHARACTER;
+		}
+		return cutAt[ANY] >= 0 ? ANY : -1;
+	}
+
+	/**
+	 * @return the part from position to end, with the blocks open at either
+	 *         side opened before and closed after it
+	 */
+	private String part(final int end, final Open closing) {
+		StringBuilder part = new StringBuilder(end - position + (open != null ? open.startBytes : 0)
+				+ (closing != null ? closing.endBytes : 0));
+		if (open != null) {
+			Open[] starts = new Open[open.depth];
+			for (Open o = open; o != null; o = o.parent) {
+				starts[o.depth - 1] = o;
+			}
+			for (Open o : starts) {
+				part.append(o.start);
+			}
+		}
+		part.append(message, position, end);
+		for (Open o = closing; o != null; o = o.parent) {
+			if (o.name == null && part.length() > 0 && part.charAt(part.length() - 1) == '\n') {
+				part.append(o.end, 1, o.end.length());
+			} else {
+				part.append(o.end);
+			}
+		}
+		position = end;
+		open = closing;
+		return part.toString();
+	}
+
+	/**
+	 * @return the end of the line if the line at i opens or closes a code
+	 *         block and ends before limit, otherwise -1
+	 */
+	private int fenceLineEnd(final int i, final Open state, final int limit) {
+		int start = fenceStart(i);
+		if (start >= limit) {
+			return -1;
+		}
+		char c = message.charAt(start);
+		if (c != '`' && c != '~' || state != null && c != state.fenceChar) {
+			return -1;
+		}
+		int run = start;
+		while (run < limit && message.charAt(run) == c) {
+			run++;
+		}
+		if (run - start < 3 || state != null && run - start < state.fenceLength) {
+			return -1;
+		}
+		int lineEnd = indexOf("\n", run, limit);
+		if (lineEnd < 0 && limit < message.length()) {
+			// the line runs past this part, so its blocks never open in it
+			return -1;
+		}
+		lineEnd = lineEnd < 0 ? message.length() : lineEnd + 1;
+		if (state != null && message.substring(run, lineEnd).trim().length() > 0) {
+			// a closing fence has nothing after it
+			return -1;
+		}
+		return lineEnd;
+	}
+
+	/**
+	 * @return the blocks open after the fence line from i to lineEnd
+	 */
+	private Open fence(final int i, final int lineEnd, final Open state) {
+		if (state != null) {
+			return state.parent;
+		}
+		int start = fenceStart(i);
+		char fenceChar = message.charAt(start);
+		int run = start;
+		while (message.charAt(run) == fenceChar) {
+			run++;
+		}
+		String line = message.substring(i, lineEnd);
+		if (!line.endsWith("\n")) {
+			line += "\n";
+		}
+		String marker = message.substring(start, run);
+		return new Open(null, line, "\n" + marker, null, fenceChar, run - start);
+	}
+
+	/**
+	 * @return where the fence of the line at i would start, after up to three
+	 *         spaces of indentation
+	 */
+	private int fenceStart(final int i) {
+		int start = i;
+		while (start < message.length() && start - i < 3 && message.charAt(start) == ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * @return the index just past the tag starting at i, -1 if the '&lt;'
+	 *         does not start one, or {@link Integer#MAX_VALUE} if it does not
+	 *         end before limit
+	 */
+	private int tagEnd(final int i, final int limit) {
+		int end;
+		int endLength;
+		if (message.startsWith("<!--", i)) {
+			end = indexOf("-->", i + 4, limit);
+			endLength = 3;
+		} else {
+			if (i + 1 >= message.length()) {
+				return -1;
+			}
+			char next = message.charAt(i + 1);
+			if (!Character.isLetter(next) && next != '/' && next != '!' && next != '?') {
+				return -1;
+			}
+			end = indexOf(">", i + 1, limit);
+			endLength = 1;
+		}
+		if (end < 0) {
+			return limit < message.length() ? Integer.MAX_VALUE : -1;
+		}
+		return end + endLength;
+	}
+
+	/**
+	 * @return where text first occurs in the message between from and limit,
+	 *         or -1
+	 */
+	private int indexOf(final String text, final int from, final int limit) {
+		for (int j = from; j + text.length() <= limit; j++) {
+			if (message.startsWith(text, j)) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the elements open after the tag from i to end
+	 */
+	private Open tag(final int i, final int end, final Open state) {
+		boolean closing = message.charAt(i + 1) == '/';
+		int nameStart = closing ? i + 2 : i + 1;
+		int nameEnd = nameStart;
+		while (nameEnd < end && (Character.isLetterOrDigit(message.charAt(nameEnd))
+				|| message.charAt(nameEnd) == '-')) {
+			nameEnd++;
+		}
+		if (nameEnd == nameStart) {
+			// a comment, doctype or processing instruction
+			return state;
+		}
+		String name = message.substring(nameStart, nameEnd).toLowerCase();
+		if (closing) {
+			for (Open o = state; o != null; o = o.parent) {
+				if (name.equals(o.name)) {
+					return o.parent;
+				}
+			}
+			return state;
+		}
+		if (message.charAt(end - 2) == '/' || isVoid(name)) {
+			return state;
+		}
+		return new Open(state, message.substring(i, end), "</" + name + ">", name, '\0', 0);
+	}
+
+	private static boolean isVoid(final String name) {
+		for (String element : VOID_ELEMENTS) {
+			if (element.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,219 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Merges bursts of messages to the same space into digest messages. The first
+ * message after a quiet period is sent at once; messages that follow within
+ * the window are held and sent together when the window ends or the maximum
+ * count is reached. Messages are only merged with others sent by the same bot
+ * token, and a space's bucket is dropped once a window passes without
+ * messages.
+ *
+ * A digest that cannot be sent is queued in the outbox when that is enabled;
+ * otherwise its messages are let through the deduplicator again.
+ */
+public class SparkMessageCoalescer {
+	private static final Logger LOGGER = Logger.getLogger(SparkMessageCoalescer.class.getName());
+
+	private static final SparkMessageCoalescer INSTANCE = new SparkMessageCoalescer();
+
+	private final Map<String, Bucket> buckets = new HashMap<>();
+
+	public static SparkMessageCoalescer get() {
+		return INSTANCE;
+	}
+
+	public static boolean isEnabled() {
+		return SparkGlobalConfiguration.get().getCoalesceWindow() > 0;
+	}
+
+	/**
+	 * @param priority
+	 *            lane the message would be sent in; a digest is sent in the
+	 *            most urgent lane of its messages
+	 * @param dedupKey
+	 *            the message's claim on the deduplicator, released if the
+	 *            digest cannot be sent; may be null
+	 * @return true if the caller should send the message now; false if it was
+	 *         held for a digest
+	 */
+	public boolean offer(final SparkNotifier notifier, final String spaceId, final SparkMessageType messageType,
+			final String message, final SparkPriority priority, final String dedupKey) {
+		SparkGlobalConfiguration config = SparkGlobalConfiguration.get();
+		long windowNanos = TimeUnit.SECONDS.toNanos(config.getCoalesceWindow());
+		String key;
+		try {
+			key = notifier.getTokenKey() + '\n' + spaceId + '\n' + messageType;
+		} catch (SparkNotifyException e) {
+			// sending reports the problem with the credentials
+			return true;
+		}
+		long now = System.nanoTime();
+
+		Bucket flush = null;
+		synchronized (this) {
+			Bucket bucket = buckets.get(key);
+			if (bucket == null || (bucket.pending.isEmpty() && now - bucket.windowStart >= windowNanos)) {
+				if (bucket != null && bucket.flushTask != null) {
+					bucket.flushTask.cancel(false);
+				}
+				bucket = new Bucket(key, spaceId, messageType, now);
+				buckets.put(key, bucket);
+				// drops the bucket if nothing follows within the window
+				bucket.schedule(windowNanos);
+				return true;
+			}
+
+			// every notifier in the bucket posts with the same token, so any
+			// of them can send the digest
+			bucket.notifier = notifier.withoutLogger();
+			bucket.pending.add(message);
+			bucket.dedupKeys.add(dedupKey);
+			if (bucket.priority == null || priority.ordinal() < bucket.priority.ordinal()) {
+				bucket.priority = priority;
+			}
+			if (bucket.pending.size() >= config.getCoalesceMaxMessages()) {
+				flush = bucket;
+			} else if (bucket.flushTask == null) {
+				bucket.schedule(Math.max(0, bucket.windowStart + windowNanos - now));
+			}
+		}
+		if (flush != null) {
+			flush(flush);
+		}
+		return false;
+	}
+
+	private void flush(final Bucket bucket) {
+		final List<String> messages;
+		final List<String> dedupKeys;
+		final SparkNotifier notifier;
+		final SparkPriority priority;
+		synchronized (this) {
+			if (bucket.flushTask != null) {
+				bucket.flushTask.cancel(false);
+				bucket.flushTask = null;
+			}
+			if (bucket.pending.isEmpty()) {
+				if (buckets.get(bucket.key) == bucket) {
+					buckets.remove(bucket.key);
+				}
+				return;
+			}
+			messages = new ArrayList<>(bucket.pending);
+			bucket.pending.clear();
+			dedupKeys = new ArrayList<>(bucket.dedupKeys);
+			bucket.dedupKeys.clear();
+			notifier = bucket.notifier;
+			priority = bucket.priority;
+			bucket.priority = null;
+			// keep the window open so a continuing storm keeps being merged
+			bucket.windowStart = System.nanoTime();
+			bucket.schedule(TimeUnit.SECONDS.toNanos(SparkGlobalConfiguration.get().getCoalesceWindow()));
+		}
+
+		final String digest = join(messages, bucket.messageType);
+		// through the send lanes like any other message; the digest itself is not offered again
+		notifier.sendQueuedAsync(bucket.spaceId, digest, bucket.messageType, priority, new SparkSendCallback() {
+			@Override
+			public void completed(final List<SparkSendResult> results) {
+				SparkSendResult result = results.get(0);
+				if (!result.isSuccess()) {
+					digestFailed(notifier, bucket, digest, messages.size(), dedupKeys, result);
+				}
+			}
+		});
+	}
+
+	private static void digestFailed(final SparkNotifier notifier, final Bucket bucket, final String digest,
+			final int count, final List<String> dedupKeys, final SparkSendResult result) {
+		String reason = result.getException() != null ? result.getException().getMessage()
+				: "response code: " + result.getResponseCode();
+		SparkOutbox.Origin origin = notifier.getOrigin();
+		if (SparkGlobalConfiguration.get().isUseOutbox() && origin != null) {
+			try {
+				SparkOutbox.get().append(origin.entry(bucket.spaceId, bucket.messageType, digest));
+				LOGGER.info("Queued digest of " + count + " messages to spark space " + bucket.spaceId
+						+ " in the outbox; " + reason);
+				return;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not queue digest for spark space " + bucket.spaceId, e);
+			}
+		}
+		LOGGER.warning("Could not send digest of " + count + " messages to spark space " + bucket.spaceId + "; "
+				+ reason);
+		for (String dedupKey : dedupKeys) {
+			if (dedupKey != null) {
+				SparkDeduplicator.get().release(dedupKey);
+			}
+		}
+	}
+
+	private static String join(final List<String> messages, final SparkMessageType messageType) {
+		String separator;
+		switch (messageType) {
+		case MARKDOWN:
+			separator = "\n\n---\n\n";
+			break;
+		case HTML:
+			separator = "<br/><hr/>";
+			break;
+		default:
+			separator = "\n\n";
+			break;
+		}
+		int length = 0;
+		for (String message : messages) {
+			length += message.length() + separator.length();
+		}
+		StringBuilder digest = new StringBuilder(length);
+		for (String message : messages) {
+			if (digest.length() > 0) {
+				digest.append(separator);
+			}
+			digest.append(message);
+		}
+		return digest.toString();
+	}
+
+	private class Bucket implements Runnable {
+		private final String key;
+		private final String spaceId;
+		private final SparkMessageType messageType;
+		private final List<String> pending = new ArrayList<>();
+		/** claims of the pending messages, null where there is none */
+		private final List<String> dedupKeys = new ArrayList<>();
+		private SparkNotifier notifier;
+		/** most urgent lane of the pending messages, or null if there are none */
+		private SparkPriority priority;
+		private long windowStart;
+		private ScheduledFuture<?> flushTask;
+
+		Bucket(final String key, final String spaceId, final SparkMessageType messageType, final long windowStart) {
+			this.key = key;
+			this.spaceId = spaceId;
+			this.messageType = messageType;
+			this.windowStart = windowStart;
+		}
+
+		void schedule(final long delayNanos) {
+			flushTask = Timer.get().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void run() {
+			flush(this);
+		}
+	}
+}
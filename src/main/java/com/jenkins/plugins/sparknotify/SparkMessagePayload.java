@@ -0,0 +1,167 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * The request body for one message, encoded once and shared by every space it
+ * is sent to; only the roomId is written per space. A message with an
+ * attachment is sent as multipart form data with the file streamed in.
+ *
+ * A message longer than the spark api accepts is split by
+ * {@link SparkMessageChunker} into parts sent one after another; an attached
+ * file goes with the last part.
+ */
+public final class SparkMessagePayload {
+	private static final byte[] ROOM_ID_START = "{\"roomId\":\"".getBytes(StandardCharsets.UTF_8);
+	private static final String CRLF = "\r\n";
+
+	private final SparkMessageType messageType;
+	/** for each part, everything after the room id: the closing quote, the part and the closing brace */
+	private final byte[][] tails;
+	/** the part sent with the attachment */
+	private final String lastPart;
+
+	private final SparkAttachment attachment;
+	private final MediaType multipartType;
+	/** the boundary and headers of the roomId part */
+	private final byte[] multipartStart;
+	/** the message part and the headers of the file part */
+	private final byte[] multipartMiddle;
+	/** the closing boundary */
+	private final byte[] multipartEnd;
+
+	private SparkMessagePayload(final SparkMessageType messageType, final byte[][] tails, final String lastPart,
+			final SparkAttachment attachment) {
+		this.messageType = messageType;
+		this.tails = tails;
+		this.lastPart = lastPart;
+		this.attachment = attachment;
+		if (attachment == null) {
+			multipartType = null;
+			multipartStart = null;
+			multipartMiddle = null;
+			multipartEnd = null;
+			return;
+		}
+		String boundary = "SparkNotifier" + UUID.randomUUID().toString().replace("-", "");
+		multipartType = new MediaType("multipart", "form-data", Collections.singletonMap("boundary", boundary));
+		multipartStart = ("--" + boundary + CRLF
+				+ "Content-Disposition: form-data; name=\"roomId\"" + CRLF + CRLF).getBytes(StandardCharsets.UTF_8);
+		multipartMiddle = (CRLF + "--" + boundary + CRLF
+				+ "Content-Disposition: form-data; name=\"" + messageType + "\"" + CRLF
+				+ "Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF
+				+ lastPart + CRLF
+				+ "--" + boundary + CRLF
+				+ "Content-Disposition: form-data; name=\"files\"; filename=\"" + quote(attachment.getName()) + "\""
+				+ CRLF + "Content-Type: " + attachment.getContentType() + CRLF + CRLF)
+						.getBytes(StandardCharsets.UTF_8);
+		multipartEnd = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static SparkMessagePayload of(final String message, final SparkMessageType messageType)
+			throws SparkNotifyException {
+		if (messageType == null) {
+			throw new SparkNotifyException("Could not find message type. This shouldn't happen.");
+		}
+		byte[] field = ("\",\"" + messageType + "\":\"").getBytes(StandardCharsets.UTF_8);
+		if (SparkMessageChunker.utf8Length(message) <= SparkMessageChunker.MAX_MESSAGE_BYTES) {
+			return new SparkMessagePayload(messageType, new byte[][] { tail(field, message) }, message, null);
+		}
+		List<byte[]> tails = new ArrayList<>();
+		String part = message;
+		for (SparkMessageChunker parts = new SparkMessageChunker(message, messageType); parts.hasNext();) {
+			part = parts.next();
+			tails.add(tail(field, part));
+		}
+		return new SparkMessagePayload(messageType, tails.toArray(new byte[tails.size()][]), part, null);
+	}
+
+	private static byte[] tail(final byte[] field, final String part) {
+		byte[] value = JsonStringEncoder.getInstance().quoteAsUTF8(part);
+		byte[] tail = new byte[field.length + value.length + 2];
+		System.arraycopy(field, 0, tail, 0, field.length);
+		System.arraycopy(value, 0, tail, field.length, value.length);
+		tail[tail.length - 2] = '"';
+		tail[tail.length - 1] = '}';
+		return tail;
+	}
+
+	/**
+	 * @return the same message with a file attached
+	 */
+	public SparkMessagePayload withAttachment(final SparkAttachment attachment) {
+		return new SparkMessagePayload(messageType, tails, lastPart, attachment);
+	}
+
+	/**
+	 * @return true if the message has a file attached
+	 */
+	public boolean hasAttachment() {
+		return attachment != null;
+	}
+
+	/**
+	 * @return how many messages this one is sent as; more than one if it is
+	 *         longer than the spark api accepts
+	 */
+	public int getPartCount() {
+		return tails.length;
+	}
+
+	/**
+	 * @return true if the body of the part streams a file, so it must not be
+	 *         buffered before sending
+	 */
+	public boolean isStreamed(final int part) {
+		return attachment != null && part == tails.length - 1;
+	}
+
+	/**
+	 * @return the request entity for one part of the message to one space; may
+	 *         be posted more than once
+	 */
+	public Entity<StreamingOutput> forSpace(final String roomId, final int part) {
+		if (isStreamed(part)) {
+			final byte[] roomIdValue = roomId.getBytes(StandardCharsets.UTF_8);
+			return Entity.entity(new StreamingOutput() {
+				@Override
+				public void write(final OutputStream output) throws IOException {
+					output.write(multipartStart);
+					output.write(roomIdValue);
+					output.write(multipartMiddle);
+					attachment.writeTo(output);
+					output.write(multipartEnd);
+				}
+			}, multipartType);
+		}
+		final byte[] quotedRoomId = JsonStringEncoder.getInstance().quoteAsUTF8(roomId);
+		final byte[] tail = tails[part];
+		return Entity.entity(new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				output.write(ROOM_ID_START);
+				output.write(quotedRoomId);
+				output.write(tail);
+			}
+		}, MediaType.APPLICATION_JSON_TYPE);
+	}
+
+	/**
+	 * Keeps a file name from ending the quoted header value or the header
+	 */
+	private static String quote(final String name) {
+		return name.replace('"', '_').replace('\r', '_').replace('\n', '_');
+	}
+}
@@ -0,0 +1,296 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.EnvVars;
+
+/**
+ * A message compiled once into literal and variable segments, so rendering is
+ * a single pass that only looks up the variables the message references.
+ *
+ * Output is identical to the original two-step expansion: first every
+ * ${env.VAR} is replaced (missing variables become empty), then
+ * {@link EnvVars#expand(String)} handles $VAR, ${VAR} and $$. The rare
+ * messages where a replaced value could form a new variable reference fall
+ * back to that two-step expansion.
+ */
+public final class SparkMessageTemplate {
+	private static final Pattern ENV_PATTERN_WORKFLOW = Pattern.compile("\\$\\{env\\.(.+?)\\}");
+	private static final String ENV_PREFIX = "${env.";
+	private static final int CACHE_SIZE = 256;
+
+	private static final int LITERAL = 0;
+	private static final int ENV = 1;
+	private static final int MACRO = 2;
+
+	private static final Map<String, SparkMessageTemplate> CACHE = Collections
+			.synchronizedMap(new LinkedHashMap<String, SparkMessageTemplate>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, SparkMessageTemplate> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private final String source;
+	private final int[] kinds;
+	/** literal text, or the variable name */
+	private final String[] texts;
+	/** the reference as written, kept when a macro cannot be resolved */
+	private final String[] raws;
+	private final int literalLength;
+	private final boolean legacy;
+
+	private SparkMessageTemplate(final String source, final int[] kinds, final String[] texts, final String[] raws,
+			final boolean legacy) {
+		this.source = source;
+		this.kinds = kinds;
+		this.texts = texts;
+		this.raws = raws;
+		this.legacy = legacy;
+		int length = 0;
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] == LITERAL) {
+				length += texts[i].length();
+			}
+		}
+		literalLength = length;
+	}
+
+	public static SparkMessageTemplate compile(final String message) {
+		return compile(message, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * @param presets
+	 *            values substituted for ${NAME} before any environment
+	 *            expansion, e.g. BUILD_RESULT
+	 */
+	public static SparkMessageTemplate compile(final String message, final Map<String, String> presets) {
+		String key = message;
+		if (!presets.isEmpty()) {
+			StringBuilder keyBuilder = new StringBuilder(message);
+			for (Map.Entry<String, String> preset : new TreeMap<>(presets).entrySet()) {
+				keyBuilder.append('\0').append(preset.getKey()).append('=').append(preset.getValue());
+			}
+			key = keyBuilder.toString();
+		}
+
+		SparkMessageTemplate template = CACHE.get(key);
+		if (template == null) {
+			String source = message;
+			for (Map.Entry<String, String> preset : presets.entrySet()) {
+				source = source.replace("${" + preset.getKey() + "}", preset.getValue());
+			}
+			template = parse(source);
+			CACHE.put(key, template);
+		}
+		return template;
+	}
+
+	public String render(final EnvVars env) {
+		if (env == null) {
+			return source;
+		}
+		if (legacy) {
+			return replaceEnvVars(source, env);
+		}
+
+		String[] values = new String[kinds.length];
+		int length = literalLength;
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case ENV:
+				values[i] = env.get(texts[i], "");
+				if (values[i].indexOf('$') >= 0) {
+					// the value itself would be expanded by the second step
+					return replaceEnvVars(source, env);
+				}
+				break;
+			case MACRO:
+				values[i] = env.get(texts[i]);
+				if (values[i] == null) {
+					values[i] = raws[i];
+				}
+				break;
+			default:
+				values[i] = texts[i];
+				continue;
+			}
+			length += values[i].length();
+		}
+
+		StringBuilder rendered = new StringBuilder(length);
+		for (String value : values) {
+			rendered.append(value);
+		}
+		return rendered.toString();
+	}
+
+	/**
+	 * The original two-step expansion, used when segments could interact
+	 */
+	static String replaceEnvVars(String message, final EnvVars env) {
+		// Normal and ${env.VAR} matching for pipeline consistency
+
+		Matcher workflowMatcher = ENV_PATTERN_WORKFLOW.matcher(message);
+		while (workflowMatcher.find()) {
+			String var = workflowMatcher.group(1);
+			message = message.replace("${env." + var + "}", env.get(var, ""));
+		}
+
+		return env.expand(message);
+	}
+
+	private static SparkMessageTemplate parse(final String source) {
+		List<Integer> kinds = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		List<String> raws = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		boolean legacy = false;
+
+		int gapStart = 0;
+		int search = 0;
+		while (true) {
+			int start = source.indexOf(ENV_PREFIX, search);
+			if (start < 0) {
+				break;
+			}
+			int end = findEnvEnd(source, start + ENV_PREFIX.length());
+			if (end < 0) {
+				search = start + 1;
+				continue;
+			}
+			String name = source.substring(start + ENV_PREFIX.length(), end);
+			if (name.indexOf('$') >= 0 || name.indexOf('{') >= 0 || name.indexOf('}') >= 0
+					|| (start > 0 && isMacroChar(source.charAt(start - 1)))) {
+				// the replaced value would join the text around it
+				legacy = true;
+			}
+			parseMacros(source, gapStart, start, literal, kinds, texts, raws);
+			flushLiteral(literal, kinds, texts, raws);
+			kinds.add(ENV);
+			texts.add(name);
+			raws.add(null);
+			gapStart = end + 1;
+			search = gapStart;
+		}
+		parseMacros(source, gapStart, source.length(), literal, kinds, texts, raws);
+		flushLiteral(literal, kinds, texts, raws);
+
+		int[] kindArray = new int[kinds.size()];
+		for (int i = 0; i < kindArray.length; i++) {
+			kindArray[i] = kinds.get(i);
+		}
+		return new SparkMessageTemplate(source, kindArray, texts.toArray(new String[texts.size()]),
+				raws.toArray(new String[raws.size()]), legacy);
+	}
+
+	/**
+	 * Same as the lazy "(.+?)\}" in the ${env.VAR} pattern
+	 *
+	 * @return index of the closing brace, or -1 if there is no match here
+	 */
+	private static int findEnvEnd(final String source, final int nameStart) {
+		if (nameStart >= source.length() || isLineTerminator(source.charAt(nameStart))) {
+			return -1;
+		}
+		for (int i = nameStart + 1; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if (c == '}') {
+				return i;
+			}
+			if (isLineTerminator(c)) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits text between ${env.VAR} references like
+	 * {@link hudson.Util#replaceMacro(String, java.util.Map)}: $VAR, ${VAR}
+	 * and $$
+	 */
+	private static void parseMacros(final String source, final int from, final int to, final StringBuilder literal,
+			final List<Integer> kinds, final List<String> texts, final List<String> raws) {
+		int i = from;
+		while (i < to) {
+			char c = source.charAt(i);
+			if (c != '$' || i + 1 >= to) {
+				literal.append(c);
+				i++;
+				continue;
+			}
+			char next = source.charAt(i + 1);
+			if (next == '$') {
+				literal.append('$');
+				i += 2;
+			} else if (isNameChar(next)) {
+				int end = i + 2;
+				while (end < to && isNameChar(source.charAt(end))) {
+					end++;
+				}
+				addMacro(source, i, end, source.substring(i + 1, end), literal, kinds, texts, raws);
+				i = end;
+			} else if (next == '{') {
+				int end = i + 2;
+				while (end < to && (isNameChar(source.charAt(end)) || source.charAt(end) == '.')) {
+					end++;
+				}
+				if (end > i + 2 && end < to && source.charAt(end) == '}') {
+					addMacro(source, i, end + 1, source.substring(i + 2, end), literal, kinds, texts, raws);
+					i = end + 1;
+				} else {
+					literal.append(c);
+					i++;
+				}
+			} else {
+				literal.append(c);
+				i++;
+			}
+		}
+	}
+
+	private static void addMacro(final String source, final int start, final int end, final String name,
+			final StringBuilder literal, final List<Integer> kinds, final List<String> texts, final List<String> raws) {
+		flushLiteral(literal, kinds, texts, raws);
+		kinds.add(MACRO);
+		texts.add(name);
+		raws.add(source.substring(start, end));
+	}
+
+	private static void flushLiteral(final StringBuilder literal, final List<Integer> kinds, final List<String> texts,
+			final List<String> raws) {
+		if (literal.length() > 0) {
+			kinds.add(LITERAL);
+			texts.add(literal.toString());
+			raws.add(null);
+			literal.setLength(0);
+		}
+	}
+
+	private static boolean isNameChar(final char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	/**
+	 * @return true if the character could be part of a variable reference
+	 *         that continues into the following text
+	 */
+	private static boolean isMacroChar(final char c) {
+		return isNameChar(c) || c == '$' || c == '{' || c == '.';
+	}
+
+	private static boolean isLineTerminator(final char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
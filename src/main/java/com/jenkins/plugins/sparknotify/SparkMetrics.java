@@ -0,0 +1,249 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request latency, outcome and in-flight counts for the spark api. Recording
+ * only touches atomics, so it is cheap enough for every request.
+ */
+public final class SparkMetrics {
+	/** upper bounds of the latency buckets, in milliseconds */
+	private static final long[] BUCKETS_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+	private static final long[] BUCKETS_NANOS = new long[BUCKETS_MILLIS.length];
+
+	static {
+		for (int i = 0; i < BUCKETS_MILLIS.length; i++) {
+			BUCKETS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BUCKETS_MILLIS[i]);
+		}
+	}
+
+	/** requests timed before latency percentiles are reported */
+	private static final long MIN_PERCENTILE_SAMPLES = 100;
+
+	/** distinct spaces or credentials tracked before the rest share one series */
+	private static final int MAX_LABELS = 500;
+	private static final String OTHER_LABEL = "other";
+
+	private static final String[] RESPONSE_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+	private static final String[] ERROR_TYPES = { "socket", "timeout", "io", "spark_notify", "runtime" };
+	private static final int SOCKET = 0;
+	private static final int TIMEOUT = 1;
+	private static final int IO = 2;
+	private static final int SPARK_NOTIFY = 3;
+	private static final int RUNTIME = 4;
+
+	private static final SparkMetrics INSTANCE = new SparkMetrics();
+
+	private final ConcurrentMap<String, Histogram> bySpace = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> byCredentials = new ConcurrentHashMap<>();
+	private final Histogram all = new Histogram();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	private final AtomicLongArray responses = new AtomicLongArray(RESPONSE_CLASSES.length);
+	private final AtomicLongArray errors = new AtomicLongArray(ERROR_TYPES.length);
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	public static SparkMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return start time to pass to {@link #requestCompleted} or
+	 *         {@link #requestFailed}
+	 */
+	public long requestStarted() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	public void requestCompleted(final String spaceId, final String credentialsKey, final long started,
+			final int status) {
+		finish(spaceId, credentialsKey, started);
+		int responseClass = status / 100 - 1;
+		if (responseClass >= 0 && responseClass < RESPONSE_CLASSES.length) {
+			responses.incrementAndGet(responseClass);
+		}
+	}
+
+	public void requestFailed(final String spaceId, final String credentialsKey, final long started,
+			final Exception e) {
+		finish(spaceId, credentialsKey, started);
+		errors.incrementAndGet(errorType(e));
+	}
+
+	private void finish(final String spaceId, final String credentialsKey, final long started) {
+		inFlight.decrementAndGet();
+		record(spaceId, credentialsKey, System.nanoTime() - started);
+	}
+
+	/**
+	 * Records how long a request took, without touching the in-flight count
+	 */
+	void record(final String spaceId, final String credentialsKey, final long elapsedNanos) {
+		all.record(elapsedNanos);
+		histogram(bySpace, spaceId).record(elapsedNanos);
+		histogram(byCredentials, credentialsKey).record(elapsedNanos);
+	}
+
+	/**
+	 * Records a request sent again on another connection
+	 */
+	void hedgeSent() {
+		hedges.incrementAndGet();
+	}
+
+	/**
+	 * Records a hedged copy of a request that got to send its body first
+	 */
+	void hedgeWon() {
+		hedgesWon.incrementAndGet();
+	}
+
+	/**
+	 * @return the upper bound of the latency bucket holding the percentile of
+	 *         every request so far, or -1 if too few were timed or it is
+	 *         slower than the slowest bucket
+	 */
+	long latencyPercentileNanos(final int percentile) {
+		long count = 0;
+		for (int i = 0; i <= BUCKETS_NANOS.length; i++) {
+			count += all.buckets.get(i);
+		}
+		if (count < MIN_PERCENTILE_SAMPLES) {
+			return -1;
+		}
+		long rank = (count * percentile + 99) / 100;
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS_NANOS.length; i++) {
+			cumulative += all.buckets.get(i);
+			if (cumulative >= rank) {
+				return BUCKETS_NANOS[i];
+			}
+		}
+		return -1;
+	}
+
+	private static int errorType(final Exception e) {
+		if (e instanceof SocketException) {
+			return SOCKET;
+		}
+		if (e instanceof SocketTimeoutException) {
+			return TIMEOUT;
+		}
+		if (e instanceof SparkNotifyException) {
+			return SPARK_NOTIFY;
+		}
+		if (e instanceof IOException) {
+			return IO;
+		}
+		return RUNTIME;
+	}
+
+	private static Histogram histogram(final ConcurrentMap<String, Histogram> histograms, final String label) {
+		String key = label != null ? label : OTHER_LABEL;
+		Histogram histogram = histograms.get(key);
+		if (histogram == null) {
+			if (histograms.size() >= MAX_LABELS) {
+				key = OTHER_LABEL;
+				histogram = histograms.get(key);
+			}
+			if (histogram == null) {
+				Histogram created = new Histogram();
+				histogram = histograms.putIfAbsent(key, created);
+				if (histogram == null) {
+					histogram = created;
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Writes every metric in the prometheus text exposition format
+	 */
+	public void writeTo(final StringBuilder out) {
+		out.append("# HELP spark_notifier_requests_in_flight Requests to the spark api awaiting a response\n");
+		out.append("# TYPE spark_notifier_requests_in_flight gauge\n");
+		out.append("spark_notifier_requests_in_flight ").append(inFlight.get()).append('\n');
+
+		out.append("# HELP spark_notifier_concurrency_limit Messages allowed to be sent to the spark api at once\n");
+		out.append("# TYPE spark_notifier_concurrency_limit gauge\n");
+		out.append("spark_notifier_concurrency_limit ").append(SparkConcurrencyLimit.get().getLimit()).append('\n');
+
+		out.append("# HELP spark_notifier_responses_total Responses from the spark api by status class\n");
+		out.append("# TYPE spark_notifier_responses_total counter\n");
+		for (int i = 0; i < RESPONSE_CLASSES.length; i++) {
+			out.append("spark_notifier_responses_total{class=\"").append(RESPONSE_CLASSES[i]).append("\"} ")
+					.append(responses.get(i)).append('\n');
+		}
+
+		out.append("# HELP spark_notifier_errors_total Requests that failed without a response, by exception type\n");
+		out.append("# TYPE spark_notifier_errors_total counter\n");
+		for (int i = 0; i < ERROR_TYPES.length; i++) {
+			out.append("spark_notifier_errors_total{type=\"").append(ERROR_TYPES[i]).append("\"} ")
+					.append(errors.get(i)).append('\n');
+		}
+
+		out.append("# HELP spark_notifier_hedged_requests_total Requests sent again on another connection\n");
+		out.append("# TYPE spark_notifier_hedged_requests_total counter\n");
+		out.append("spark_notifier_hedged_requests_total ").append(hedges.get()).append('\n');
+		out.append("# HELP spark_notifier_hedged_requests_won_total Hedged requests that sent their body first\n");
+		out.append("# TYPE spark_notifier_hedged_requests_won_total counter\n");
+		out.append("spark_notifier_hedged_requests_won_total ").append(hedgesWon.get()).append('\n');
+
+		writeHistograms(out, "spark_notifier_space_request_seconds", "space", "Spark api request latency by space",
+				bySpace);
+		writeHistograms(out, "spark_notifier_credentials_request_seconds", "credentials",
+				"Spark api request latency by credentials id", byCredentials);
+	}
+
+	private static void writeHistograms(final StringBuilder out, final String name, final String labelName,
+			final String help, final Map<String, Histogram> histograms) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+			String label = labelName + "=\"" + escape(entry.getKey()) + "\"";
+			Histogram histogram = entry.getValue();
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS_MILLIS.length; i++) {
+				cumulative += histogram.buckets.get(i);
+				out.append(name).append("_bucket{").append(label).append(",le=\"")
+						.append(BUCKETS_MILLIS[i] / 1000.0).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += histogram.buckets.get(BUCKETS_MILLIS.length);
+			out.append(name).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+			out.append(name).append("_sum{").append(label).append("} ")
+					.append(histogram.sumNanos.get() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+			out.append(name).append("_count{").append(label).append("} ").append(cumulative).append('\n');
+		}
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static final class Histogram {
+		/** one count per bucket plus one for everything slower */
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MILLIS.length + 1);
+		private final AtomicLong sumNanos = new AtomicLong();
+
+		void record(final long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKETS_NANOS.length && nanos > BUCKETS_NANOS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			sumNanos.addAndGet(nanos);
+		}
+	}
+}
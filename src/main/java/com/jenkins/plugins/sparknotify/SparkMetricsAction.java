@@ -0,0 +1,45 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Serves {@link SparkMetrics} at /spark-metrics/ in the prometheus text
+ * format, for administrators and their scrapers
+ */
+@Extension
+public class SparkMetricsAction implements RootAction {
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Notifier Metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "spark-metrics";
+	}
+
+	public void doIndex(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		StringBuilder metrics = new StringBuilder(4096);
+		SparkMetrics.get().writeTo(metrics);
+		rsp.setContentType(CONTENT_TYPE);
+		PrintWriter writer = rsp.getWriter();
+		writer.print(metrics);
+		writer.flush();
+	}
+}
@@ -0,0 +1,189 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+/**
+ * Per-space timings of every spark notification sent by a run, shown on the
+ * build page. Only a handful of ints per space are stored so build records
+ * stay small.
+ */
+public class SparkNotificationAction implements Action {
+	private static final Logger LOGGER = Logger.getLogger(SparkNotificationAction.class.getName());
+
+	/** entries kept per run; a run notifying more spaces keeps the first ones */
+	private static final int MAX_ENTRIES = 200;
+	private static final int MAX_ERROR_LENGTH = 200;
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * Adds the results of one notification step to the run's action and saves
+	 * the run
+	 *
+	 * @param step
+	 *            which step sent the notifications, as shown to the user
+	 * @param credentialsNanos
+	 *            time spent resolving credentials
+	 */
+	public static void record(final Run<?, ?> run, final String step, final long credentialsNanos,
+			final List<SparkSendResult> results) {
+		if (run == null) {
+			return;
+		}
+		synchronized (SparkNotificationAction.class) {
+			SparkNotificationAction action = run.getAction(SparkNotificationAction.class);
+			if (action == null) {
+				action = new SparkNotificationAction();
+				run.addAction(action);
+			}
+			action.add(step, credentialsNanos, results);
+		}
+		try {
+			run.save();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save spark notification trace for " + run, e);
+		}
+	}
+
+	private synchronized void add(final String step, final long credentialsNanos,
+			final List<SparkSendResult> results) {
+		for (SparkSendResult result : results) {
+			if (entries.size() >= MAX_ENTRIES) {
+				return;
+			}
+			entries.add(new Entry(step, credentialsNanos, result));
+		}
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Notifications";
+	}
+
+	@Override
+	public String getUrlName() {
+		return null;
+	}
+
+	public static class Entry {
+		private final String step;
+		private final String spaceId;
+		/** http status, -1 if there was no response, 202 if queued */
+		private final int status;
+		/** set if there was no response */
+		private final String error;
+		private final boolean queued;
+		private final boolean suppressed;
+		private final int attempts;
+		private final int renderMillis;
+		private final int credentialsMillis;
+		private final int delayMillis;
+		private final int connectMillis;
+		private final int responseMillis;
+
+		Entry(final String step, final long credentialsNanos, final SparkSendResult result) {
+			this.step = step;
+			spaceId = result.getSpaceId();
+			status = result.getResponseCode();
+			Exception e = result.getException();
+			error = e == null ? null
+					: StringUtils.abbreviate(e.getClass().getSimpleName()
+							+ (e.getMessage() == null ? "" : ": " + e.getMessage()), MAX_ERROR_LENGTH);
+			queued = result.isQueued();
+			suppressed = result.isSuppressed();
+			credentialsMillis = millis(credentialsNanos);
+			SparkSendTiming timing = result.getTiming();
+			if (timing != null) {
+				attempts = timing.getAttempts();
+				renderMillis = millis(timing.getRenderNanos());
+				delayMillis = millis(timing.getDelayNanos());
+				connectMillis = millis(timing.getConnectNanos());
+				responseMillis = millis(timing.getResponseNanos());
+			} else {
+				attempts = 0;
+				renderMillis = 0;
+				delayMillis = 0;
+				connectMillis = 0;
+				responseMillis = 0;
+			}
+		}
+
+		private static int millis(final long nanos) {
+			return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(nanos));
+		}
+
+		public String getStep() {
+			return step;
+		}
+
+		public String getSpaceId() {
+			return spaceId;
+		}
+
+		/**
+		 * @return the response code, the error, or that the message was queued
+		 *         or suppressed
+		 */
+		public String getOutcome() {
+			if (queued) {
+				return "queued";
+			}
+			if (suppressed) {
+				return "suppressed";
+			}
+			return error != null ? error : String.valueOf(status);
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public int getRenderMillis() {
+			return renderMillis;
+		}
+
+		public int getCredentialsMillis() {
+			return credentialsMillis;
+		}
+
+		/**
+		 * @return time spent waiting for a sender thread, the rate limiter and
+		 *         retry backoff
+		 */
+		public int getDelayMillis() {
+			return delayMillis;
+		}
+
+		public int getConnectMillis() {
+			return connectMillis;
+		}
+
+		public int getResponseMillis() {
+			return responseMillis;
+		}
+	}
+}
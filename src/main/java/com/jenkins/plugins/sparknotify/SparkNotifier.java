@@ -1,51 +1,1097 @@
 package com.jenkins.plugins.sparknotify;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 
 import com.cloudbees.plugins.credentials.Credentials;
-import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
-import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
 
 import hudson.EnvVars;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
 
 public class SparkNotifier {
-	private static final String SPARK_MSG_POST_URL = "https://api.ciscospark.com/v1/messages";
-	private static final Pattern ENV_PATTERN_WORKFLOW = Pattern.compile("\\$\\{env\\.(.+?)\\}");
-	private static final Client DEFAULT_CLIENT = ClientBuilder.newBuilder().register(JacksonJsonProvider.class).build();
+	private static final String MESSAGES_PATH = "/messages";
+	private static final String RETRY_AFTER = "Retry-After";
+	private static final int MAX_RATE_LIMIT_RETRIES = 5;
+
+	private static ThreadPoolExecutor sendExecutor;
 
 	private final Credentials credentials;
 	private final EnvVars env;
+	private final PrintStream logger;
+	/** seconds a send may take, or 0 for the global send timeout */
+	private final int timeout;
+	/** where a message that cannot be sent now may be queued from, or null */
+	private final SparkOutbox.Origin origin;
 
 	public SparkNotifier(final Credentials credentials, final EnvVars env) {
+		this(credentials, env, null);
+	}
+
+	/**
+	 * @param logger
+	 *            build log for rate limiting and retry messages; may be null
+	 */
+	public SparkNotifier(final Credentials credentials, final EnvVars env, final PrintStream logger) {
+		this(credentials, env, logger, 0, null);
+	}
+
+	private SparkNotifier(final Credentials credentials, final EnvVars env, final PrintStream logger,
+			final int timeout, final SparkOutbox.Origin origin) {
 		this.credentials = credentials;
 		this.env = env;
+		this.logger = logger;
+		this.timeout = timeout;
+		this.origin = origin;
+	}
+
+	/**
+	 * @return a notifier with the same credentials that does not write to the
+	 *         build log, for sends that outlive the build
+	 */
+	SparkNotifier withoutLogger() {
+		return new SparkNotifier(credentials, null, null, timeout, origin);
+	}
+
+	/**
+	 * @param timeout
+	 *            seconds each send may take to reach a space, or 0 for the
+	 *            global send timeout
+	 * @return a notifier that gives up on sends after the timeout
+	 */
+	public SparkNotifier withTimeout(final int timeout) {
+		return new SparkNotifier(credentials, env, logger, Math.max(0, timeout), origin);
+	}
+
+	/**
+	 * @param credentialsId
+	 *            the id the credentials were found by for the run
+	 * @return a notifier whose digests can be queued in the outbox if they
+	 *         cannot be sent
+	 */
+	SparkNotifier withOrigin(final Run<?, ?> run, final String credentialsId) {
+		return new SparkNotifier(credentials, env, logger, timeout, new SparkOutbox.Origin(run, credentialsId));
+	}
+
+	/**
+	 * @return the build and credentials id messages are sent for, or null if
+	 *         unknown
+	 */
+	SparkOutbox.Origin getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return the message with environment variables expanded, as it would be
+	 *         sent
+	 */
+	public String renderMessage(final String message) {
+		return renderMessage(SparkMessageTemplate.compile(message));
+	}
+
+	public String renderMessage(final SparkMessageTemplate template) {
+		return template.render(env);
+	}
+
+	public int sendMessage(final String roomId, final String message, final SparkMessageType messageType)
+			throws IOException {
+		return postMessage(roomId, SparkMessagePayload.of(renderMessage(message), messageType), new SparkSendTiming(0),
+				deadlineFromNow());
+	}
+
+	/**
+	 * Sends the same message to every space concurrently on the shared sender
+	 * pool; the message is only rendered once
+	 *
+	 * @return one result per space, in the same order as spaceIds
+	 */
+	public List<SparkSendResult> sendMessages(final List<String> spaceIds, final String message,
+			final SparkMessageType messageType) throws InterruptedException {
+		return sendMessages(spaceIds, SparkMessageTemplate.compile(message), messageType);
+	}
+
+	/**
+	 * @see #sendMessages(List, String, SparkMessageType)
+	 */
+	public List<SparkSendResult> sendMessages(final List<String> spaceIds, final SparkMessageTemplate template,
+			final SparkMessageType messageType) throws InterruptedException {
+		long deadlineNanos = deadlineFromNow();
+		long renderStarted = System.nanoTime();
+		String message = renderMessage(template);
+		long renderNanos = System.nanoTime() - renderStarted;
+		SparkMessagePayload payload;
+		try {
+			payload = SparkMessagePayload.of(message, messageType);
+		} catch (SparkNotifyException e) {
+			return failures(spaceIds, e);
+		}
+		return sendRendered(spaceIds, message, messageType, payload, renderNanos, SparkPriority.NORMAL, deadlineNanos);
+	}
+
+	/**
+	 * Sends an already rendered and serialized message to every space
+	 * concurrently on the shared sender pool, once the send lanes admit it
+	 *
+	 * @param renderNanos
+	 *            time spent rendering the message, for the per-run trace
+	 * @param priority
+	 *            lane the message waits in while the sender pool is busy
+	 * @param deadlineNanos
+	 *            when every space must have the message, including the time
+	 *            spent before this call, see {@link #deadlineFromNow()}
+	 * @return one result per space, in the same order as spaceIds
+	 */
+	public List<SparkSendResult> sendRendered(final List<String> spaceIds, final String message,
+			final SparkMessageType messageType, final SparkMessagePayload payload, final long renderNanos,
+			final SparkPriority priority, final long deadlineNanos) throws InterruptedException {
+		String contentHash = contentHash(message, payload);
+		// a single space is posted on the calling thread once it has a slot
+		boolean inline = spaceIds.size() == 1;
+		CountDownLatch finished = new CountDownLatch(spaceIds.size());
+		List<LaneSend> sends = new ArrayList<>(spaceIds.size());
+		boolean timedOut = false;
+		try {
+			for (String spaceId : spaceIds) {
+				LaneSend send = new LaneSend(spaceId, payload, new SparkSendTiming(renderNanos), priority,
+						finished, inline, deadlineNanos);
+				sends.add(send);
+				SparkSendResult early = admit(spaceId, message, messageType, contentHash, payload, priority, send);
+				if (early != null) {
+					send.finish(early);
+				} else if (SparkSendLanes.get().submit(send, true, deadlineNanos)) {
+					send.submitted = true;
+				} else {
+					// the lane stayed full until the deadline
+					send.finish(SparkSendResult.failure(spaceId, timeoutException(), send.timing));
+				}
+			}
+			if (inline && finished.getCount() > 0) {
+				sends.get(0).runWhenGranted();
+			}
+			timedOut = !finished.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} finally {
+			if (finished.getCount() > 0) {
+				for (LaneSend send : sends) {
+					send.cancel(timedOut ? timeoutException()
+							: new SparkNotifyException("Could not send message because the build was interrupted"));
+				}
+			}
+		}
+
+		List<SparkSendResult> results = new ArrayList<>(sends.size());
+		for (LaneSend send : sends) {
+			// a send already posting finishes in the background
+			SparkSendResult result = send.result;
+			results.add(result != null ? result
+					: SparkSendResult.failure(send.spaceId, timeoutException()));
+		}
+		return results;
+	}
+
+	/**
+	 * Claims the message against repeats and offers it to the coalescer
+	 *
+	 * @param contentHash
+	 *            hash of the message to suppress repeats by, or null if
+	 *            suppression is disabled
+	 * @return the result if the message is not to be posted now, otherwise
+	 *         null
+	 */
+	private SparkSendResult admit(final String roomId, final String message, final SparkMessageType messageType,
+			final String contentHash, final SparkMessagePayload payload, final SparkPriority priority,
+			final LaneSend send) {
+		if (contentHash != null) {
+			send.dedupKey = SparkDeduplicator.get().claim(roomId, messageType, contentHash);
+			if (send.dedupKey == null) {
+				return SparkSendResult.suppressed(roomId);
+			}
+		}
+		if (SparkMessageCoalescer.isEnabled() && !payload.hasAttachment()
+				&& !SparkMessageCoalescer.get().offer(this, roomId, messageType, message, priority, send.dedupKey)) {
+			return SparkSendResult.queued(roomId);
+		}
+		return null;
+	}
+
+	/**
+	 * One blocking delivery to a single space, posted on the sender pool, or
+	 * the calling thread, once the send lanes give it a slot
+	 */
+	private final class LaneSend extends SparkSendLanes.Task implements Runnable {
+		private final String spaceId;
+		private final SparkMessagePayload payload;
+		private final SparkSendTiming timing;
+		private final CountDownLatch finished;
+		private final boolean inline;
+		private final long deadlineNanos;
+		private final CountDownLatch granted = new CountDownLatch(1);
+		/** set once by whichever of run and cancel gets the slot first */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private String dedupKey;
+		/** false while waiting for room in a full lane */
+		private boolean submitted;
+		private volatile Future<?> running;
+		private volatile SparkSendResult result;
+
+		LaneSend(final String spaceId, final SparkMessagePayload payload, final SparkSendTiming timing,
+				final SparkPriority priority, final CountDownLatch finished, final boolean inline,
+				final long deadlineNanos) {
+			super(priority);
+			this.spaceId = spaceId;
+			this.payload = payload;
+			this.timing = timing;
+			this.finished = finished;
+			this.inline = inline;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		@Override
+		void start() {
+			if (inline) {
+				granted.countDown();
+			} else {
+				running = getSendExecutor().submit(this);
+			}
+		}
+
+		@Override
+		void rejected(final SparkNotifyException e) {
+			finish(SparkSendResult.failure(spaceId, e, timing));
+			granted.countDown();
+		}
+
+		/**
+		 * Posts on the calling thread once the send lanes give it a slot, unless
+		 * the deadline passes first
+		 */
+		void runWhenGranted() throws InterruptedException {
+			if (granted.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS) && result == null) {
+				run();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) {
+				return;
+			}
+			SparkSendResult sent = null;
+			try {
+				sent = post(spaceId, payload, timing, deadlineNanos);
+			} finally {
+				finish(sent != null ? sent : SparkSendResult.failure(spaceId, new SparkNotifyException(
+						"Could not send message because of an unknown issue; please file an issue"), timing));
+				SparkSendLanes.get().release();
+			}
+		}
+
+		void finish(final SparkSendResult sent) {
+			releaseIfNotSent(dedupKey, sent);
+			result = sent;
+			finished.countDown();
+		}
+
+		/**
+		 * Gives up the send after the caller was interrupted or timed out
+		 */
+		void cancel(final SparkNotifyException reason) {
+			if (result != null) {
+				return;
+			}
+			if (!submitted || SparkSendLanes.get().cancel(this)) {
+				finish(SparkSendResult.failure(spaceId, reason, timing));
+				return;
+			}
+			if (claimed.compareAndSet(false, true)) {
+				// granted a slot but not yet posting
+				finish(SparkSendResult.failure(spaceId, reason, timing));
+				SparkSendLanes.get().release();
+				return;
+			}
+			Future<?> future = running;
+			if (future != null) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Sends the same message to every space without blocking the calling
+	 * thread; responses are handled on the http client's bounded async pool
+	 *
+	 * @param callback
+	 *            invoked once, after every space has a result, with results in
+	 *            the same order as spaceIds
+	 */
+	public void sendMessagesAsync(final List<String> spaceIds, final String message,
+			final SparkMessageType messageType, final SparkSendCallback callback) {
+		sendMessagesAsync(spaceIds, SparkMessageTemplate.compile(message), messageType, callback);
+	}
+
+	/**
+	 * @see #sendMessagesAsync(List, String, SparkMessageType, SparkSendCallback)
+	 */
+	public void sendMessagesAsync(final List<String> spaceIds, final SparkMessageTemplate template,
+			final SparkMessageType messageType, final SparkSendCallback callback) {
+		long deadlineNanos = deadlineFromNow();
+		long renderStarted = System.nanoTime();
+		String message = renderMessage(template);
+		long renderNanos = System.nanoTime() - renderStarted;
+		SparkMessagePayload payload;
+		try {
+			payload = SparkMessagePayload.of(message, messageType);
+		} catch (SparkNotifyException e) {
+			callback.completed(failures(spaceIds, e));
+			return;
+		}
+		sendRenderedAsync(spaceIds, message, messageType, payload, renderNanos, SparkPriority.NORMAL, deadlineNanos,
+				callback);
+	}
+
+	/**
+	 * Sends an already rendered and serialized message to every space without
+	 * blocking the calling thread; when the message's lane is full it is
+	 * rejected rather than waiting, whatever the overload policy
+	 *
+	 * @see #sendMessagesAsync(List, String, SparkMessageType, SparkSendCallback)
+	 * @see #sendRendered(List, String, SparkMessageType, SparkMessagePayload, long, SparkPriority, long)
+	 */
+	public void sendRenderedAsync(final List<String> spaceIds, final String message,
+			final SparkMessageType messageType, final SparkMessagePayload payload, final long renderNanos,
+			final SparkPriority priority, final long deadlineNanos, final SparkSendCallback callback) {
+		if (spaceIds.isEmpty()) {
+			callback.completed(new ArrayList<SparkSendResult>());
+			return;
+		}
+
+		String contentHash = contentHash(message, payload);
+		final AtomicReferenceArray<SparkSendResult> results = new AtomicReferenceArray<>(spaceIds.size());
+		final AtomicInteger remaining = new AtomicInteger(spaceIds.size());
+
+		for (int i = 0; i < spaceIds.size(); i++) {
+			final int index = i;
+			final String spaceId = spaceIds.get(i);
+			final String dedupKey = contentHash != null
+					? SparkDeduplicator.get().claim(spaceId, messageType, contentHash) : null;
+			final AsyncSend send = new AsyncSend(spaceId, new SparkSendTiming(renderNanos), deadlineNanos) {
+				@Override
+				void finished(final SparkSendResult result) {
+					releaseIfNotSent(dedupKey, result);
+					results.set(index, result);
+					if (remaining.decrementAndGet() == 0) {
+						List<SparkSendResult> ordered = new ArrayList<>(results.length());
+						for (int k = 0; k < results.length(); k++) {
+							ordered.add(results.get(k));
+						}
+						callback.completed(ordered);
+					}
+				}
+			};
+
+			if (contentHash != null && dedupKey == null) {
+				send.done(SparkSendResult.suppressed(spaceId));
+				continue;
+			}
+
+			if (SparkMessageCoalescer.isEnabled() && !payload.hasAttachment()
+					&& !SparkMessageCoalescer.get().offer(this, spaceId, messageType, message, priority, dedupKey)) {
+				send.done(SparkSendResult.queued(spaceId));
+				continue;
+			}
+
+			submitAsync(send, payload, priority, deadlineNanos);
+		}
+	}
+
+	/**
+	 * Sends a message from the outbox, or a digest, through the send lanes
+	 * without blocking the calling thread; repeats were suppressed and digests
+	 * offered when it was queued
+	 *
+	 * @param callback
+	 *            invoked once, with the single result
+	 */
+	void sendQueuedAsync(final String spaceId, final String message, final SparkMessageType messageType,
+			final SparkPriority priority, final SparkSendCallback callback) {
+		long deadlineNanos = deadlineFromNow();
+		AsyncSend send = new AsyncSend(spaceId, new SparkSendTiming(0), deadlineNanos) {
+			@Override
+			void finished(final SparkSendResult result) {
+				callback.completed(Collections.singletonList(result));
+			}
+		};
+		SparkMessagePayload payload;
+		try {
+			payload = SparkMessagePayload.of(message, messageType);
+		} catch (SparkNotifyException e) {
+			send.done(SparkSendResult.failure(spaceId, e));
+			return;
+		}
+		submitAsync(send, payload, priority, deadlineNanos);
+	}
+
+	/**
+	 * Queues the send in its lane, giving up if it has not started by the
+	 * deadline
+	 */
+	private void submitAsync(final AsyncSend send, final SparkMessagePayload payload, final SparkPriority priority,
+			final long deadlineNanos) {
+		final SparkSendLanes.Task task = new SparkSendLanes.Task(priority) {
+			@Override
+			void start() {
+				send.cancelExpiry();
+				// off the releasing thread, so a run of instant failures cannot nest
+				Timer.get().execute(new Runnable() {
+					@Override
+					public void run() {
+						send.admitted(payload);
+					}
+				});
+			}
+
+			@Override
+			void rejected(final SparkNotifyException e) {
+				send.cancelExpiry();
+				send.done(SparkSendResult.failure(send.spaceId, e));
+			}
+		};
+		send.expiry = Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (SparkSendLanes.get().cancel(task)) {
+					send.done(SparkSendResult.failure(send.spaceId, timeoutException()));
+				}
+			}
+		}, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		try {
+			SparkSendLanes.get().submit(task, false, deadlineNanos);
+		} catch (InterruptedException e) {
+			// only a blocking submit waits
+			Thread.currentThread().interrupt();
+			send.done(SparkSendResult.failure(send.spaceId, e));
+		}
+	}
+
+	/**
+	 * One asynchronous delivery to a single space; waits for the rate limiter
+	 * and retry backoff on the jenkins timer rather than on a thread
+	 */
+	private abstract class AsyncSend implements Runnable, InvocationCallback<Response> {
+		private final String spaceId;
+		private final SparkSendTiming timing;
+		/** when the whole send must be finished */
+		private final long sendDeadlineNanos;
+		/** gives up the send if it is still waiting for a slot at the deadline */
+		private volatile ScheduledFuture<?> expiry;
+		private SparkMessagePayload payload;
+		private int part;
+		private Entity<StreamingOutput> entity;
+		private boolean streamed;
+		private String authorization;
+		private SparkRateLimiter limiter;
+		private SparkRetryPolicy retryPolicy;
+		private SparkCircuitBreaker breaker;
+		private long deadlineNanos;
+		private int rateLimitRetries;
+		private int attempts;
+		private long started;
+		/** this attempt is the circuit breaker's trial request */
+		private boolean trial;
+		/** holds a send lanes slot until done */
+		private volatile boolean admitted;
+
+		AsyncSend(final String spaceId, final SparkSendTiming timing, final long sendDeadlineNanos) {
+			this.spaceId = spaceId;
+			this.timing = timing;
+			this.sendDeadlineNanos = sendDeadlineNanos;
+		}
+
+		abstract void finished(SparkSendResult result);
+
+		void cancelExpiry() {
+			ScheduledFuture<?> timer = expiry;
+			if (timer != null) {
+				timer.cancel(false);
+			}
+		}
+
+		void done(final SparkSendResult result) {
+			if (admitted) {
+				SparkSendLanes.get().release();
+			}
+			finished(result);
+		}
+
+		/**
+		 * Starts sending now that the send lanes gave this message a slot
+		 */
+		void admitted(final SparkMessagePayload payload) {
+			admitted = true;
+			try {
+				start(payload);
+			} catch (SparkNotifyException e) {
+				done(SparkSendResult.failure(spaceId, e));
+			} catch (RuntimeException e) {
+				done(SparkSendResult.failure(spaceId, e));
+			}
+		}
+
+		private void start(final SparkMessagePayload payload) throws SparkNotifyException {
+			this.payload = payload;
+			authorization = getAuthorization();
+			limiter = SparkRateLimiter.forKey(getTokenKey());
+			retryPolicy = SparkRetryPolicy.fromConfiguration(SparkGlobalConfiguration.get());
+			breaker = SparkCircuitBreaker.forEndpoint(getMessagesUrl());
+			startPart(0);
+		}
+
+		private void startPart(final int part) {
+			this.part = part;
+			entity = payload.forSpace(spaceId, part);
+			streamed = payload.isStreamed(part);
+			rateLimitRetries = 0;
+			attempts = 0;
+			deadlineNanos = Math.min(retryPolicy.deadlineFrom(System.nanoTime()), sendDeadlineNanos);
+			schedule(0);
+		}
+
+		private void schedule(final long delayNanos) {
+			long waitNanos = Math.max(delayNanos, limiter.reserve());
+			if (System.nanoTime() + waitNanos >= sendDeadlineNanos) {
+				logPartsSent(spaceId, part, payload, false);
+				done(SparkSendResult.failure(spaceId, timeoutException(), timing));
+				return;
+			}
+			if (waitNanos > 0) {
+				Timer.get().schedule(this, waitNanos, TimeUnit.NANOSECONDS);
+			} else {
+				run();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				trial = breaker.checkAllowed(logger);
+			} catch (SparkNotifyException e) {
+				done(SparkSendResult.failure(spaceId, e, timing));
+				return;
+			}
+			attempts++;
+			started = SparkMetrics.get().requestStarted();
+			SparkTransport.takeConnectNanos();
+			try {
+				long hedgeNanos = SparkHedgedPost.delayNanos(sendDeadlineNanos);
+				if (hedgeNanos < 0) {
+					request(authorization, streamed, sendDeadlineNanos).async().post(entity, this);
+				} else {
+					SparkHedgedPost.post(request(authorization, true, sendDeadlineNanos),
+							request(authorization, true, sendDeadlineNanos), entity, hedgeNanos, this);
+				}
+			} catch (RuntimeException e) {
+				breaker.onNoVerdict(trial);
+				timing.addRequest(System.nanoTime() - started, SparkTransport.takeConnectNanos());
+				SparkMetrics.get().requestFailed(spaceId, getCredentialsKey(), started, e);
+				done(SparkSendResult.failure(spaceId, e, timing));
+			}
+		}
+
+		@Override
+		public void completed(final Response response) {
+			int status;
+			try {
+				status = response.getStatus();
+				timing.addRequest(System.nanoTime() - started, SparkTransport.takeConnectNanos());
+				SparkMetrics.get().requestCompleted(spaceId, getCredentialsKey(), started, status);
+				SparkConcurrencyLimit.get().requestCompleted(started, status);
+				if (status == SparkRateLimiter.TOO_MANY_REQUESTS && rateLimitRetries < MAX_RATE_LIMIT_RETRIES) {
+					rateLimitRetries++;
+					attempts--;
+					breaker.onNoVerdict(trial);
+					logRateLimited(spaceId, limiter.onRateLimited(response.getHeaderString(RETRY_AFTER)));
+					schedule(0);
+					return;
+				}
+			} finally {
+				response.close();
+			}
+			if (status != SparkRateLimiter.TOO_MANY_REQUESTS) {
+				limiter.onSuccess();
+			}
+			if (status == SparkRateLimiter.TOO_MANY_REQUESTS) {
+				// out of rate limit retries
+				breaker.onNoVerdict(trial);
+			} else if (SparkRetryPolicy.isRetryable(status)) {
+				breaker.onFailure(logger);
+				if (retry("response code: " + status)) {
+					return;
+				}
+			} else {
+				breaker.onSuccess(logger);
+			}
+			if (status == Status.OK.getStatusCode() && part + 1 < payload.getPartCount()) {
+				startPart(part + 1);
+				return;
+			}
+			logPartsSent(spaceId, part, payload, status == Status.OK.getStatusCode());
+			done(SparkSendResult.response(spaceId, status, timing));
+		}
+
+		@Override
+		public void failed(final Throwable throwable) {
+			Exception e = unwrapAsyncFailure(throwable);
+			timing.addRequest(System.nanoTime() - started, SparkTransport.takeConnectNanos());
+			SparkMetrics.get().requestFailed(spaceId, getCredentialsKey(), started, e);
+			SparkConcurrencyLimit.get().requestFailed(started, e);
+			if (SparkRetryPolicy.isRetryable(e)) {
+				breaker.onFailure(logger);
+				if (retry(e.toString())) {
+					return;
+				}
+			} else {
+				breaker.onNoVerdict(trial);
+			}
+			logPartsSent(spaceId, part, payload, false);
+			done(SparkSendResult.failure(spaceId, e, timing));
+		}
+
+		private boolean retry(final String reason) {
+			long delayMillis = retryPolicy.backoffMillis(attempts - 1);
+			if (!retryPolicy.canRetry(attempts, delayMillis, deadlineNanos)) {
+				return false;
+			}
+			logRetry(spaceId, reason, delayMillis, attempts, retryPolicy);
+			schedule(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+			return true;
+		}
+	}
+
+	private static Exception unwrapAsyncFailure(final Throwable throwable) {
+		if (throwable instanceof ProcessingException && throwable.getCause() instanceof IOException) {
+			return (IOException) throwable.getCause();
+		}
+		if (throwable instanceof Exception) {
+			return (Exception) throwable;
+		}
+		return new SparkNotifyException("Could not send message because of an unknown issue; please file an issue",
+				throwable);
+	}
+
+	/**
+	 * Lets an identical message through again if this one was not delivered
+	 */
+	private static void releaseIfNotSent(final String dedupKey, final SparkSendResult result) {
+		if (dedupKey != null && !result.isSuccess() && !result.isQueued()) {
+			SparkDeduplicator.get().release(dedupKey);
+		}
+	}
+
+	/**
+	 * @return the same failure for every space
+	 */
+	static List<SparkSendResult> failures(final List<String> spaceIds, final Exception e) {
+		List<SparkSendResult> results = new ArrayList<>(spaceIds.size());
+		for (String spaceId : spaceIds) {
+			results.add(SparkSendResult.failure(spaceId, e));
+		}
+		return results;
+	}
+
+	private SparkSendResult post(final String roomId, final SparkMessagePayload payload,
+			final SparkSendTiming timing, final long deadlineNanos) {
+		try {
+			return SparkSendResult.response(roomId, postMessage(roomId, payload, timing, deadlineNanos), timing);
+		} catch (IOException e) {
+			return SparkSendResult.failure(roomId, e, timing);
+		} catch (RuntimeException e) {
+			return SparkSendResult.failure(roomId, e, timing);
+		}
+	}
+
+	/**
+	 * Posts every part of the message in order, stopping at the first that is
+	 * not delivered
+	 *
+	 * @return the response code of the last part posted
+	 */
+	private int postMessage(final String roomId, final SparkMessagePayload payload, final SparkSendTiming timing,
+			final long deadlineNanos) throws IOException {
+		for (int part = 0;; part++) {
+			int status;
+			try {
+				status = postPart(roomId, payload, part, timing, deadlineNanos);
+			} catch (IOException e) {
+				logPartsSent(roomId, part, payload, false);
+				throw e;
+			} catch (RuntimeException e) {
+				logPartsSent(roomId, part, payload, false);
+				throw e;
+			}
+			if (status != Status.OK.getStatusCode() || part + 1 == payload.getPartCount()) {
+				logPartsSent(roomId, part, payload, status == Status.OK.getStatusCode());
+				return status;
+			}
+		}
+	}
+
+	private int postPart(final String roomId, final SparkMessagePayload payload, final int part,
+			final SparkSendTiming timing, final long sendDeadlineNanos) throws IOException {
+		Entity<StreamingOutput> entity = payload.forSpace(roomId, part);
+		String authorization = getAuthorization();
+		SparkRateLimiter limiter = SparkRateLimiter.forKey(getTokenKey());
+		SparkRetryPolicy retryPolicy = SparkRetryPolicy.fromConfiguration(SparkGlobalConfiguration.get());
+		SparkCircuitBreaker breaker = SparkCircuitBreaker.forEndpoint(getMessagesUrl());
+		long deadlineNanos = Math.min(retryPolicy.deadlineFrom(System.nanoTime()), sendDeadlineNanos);
+		int rateLimitRetries = 0;
+		int attempts = 0;
+
+		while (true) {
+			boolean trial = breaker.checkAllowed(logger);
+			int status = -1;
+			IOException failure = null;
+			// whether the attempt tells the breaker anything about the api
+			boolean verdict = false;
+			try {
+				long waitNanos = limiter.reserve();
+				if (System.nanoTime() + waitNanos >= sendDeadlineNanos) {
+					throw timeoutException();
+				}
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the spark api rate limit");
+				}
+
+				attempts++;
+				try {
+					Response response = execute(roomId, authorization, entity, payload.isStreamed(part), timing,
+							sendDeadlineNanos);
+					try {
+						status = response.getStatus();
+						if (status == SparkRateLimiter.TOO_MANY_REQUESTS
+								&& rateLimitRetries < MAX_RATE_LIMIT_RETRIES) {
+							rateLimitRetries++;
+							attempts--;
+							logRateLimited(roomId, limiter.onRateLimited(response.getHeaderString(RETRY_AFTER)));
+							continue;
+						}
+					} finally {
+						response.close();
+					}
+				} catch (ProcessingException e) {
+					if (!(e.getCause() instanceof IOException)) {
+						throw e;
+					}
+					failure = (IOException) e.getCause();
+				}
+				verdict = status != SparkRateLimiter.TOO_MANY_REQUESTS;
+			} finally {
+				if (!verdict) {
+					breaker.onNoVerdict(trial);
+				}
+			}
+
+			if (failure == null) {
+				if (status == SparkRateLimiter.TOO_MANY_REQUESTS) {
+					// out of rate limit retries
+					return status;
+				}
+				limiter.onSuccess();
+				if (!SparkRetryPolicy.isRetryable(status)) {
+					breaker.onSuccess(logger);
+					return status;
+				}
+			}
+
+			breaker.onFailure(logger);
+			long delayMillis = retryPolicy.backoffMillis(attempts - 1);
+			if (!retryPolicy.canRetry(attempts, delayMillis, deadlineNanos)) {
+				if (failure != null) {
+					throw failure;
+				}
+				return status;
+			}
+			logRetry(roomId, failure != null ? failure.toString() : "response code: " + status, delayMillis, attempts,
+					retryPolicy);
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry spark message");
+			}
+		}
+	}
+
+	private Response execute(final String roomId, final String authorization, final Entity<StreamingOutput> entity,
+			final boolean streamed, final SparkSendTiming timing, final long deadlineNanos) {
+		SparkMetrics metrics = SparkMetrics.get();
+		long started = metrics.requestStarted();
+		SparkTransport.takeConnectNanos();
+		try {
+			Response response = postEntity(authorization, entity, streamed, deadlineNanos);
+			timing.addRequest(System.nanoTime() - started, SparkTransport.takeConnectNanos());
+			metrics.requestCompleted(roomId, getCredentialsKey(), started, response.getStatus());
+			SparkConcurrencyLimit.get().requestCompleted(started, response.getStatus());
+			return response;
+		} catch (RuntimeException e) {
+			timing.addRequest(System.nanoTime() - started, SparkTransport.takeConnectNanos());
+			Exception failure = unwrapAsyncFailure(e);
+			metrics.requestFailed(roomId, getCredentialsKey(), started, failure);
+			SparkConcurrencyLimit.get().requestFailed(started, failure);
+			throw e;
+		}
+	}
+
+	/**
+	 * Posts on the calling thread, or on the http client's async pool if the
+	 * request is hedged
+	 */
+	private static Response postEntity(final String authorization, final Entity<StreamingOutput> entity,
+			final boolean streamed, final long deadlineNanos) {
+		long hedgeNanos = SparkHedgedPost.delayNanos(deadlineNanos);
+		if (hedgeNanos < 0) {
+			return request(authorization, streamed, deadlineNanos).post(entity);
+		}
+		BlockingCallback callback = new BlockingCallback();
+		SparkHedgedPost.post(request(authorization, true, deadlineNanos), request(authorization, true, deadlineNanos),
+				entity, hedgeNanos, callback);
+		return callback.await();
 	}
 
-	public int sendMessage(final String roomId, String message, final SparkMessageType messageType) throws IOException {
-		if (env != null) {
-			message = replaceEnvVars(message, env);
+	/**
+	 * Waits for the outcome of an asynchronous request
+	 */
+	private static final class BlockingCallback implements InvocationCallback<Response> {
+		private Response response;
+		private Throwable failure;
+		/** the waiting thread was interrupted, so nobody will close the response */
+		private boolean abandoned;
+
+		@Override
+		public synchronized void completed(final Response completed) {
+			if (abandoned) {
+				completed.close();
+				return;
+			}
+			response = completed;
+			notifyAll();
 		}
 
-		SparkMessage messageData = new SparkMessageBuilder().roomId(roomId).message(message).messageType(messageType)
-				.build();
+		@Override
+		public synchronized void failed(final Throwable throwable) {
+			failure = throwable;
+			notifyAll();
+		}
+
+		synchronized Response await() {
+			while (response == null && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abandoned = true;
+					throw new ProcessingException(
+							new InterruptedIOException("Interrupted while waiting for the spark api"));
+				}
+			}
+			if (response != null) {
+				return response;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new ProcessingException(failure);
+		}
+	}
 
-		Response response = DEFAULT_CLIENT.target(SPARK_MSG_POST_URL)
+	/**
+	 * @param streamed
+	 *            true to send the body chunked as it is written instead of
+	 *            buffering it to find its length
+	 * @param deadlineNanos
+	 *            when the send must be finished; the connect and read
+	 *            timeouts are shortened to fit
+	 */
+	private static Invocation.Builder request(final String authorization, final boolean streamed,
+			final long deadlineNanos) {
+		Invocation.Builder request = SparkTransport.get().getClient().target(getMessagesUrl())
 				.request(MediaType.APPLICATION_JSON)
-				.header(HttpHeaders.AUTHORIZATION, "Bearer " + getToken())
-				.post(Entity.json(messageData));
+				.header(HttpHeaders.AUTHORIZATION, authorization);
+		if (streamed) {
+			request.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+		}
+		SparkGlobalConfiguration config = SparkGlobalConfiguration.get();
+		long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+		if (remainingMillis < TimeUnit.SECONDS.toMillis(config.getConnectTimeout())) {
+			request.property(ClientProperties.CONNECT_TIMEOUT, (int) remainingMillis);
+		}
+		if (remainingMillis < TimeUnit.SECONDS.toMillis(config.getReadTimeout())) {
+			request.property(ClientProperties.READ_TIMEOUT, (int) remainingMillis);
+		}
+		return request;
+	}
+
+	/**
+	 * @return when a send starting now must have reached its space
+	 */
+	long deadlineFromNow() {
+		return System.nanoTime() + TimeUnit.SECONDS.toNanos(getTimeout());
+	}
+
+	private int getTimeout() {
+		return timeout > 0 ? timeout : SparkGlobalConfiguration.get().getSendTimeout();
+	}
+
+	private SendTimeoutException timeoutException() {
+		return new SendTimeoutException("Could not send message within the " + getTimeout() + " second timeout");
+	}
 
-		return response.getStatus();
+	/**
+	 * @return the hash to suppress repeats by, or null if they are not
+	 *         suppressed; an attached file may differ even if the message
+	 *         does not, so those are always sent
+	 */
+	private static String contentHash(final String message, final SparkMessagePayload payload) {
+		return SparkDeduplicator.isEnabled() && !payload.hasAttachment() ? SparkDeduplicator.hash(message) : null;
+	}
+
+	/**
+	 * Notes how much of a message sent in parts reached the space
+	 *
+	 * @param last
+	 *            index of the last part posted
+	 */
+	private void logPartsSent(final String spaceId, final int last, final SparkMessagePayload payload,
+			final boolean delivered) {
+		if (logger == null || payload.getPartCount() == 1) {
+			return;
+		}
+		if (delivered) {
+			logger.println("Message to space " + spaceId + " was longer than the spark api allows; sent it in "
+					+ payload.getPartCount() + " parts");
+		} else {
+			logger.println("Could not send part " + (last + 1) + " of " + payload.getPartCount()
+					+ " of the message to space " + spaceId + "; the remaining parts were not sent");
+		}
+	}
+
+	private void logRateLimited(final String spaceId, final long retryAfterSeconds) {
+		if (logger != null) {
+			logger.println("Spark api rate limit reached sending to space " + spaceId + "; retrying in "
+					+ retryAfterSeconds + " seconds");
+		}
+	}
+
+	private void logRetry(final String spaceId, final String reason, final long delayMillis, final int attempts,
+			final SparkRetryPolicy retryPolicy) {
+		if (logger != null) {
+			logger.println("Could not send message to space " + spaceId + " (" + reason + "); retrying in "
+					+ delayMillis + " ms (attempt " + (attempts + 1) + " of " + retryPolicy.getMaxAttempts() + ")");
+		}
+	}
+
+	/**
+	 * @param deadlineNanos
+	 *            until when to wait for the first load of the token's room
+	 *            index, see {@link #deadlineFromNow()}
+	 * @return the id of the space with this title, from the token's room index;
+	 *         never calls the spark api
+	 */
+	String resolveSpaceName(final String title, final long deadlineNanos)
+			throws SparkNotifyException, InterruptedException {
+		return SparkRoomIndex.forToken(getTokenKey(), getAuthorization()).resolve(title, deadlineNanos);
+	}
+
+	static synchronized ThreadPoolExecutor getSendExecutor() {
+		if (sendExecutor == null) {
+			int threads = SparkConcurrencyLimit.getMaxLimit(SparkGlobalConfiguration.get());
+			sendExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.sender"));
+			sendExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sendExecutor;
+	}
+
+	/**
+	 * Applies changed global settings to the shared sender pool
+	 */
+	static synchronized void reconfigure(final SparkGlobalConfiguration config) {
+		if (sendExecutor == null) {
+			return;
+		}
+		int threads = SparkConcurrencyLimit.getMaxLimit(config);
+		if (threads > sendExecutor.getMaximumPoolSize()) {
+			sendExecutor.setMaximumPoolSize(threads);
+			sendExecutor.setCorePoolSize(threads);
+		} else {
+			sendExecutor.setCorePoolSize(threads);
+			sendExecutor.setMaximumPoolSize(threads);
+		}
+	}
+
+	static String getMessagesUrl() {
+		return SparkGlobalConfiguration.get().getApiUrl() + MESSAGES_PATH;
+	}
+
+	/**
+	 * @return a hash of the bot token; unlike the credentials id it tells the
+	 *         bots of different folders apart, and it is never the token
+	 *         itself
+	 */
+	String getTokenKey() throws SparkNotifyException {
+		return SparkDeduplicator.hash(getAuthorization());
+	}
+
+	/**
+	 * @return key the request metrics are labelled with; never the token itself
+	 */
+	String getCredentialsKey() {
+		if (credentials instanceof StandardCredentials) {
+			return ((StandardCredentials) credentials).getId();
+		}
+		// sending fails without standard credentials; one label for all of them
+		return "unknown";
+	}
+
+	private String getAuthorization() throws SparkNotifyException {
+		String authorization = SparkCredentialsCache.getAuthorization(credentials);
+		if (authorization == null) {
+			authorization = "Bearer " + getToken();
+			SparkCredentialsCache.putAuthorization(credentials, authorization);
+		}
+		return authorization;
 	}
 
 	private String getToken() throws SparkNotifyException {
@@ -64,15 +1110,15 @@ public class SparkNotifier {
 		}
 	}
 
-	private String replaceEnvVars(String message, final EnvVars env) {
-		// Normal and ${env.VAR} matching for pipeline consistency
+	/**
+	 * Thrown when a message did not reach its space within the send timeout;
+	 * sending it again later may succeed
+	 */
+	public static class SendTimeoutException extends SparkNotifyException {
+		private static final long serialVersionUID = 1L;
 
-		Matcher workflowMatcher = ENV_PATTERN_WORKFLOW.matcher(message);
-		while (workflowMatcher.find()) {
-			String var = workflowMatcher.group(1);
-			message = message.replace("${env." + var + "}", env.get(var, ""));
+		public SendTimeoutException(final String message) {
+			super(message);
 		}
-
-		return env.expand(message);
 	}
 }
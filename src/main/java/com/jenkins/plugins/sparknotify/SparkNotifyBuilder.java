@@ -1,14 +1,9 @@
 package com.jenkins.plugins.sparknotify;
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.ws.rs.core.Response.Status;
-
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -16,13 +11,11 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.Util;
@@ -32,7 +25,6 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Job;
-import hudson.model.Run;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -49,6 +41,8 @@ public class SparkNotifyBuilder extends Builder {
 	private String messageType;
 	private String messageContent;
 	private String credentialsId;
+	private boolean sendInBackground;
+	private String attachment;
 
 	/**
 	 * @deprecated Backwards compatibility; please use SparkSpace
@@ -66,6 +60,14 @@ public class SparkNotifyBuilder extends Builder {
 			return rId;
 		}
 
+		/**
+		 * @return true if only a name is given, so the space is looked up by
+		 *         its title
+		 */
+		public boolean isByName() {
+			return Util.fixEmptyAndTrim(rId) == null && Util.fixEmptyAndTrim(rName) != null;
+		}
+
 		@DataBoundConstructor
 		public SparkRoom(final String rName, final String rId) {
 			this.rName = rName;
@@ -124,6 +126,32 @@ public class SparkNotifyBuilder extends Builder {
 		this.credentialsId = Util.fixEmpty(credentialsId);
 	}
 
+	/**
+	 * @return path of a file to send with the message, relative to the
+	 *         workspace or the archived artifacts
+	 */
+	public String getAttachment() {
+		return attachment;
+	}
+
+	@DataBoundSetter
+	public void setAttachment(final String attachment) {
+		this.attachment = Util.fixEmptyAndTrim(attachment);
+	}
+
+	/**
+	 * @return true if the build continues without waiting for the spark api;
+	 *         the results are shown on the build page
+	 */
+	public boolean isSendInBackground() {
+		return sendInBackground;
+	}
+
+	@DataBoundSetter
+	public void setSendInBackground(final boolean sendInBackground) {
+		this.sendInBackground = sendInBackground;
+	}
+
 	/**
 	 * @see hudson.tasks.BuildStepCompatibilityLayer#perform(hudson.model.AbstractBuild,
 	 *      hudson.Launcher, hudson.model.BuildListener)
@@ -132,52 +160,30 @@ public class SparkNotifyBuilder extends Builder {
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
 			throws InterruptedException, IOException {
-		if (disable) {
-			listener.getLogger().println("Spark Notifier Plugin Disabled!");
-			return true;
-		}
-
-		EnvVars envVars = build.getEnvironment(listener);
-
-		String message = getMessageContent();
-		if (!SparkMessage.isMessageValid(message)) {
-			listener.getLogger().println("Skipping spark notifications because no message was defined");
-			return true;
-		}
-
-		if (StringUtils.isEmpty(messageType)) {
-			messageType = "text";
-		}
-
-		if (CollectionUtils.isEmpty(roomList)) {
-			listener.getLogger().println("Skipping spark notifications because no spaces were defined");
-			return true;
-		}
-
-		SparkMessageType sparkMessageType = SparkMessageType.valueOf(messageType.toUpperCase());
-
-		SparkNotifier notifier = new SparkNotifier(getCredentials(credentialsId, build), envVars);
-
-		for (int k = 0; k < roomList.size(); k++) {
-			listener.getLogger().println("Sending message to spark space: " + roomList.get(k).getRId());
-			try {
-				int responseCode = notifier.sendMessage(roomList.get(k).getRId(), message, sparkMessageType);
-				if (responseCode != Status.OK.getStatusCode()) {
-					listener.getLogger().println("Could not send message; response code: " + responseCode);
-				} else {
-					listener.getLogger().println("Message sent");
-				}
-			} catch (SocketException e) {
-				listener.getLogger().println(
-						"Could not send message because spark server did not provide a response; this is likely intermittent");
-			} catch (SparkNotifyException e) {
-				listener.getLogger().println(e.getMessage());
-			} catch (RuntimeException e) {
-				listener.getLogger().println(
-						"Could not send message because of an unknown issue; please file an issue");
+		SparkDispatch dispatch = new SparkDispatch("Build step", build, listener, build.getEnvironment(listener));
+		dispatch.setDisabled(disable);
+		dispatch.setOutboxAllowed(true);
+		dispatch.setMessage(getMessageContent());
+		dispatch.setMessageType(messageType);
+		List<String> spaceIds = new ArrayList<>(getRoomList().size());
+		List<String> spaceNames = new ArrayList<>();
+		for (SparkRoom room : getRoomList()) {
+			if (room.isByName()) {
+				spaceNames.add(room.getRName().trim());
+			} else {
+				spaceIds.add(room.getRId());
 			}
 		}
-
+		dispatch.setSpaceIds(spaceIds);
+		dispatch.setSpaceNames(spaceNames);
+		dispatch.setCredentialsId(credentialsId);
+		dispatch.setAttachment(attachment);
+		dispatch.setWorkspace(build.getWorkspace());
+		if (sendInBackground) {
+			SparkDispatcher.get().dispatchInBackground(dispatch);
+		} else {
+			SparkDispatcher.get().dispatch(dispatch);
+		}
 		return true;
 	}
 
@@ -217,7 +223,8 @@ public class SparkNotifyBuilder extends Builder {
 		}
 
 		public FormValidation doRoomIdCheck(@QueryParameter final String roomId) {
-			if (SparkMessage.isRoomIdValid(roomId)) {
+			// an empty id sends to the space by name
+			if (Util.fixEmptyAndTrim(roomId) == null || SparkMessage.isRoomIdValid(roomId)) {
 				return FormValidation.ok();
 			} else {
 				return FormValidation.error("Invalid spaceId; see help message");
@@ -255,8 +262,4 @@ public class SparkNotifyBuilder extends Builder {
 			return "Notify Spark Rooms";
 		}
 	}
-
-	private Credentials getCredentials(final String credentialsId, final Run<?, ?> build) {
-		return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, build);
-	}
 }
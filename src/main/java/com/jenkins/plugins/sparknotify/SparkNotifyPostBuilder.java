@@ -1,14 +1,13 @@
 package com.jenkins.plugins.sparknotify;
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.ws.rs.core.Response.Status;
-
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -16,13 +15,11 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.Util;
@@ -32,7 +29,7 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Job;
-import hudson.model.Run;
+import hudson.model.Result;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -44,21 +41,20 @@ import hudson.util.ListBoxModel.Option;
 import net.sf.json.JSONObject;
 
 public class SparkNotifyPostBuilder extends Recorder {
-	private static final String JOB_FAILURE = "FAILURE";
-	private static final String JOB_SUCCESS = "SUCCESS";
-	private static final String JOB_ABORTED = "ABORTED";
-	private static final String JOB_UNSTABLE = "UNSTABLE";
-
 	private List<SparkRoom> roomList;
 	private final boolean disable;
 	private final boolean skipOnFailure;
 	private final boolean skipOnSuccess;
 	private final boolean skipOnAborted;
 	private final boolean skipOnUnstable;
+	/** no longer used; kept so saved job configurations that contain it still load */
+	@SuppressWarnings("unused")
 	private String message;
 	private String messageType;
 	private String messageContent;
 	private String credentialsId;
+	private boolean sendInBackground;
+	private String attachment;
 
 	/**
 	 * @deprecated Backwards compatibility; please use SparkSpace
@@ -76,6 +72,14 @@ public class SparkNotifyPostBuilder extends Recorder {
 			return rId;
 		}
 
+		/**
+		 * @return true if only a name is given, so the space is looked up by
+		 *         its title
+		 */
+		public boolean isByName() {
+			return Util.fixEmptyAndTrim(rId) == null && Util.fixEmptyAndTrim(rName) != null;
+		}
+
 		@DataBoundConstructor
 		public SparkRoom(final String rName, final String rId) {
 			this.rName = rName;
@@ -155,6 +159,32 @@ public class SparkNotifyPostBuilder extends Recorder {
 		this.credentialsId = Util.fixEmpty(credentialsId);
 	}
 
+	/**
+	 * @return path of a file to send with the message, relative to the
+	 *         workspace or the archived artifacts
+	 */
+	public String getAttachment() {
+		return attachment;
+	}
+
+	@DataBoundSetter
+	public void setAttachment(final String attachment) {
+		this.attachment = Util.fixEmptyAndTrim(attachment);
+	}
+
+	/**
+	 * @return true if the build continues without waiting for the spark api;
+	 *         the results are shown on the build page
+	 */
+	public boolean isSendInBackground() {
+		return sendInBackground;
+	}
+
+	@DataBoundSetter
+	public void setSendInBackground(final boolean sendInBackground) {
+		this.sendInBackground = sendInBackground;
+	}
+
 	/**
 	 * @see hudson.tasks.BuildStepCompatibilityLayer#perform(hudson.model.AbstractBuild,
 	 *      hudson.Launcher, hudson.model.BuildListener)
@@ -163,77 +193,54 @@ public class SparkNotifyPostBuilder extends Recorder {
 	@Override
 	public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
 			throws InterruptedException, IOException {
-		if (disable) {
-			listener.getLogger().println("Spark Notify Plugin Disabled!");
-			return true;
-		}
-
-		EnvVars envVars = build.getEnvironment(listener);
-
-		message = getMessageContent();
-		if (!SparkMessage.isMessageValid(message)) {
-			listener.getLogger().println("Skipping spark notifications because no message was defined");
-			return true;
-		}
-
-		String result = build.getResult().toString();
-		if (result != null && !result.toString().isEmpty()) {
-			message = message.replace("${BUILD_RESULT}", result);
-		} else {
-			listener.getLogger().println("Could not get result");
-			result = "";
-		}
-
-		if (skipOnSuccess && result.equals(JOB_SUCCESS)) {
-			listener.getLogger().println("Skipping spark notifications because job was successful");
-			return true;
-		}
-		if (skipOnFailure && result.equals(JOB_FAILURE)) {
-			listener.getLogger().println("Skipping spark notifications because job failed");
-			return true;
+		Result buildResult = build.getResult();
+		Map<String, String> presets = Collections.emptyMap();
+		if (buildResult != null) {
+			presets = Collections.singletonMap("BUILD_RESULT", buildResult.toString());
 		}
-		if (skipOnAborted && result.equals(JOB_ABORTED)) {
-			listener.getLogger().println("Skipping spark notifications because job was aborted");
-			return true;
+		Set<Result> skippedResults = new HashSet<>();
+		if (skipOnSuccess) {
+			skippedResults.add(Result.SUCCESS);
 		}
-		if (skipOnUnstable && result.equals(JOB_UNSTABLE)) {
-			listener.getLogger().println("Skipping spark notifications because job is unstable");
-			return true;
+		if (skipOnFailure) {
+			skippedResults.add(Result.FAILURE);
 		}
-
-		if (StringUtils.isEmpty(messageType)) {
-			messageType = "text";
+		if (skipOnAborted) {
+			skippedResults.add(Result.ABORTED);
 		}
-
-		if (CollectionUtils.isEmpty(roomList)) {
-			listener.getLogger().println("Skipping spark notifications because no rooms were defined");
-			return true;
+		if (skipOnUnstable) {
+			skippedResults.add(Result.UNSTABLE);
 		}
 
-		SparkMessageType sparkMessageType = SparkMessageType.valueOf(messageType.toUpperCase());
-
-		SparkNotifier notifier = new SparkNotifier(getCredentials(credentialsId, build), envVars);
-
-		for (int k = 0; k < roomList.size(); k++) {
-			listener.getLogger().println("Sending message to Spark Room: " + roomList.get(k).getRId());
-			try {
-				int responseCode = notifier.sendMessage(roomList.get(k).getRId(), message, sparkMessageType);
-				if (responseCode != Status.OK.getStatusCode()) {
-					listener.getLogger().println("Could not send message; response code: " + responseCode);
-				} else {
-					listener.getLogger().println("Message sent");
-				}
-			} catch (SocketException e) {
-				listener.getLogger().println(
-						"Could not send message because ppark server did not provide a response; this is likely intermittent");
-			} catch (SparkNotifyException e) {
-				listener.getLogger().println(e.getMessage());
-			} catch (RuntimeException e) {
-				listener.getLogger().println(
-						"Could not send message because of an unknown issue; please an issue");
+		SparkDispatch dispatch = new SparkDispatch("Post-build action", build, listener,
+				build.getEnvironment(listener));
+		dispatch.setDisabled(disable);
+		dispatch.setOutboxAllowed(true);
+		dispatch.setMessage(getMessageContent());
+		dispatch.setPresets(presets);
+		dispatch.setBuildResult(buildResult);
+		dispatch.setSkippedResults(skippedResults);
+		dispatch.setPriority(SparkPriority.forResult(buildResult));
+		dispatch.setMessageType(messageType);
+		List<String> spaceIds = new ArrayList<>(getRoomList().size());
+		List<String> spaceNames = new ArrayList<>();
+		for (SparkRoom room : getRoomList()) {
+			if (room.isByName()) {
+				spaceNames.add(room.getRName().trim());
+			} else {
+				spaceIds.add(room.getRId());
 			}
 		}
-
+		dispatch.setSpaceIds(spaceIds);
+		dispatch.setSpaceNames(spaceNames);
+		dispatch.setCredentialsId(credentialsId);
+		dispatch.setAttachment(attachment);
+		dispatch.setWorkspace(build.getWorkspace());
+		if (sendInBackground) {
+			SparkDispatcher.get().dispatchInBackground(dispatch);
+		} else {
+			SparkDispatcher.get().dispatch(dispatch);
+		}
 		return true;
 	}
 
@@ -278,7 +285,8 @@ public class SparkNotifyPostBuilder extends Recorder {
 		}
 
 		public FormValidation doRoomIdCheck(@QueryParameter final String roomId) {
-			if (SparkMessage.isRoomIdValid(roomId)) {
+			// an empty id sends to the space by name
+			if (Util.fixEmptyAndTrim(roomId) == null || SparkMessage.isRoomIdValid(roomId)) {
 				return FormValidation.ok();
 			} else {
 				return FormValidation.error("Invalid spaceId; see help message");
@@ -316,8 +324,4 @@ public class SparkNotifyPostBuilder extends Recorder {
 			return "Notify Spark Rooms";
 		}
 	}
-
-	private Credentials getCredentials(final String credentialsId, final Run<?, ?> build) {
-		return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, build);
-	}
 }
@@ -0,0 +1,546 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * Durable queue of rendered messages under JENKINS_HOME. Builds append to a
+ * sequential journal and return; a background drainer delivers entries at
+ * least once and truncates the journal as it goes. An entry that cannot be
+ * delivered yet is appended again, so it does not hold up, or cause the
+ * resending of, the entries after it.
+ *
+ * Journal record: [int length][payload][int crc32]. The drainer's read
+ * position is kept in a separate offset file. Corrupt records are moved to a
+ * quarantine file.
+ */
+public class SparkOutbox {
+	private static final Logger LOGGER = Logger.getLogger(SparkOutbox.class.getName());
+
+	private static final String DIRECTORY = "spark-notifier";
+	private static final int RECORD_VERSION = 1;
+	private static final int RECORD_OVERHEAD = 8;
+	private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+	private static final long COMPACT_THRESHOLD = 8 * 1024 * 1024;
+	private static final long IDLE_WAIT_MILLIS = 5000;
+	private static final long RETRY_WAIT_MILLIS = 30000;
+
+	private static SparkOutbox instance;
+
+	private final File journalFile;
+	private final File offsetFile;
+	private final File quarantineFile;
+	private RandomAccessFile journal;
+	private long readOffset;
+	private Thread drainer;
+
+	SparkOutbox(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		journalFile = new File(directory, "outbox.journal");
+		offsetFile = new File(directory, "outbox.offset");
+		quarantineFile = new File(directory, "outbox.quarantine");
+		journal = new RandomAccessFile(journalFile, "rw");
+		readOffset = readOffsetFile();
+		recover();
+	}
+
+	public static synchronized SparkOutbox get() throws IOException {
+		if (instance == null) {
+			Jenkins jenkins = Jenkins.getInstance();
+			if (jenkins == null) {
+				throw new SparkNotifyException("Jenkins is not running; cannot queue spark message");
+			}
+			instance = new SparkOutbox(new File(jenkins.getRootDir(), DIRECTORY));
+		}
+		return instance;
+	}
+
+	/**
+	 * Resumes delivery of messages queued before a restart
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void startDraining() {
+		try {
+			get().startDrainer();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not open spark notification outbox", e);
+		}
+	}
+
+	/**
+	 * Appends a message to the journal; delivery happens on the drainer thread
+	 */
+	public void append(final Entry entry) throws IOException {
+		byte[] payload = entry.encode();
+		synchronized (this) {
+			appendRecord(payload);
+			notifyAll();
+		}
+		startDrainer();
+	}
+
+	synchronized void appendRecord(final byte[] payload) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(payload.length + RECORD_OVERHEAD);
+		record.putInt(payload.length).put(payload).putInt(crc(payload));
+		record.flip();
+		FileChannel channel = journal.getChannel();
+		channel.position(channel.size());
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+	}
+
+	/**
+	 * @return number of bytes appended but not yet delivered
+	 */
+	public synchronized long getPendingBytes() throws IOException {
+		return journal.length() - readOffset;
+	}
+
+	private synchronized void startDrainer() {
+		if (drainer != null) {
+			return;
+		}
+		drainer = new Thread("SparkOutbox.drainer") {
+			@Override
+			public void run() {
+				ACL.impersonate(ACL.SYSTEM);
+				try {
+					drain();
+				} finally {
+					drainerStopped();
+				}
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Lets the next append start a new drainer
+	 */
+	private synchronized void drainerStopped() {
+		drainer = null;
+	}
+
+	private void drain() {
+		List<Entry> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.clear();
+				long start;
+				synchronized (this) {
+					start = readOffset;
+				}
+				long end = readBatch(batch, SparkGlobalConfiguration.get().getSendThreads() * 4);
+
+				if (end == start) {
+					synchronized (this) {
+						if (readOffset == journal.length()) {
+							truncate();
+						}
+						wait(IDLE_WAIT_MILLIS);
+					}
+					continue;
+				}
+
+				List<Entry> failed = deliver(batch);
+				synchronized (this) {
+					// appended before the offset moves past them, so a crash redelivers rather than loses them
+					for (Entry entry : failed) {
+						appendRecord(entry.encode());
+					}
+					readOffset = end;
+					writeOffsetFile(readOffset);
+					if (readOffset > COMPACT_THRESHOLD) {
+						compact();
+					}
+				}
+				if (!failed.isEmpty()) {
+					Thread.sleep(RETRY_WAIT_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Could not drain spark notification outbox", e);
+				try {
+					Thread.sleep(RETRY_WAIT_MILLIS);
+				} catch (InterruptedException e2) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivers a batch concurrently through the send lanes at low priority,
+	 * so queued messages never hold up those sent straight from a build
+	 *
+	 * @return the entries that could not be delivered for now
+	 */
+	private List<Entry> deliver(final List<Entry> batch) throws InterruptedException {
+		final CountDownLatch finished = new CountDownLatch(batch.size());
+		final AtomicReferenceArray<Entry> failed = new AtomicReferenceArray<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			final int index = i;
+			final Entry entry = batch.get(i);
+			try {
+				new SparkNotifier(entry.findCredentials(), null).sendQueuedAsync(entry.spaceId, entry.message,
+						entry.messageType, SparkPriority.LOW, new SparkSendCallback() {
+							@Override
+							public void completed(final List<SparkSendResult> results) {
+								if (!isFinished(entry, results.get(0))) {
+									failed.set(index, entry);
+								}
+								finished.countDown();
+							}
+						});
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Dropping queued spark message for space " + entry.spaceId + " from "
+						+ entry.jobFullName + " #" + entry.buildNumber, e);
+				finished.countDown();
+			}
+		}
+		finished.await();
+		List<Entry> retry = new ArrayList<>();
+		for (int i = 0; i < failed.length(); i++) {
+			if (failed.get(i) != null) {
+				retry.add(failed.get(i));
+			}
+		}
+		return retry;
+	}
+
+	/**
+	 * @return true if the entry was delivered or can never be, false if it
+	 *         should be sent again later
+	 */
+	private static boolean isFinished(final Entry entry, final SparkSendResult result) {
+		Exception e = result.getException();
+		if (e == null) {
+			int status = result.getResponseCode();
+			if (status == SparkRateLimiter.TOO_MANY_REQUESTS || SparkRetryPolicy.isRetryable(status)) {
+				return false;
+			}
+			if (status != 200) {
+				LOGGER.warning("Dropping queued spark message for space " + entry.spaceId + " from " + entry.jobFullName
+						+ " #" + entry.buildNumber + "; response code: " + status);
+			}
+			return true;
+		}
+		if (e instanceof SparkCircuitBreaker.OpenException || e instanceof SparkNotifier.SendTimeoutException
+				|| e instanceof SparkSendLanes.OverloadedException || SparkRetryPolicy.isRetryable(e)) {
+			return false;
+		}
+		if (e instanceof SparkNotifyException) {
+			LOGGER.warning("Dropping queued spark message for space " + entry.spaceId + " from " + entry.jobFullName
+					+ " #" + entry.buildNumber + "; " + e.getMessage());
+		} else {
+			LOGGER.log(Level.WARNING, "Dropping queued spark message for space " + entry.spaceId + " from "
+					+ entry.jobFullName + " #" + entry.buildNumber, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads up to max entries from the read offset. A record that is corrupt
+	 * is moved to the quarantine file and skipped, so it cannot hold up the
+	 * ones after it.
+	 *
+	 * @return the offset just past the records read
+	 */
+	long readBatch(final List<Entry> batch, final int max) throws IOException {
+		long position;
+		long length;
+		synchronized (this) {
+			position = readOffset;
+			length = journal.length();
+		}
+		try (RandomAccessFile reader = new RandomAccessFile(journalFile, "r")) {
+			while (batch.size() < max && position + RECORD_OVERHEAD <= length) {
+				reader.seek(position);
+				int payloadLength = reader.readInt();
+				if (payloadLength < 0 || payloadLength > MAX_RECORD_LENGTH) {
+					// nothing says where the next record starts
+					quarantine(reader, position, length, "invalid record length " + payloadLength);
+					return length;
+				}
+				long next = position + RECORD_OVERHEAD + payloadLength;
+				if (next > length) {
+					// still being written
+					break;
+				}
+				byte[] payload = new byte[payloadLength];
+				reader.readFully(payload);
+				if (reader.readInt() != crc(payload)) {
+					quarantine(reader, position, next, "checksum mismatch");
+				} else {
+					try {
+						batch.add(Entry.decode(payload));
+					} catch (IOException | RuntimeException e) {
+						quarantine(reader, position, next, e.toString());
+					}
+				}
+				position = next;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Copies the bytes from start to end to the quarantine file, where they
+	 * can be inspected
+	 */
+	private void quarantine(final RandomAccessFile reader, final long start, final long end, final String reason)
+			throws IOException {
+		LOGGER.warning("Moving corrupt spark outbox record at offset " + start + " of " + journalFile + " to "
+				+ quarantineFile + "; " + reason);
+		try (FileOutputStream out = new FileOutputStream(quarantineFile, true)) {
+			FileChannel source = reader.getChannel();
+			long position = start;
+			while (position < end) {
+				position += source.transferTo(position, end - position, out.getChannel());
+			}
+		}
+	}
+
+	/**
+	 * Drops a record left incomplete by a crash and a stale offset; a corrupt
+	 * record before the end is left for the drainer to quarantine
+	 */
+	private synchronized void recover() throws IOException {
+		long length = journal.length();
+		if (readOffset > length) {
+			readOffset = 0;
+		}
+		long position = readOffset;
+		while (position + RECORD_OVERHEAD <= length) {
+			journal.seek(position);
+			int payloadLength = journal.readInt();
+			if (payloadLength < 0 || payloadLength > MAX_RECORD_LENGTH) {
+				position = length;
+				break;
+			}
+			if (position + RECORD_OVERHEAD + payloadLength > length) {
+				break;
+			}
+			position += RECORD_OVERHEAD + payloadLength;
+		}
+		if (position < length) {
+			LOGGER.warning("Discarding " + (length - position) + " incomplete bytes at the end of " + journalFile);
+			journal.setLength(position);
+		}
+		writeOffsetFile(readOffset);
+	}
+
+	private void truncate() throws IOException {
+		journal.setLength(0);
+		readOffset = 0;
+		writeOffsetFile(0);
+	}
+
+	/**
+	 * Rewrites the journal without the delivered prefix. The offset is reset
+	 * before the swap, so a crash in between redelivers rather than skips.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(journalFile.getPath() + ".tmp");
+		try (RandomAccessFile target = new RandomAccessFile(compacted, "rw")) {
+			target.setLength(0);
+			FileChannel source = journal.getChannel();
+			long position = readOffset;
+			long end = source.size();
+			while (position < end) {
+				position += source.transferTo(position, end - position, target.getChannel());
+			}
+		}
+		writeOffsetFile(0);
+		journal.close();
+		Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		journal = new RandomAccessFile(journalFile, "rw");
+		readOffset = 0;
+	}
+
+	private long readOffsetFile() throws IOException {
+		if (!offsetFile.isFile() || offsetFile.length() < 8) {
+			return 0;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(offsetFile, "r")) {
+			return file.readLong();
+		}
+	}
+
+	private void writeOffsetFile(final long offset) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(offsetFile, "rw")) {
+			file.writeLong(offset);
+		}
+	}
+
+	private static int crc(final byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * The build a message is sent for and the id its credentials were found
+	 * by, enough to find them again when the message is delivered
+	 */
+	static final class Origin {
+		private final String jobFullName;
+		private final int buildNumber;
+		private final String credentialsId;
+
+		Origin(final Run<?, ?> run, final String credentialsId) {
+			jobFullName = run.getParent().getFullName();
+			buildNumber = run.getNumber();
+			this.credentialsId = credentialsId;
+		}
+
+		Entry entry(final String spaceId, final SparkMessageType messageType, final String message) {
+			return new Entry(jobFullName, buildNumber, credentialsId, spaceId, messageType, message);
+		}
+	}
+
+	/**
+	 * A rendered message for one space. Only the credentials ID is stored,
+	 * never the token.
+	 */
+	public static class Entry {
+		private final String jobFullName;
+		private final int buildNumber;
+		private final String credentialsId;
+		private final String spaceId;
+		private final SparkMessageType messageType;
+		private final String message;
+
+		public Entry(final Run<?, ?> run, final String credentialsId, final String spaceId,
+				final SparkMessageType messageType, final String message) {
+			this(run.getParent().getFullName(), run.getNumber(), credentialsId, spaceId, messageType, message);
+		}
+
+		Entry(final String jobFullName, final int buildNumber, final String credentialsId, final String spaceId,
+				final SparkMessageType messageType, final String message) {
+			this.jobFullName = jobFullName;
+			this.buildNumber = buildNumber;
+			this.credentialsId = credentialsId;
+			this.spaceId = spaceId;
+			this.messageType = messageType;
+			this.message = message;
+		}
+
+		byte[] encode() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_VERSION);
+			writeString(out, jobFullName);
+			out.writeInt(buildNumber);
+			writeString(out, credentialsId);
+			writeString(out, spaceId);
+			writeString(out, messageType.name());
+			writeString(out, message);
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		private static Entry decode(final byte[] payload) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			int version = in.readByte();
+			if (version != RECORD_VERSION) {
+				throw new IOException("Unknown spark outbox record version " + version);
+			}
+			String jobFullName = readString(in);
+			int buildNumber = in.readInt();
+			String credentialsId = readString(in);
+			String spaceId = readString(in);
+			SparkMessageType messageType = SparkMessageType.valueOf(readString(in));
+			String message = readString(in);
+			return new Entry(jobFullName, buildNumber, credentialsId, spaceId, messageType, message);
+		}
+
+		private static void writeString(final DataOutputStream out, final String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private static String readString(final DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+			if (length > in.available()) {
+				throw new IOException("Spark outbox record is shorter than its fields");
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		String getSpaceId() {
+			return spaceId;
+		}
+
+		String getMessage() {
+			return message;
+		}
+
+		@SuppressWarnings("rawtypes")
+		private Credentials findCredentials() {
+			Jenkins jenkins = Jenkins.getInstance();
+			if (jenkins == null) {
+				return null;
+			}
+			Job job = jenkins.getItemByFullName(jobFullName, Job.class);
+			if (job == null) {
+				return null;
+			}
+			Run run = job.getBuildByNumber(buildNumber);
+			if (run != null) {
+				return SparkCredentialsCache.find(credentialsId, run);
+			}
+			return CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(StringCredentials.class, job,
+					ACL.SYSTEM, Collections.<DomainRequirement>emptyList()), CredentialsMatchers.withId(credentialsId));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.jenkins.plugins.sparknotify;
+
+import hudson.model.Result;
+
+/**
+ * Order in which waiting messages are sent when the spark api cannot keep up,
+ * most urgent first
+ */
+public enum SparkPriority {
+	HIGH, NORMAL, LOW;
+
+	/**
+	 * @return high for failed and unstable builds, low for successful ones
+	 */
+	public static SparkPriority forResult(final Result result) {
+		if (result == null) {
+			return NORMAL;
+		}
+		if (result == Result.FAILURE || result == Result.UNSTABLE) {
+			return HIGH;
+		}
+		if (result == Result.SUCCESS) {
+			return LOW;
+		}
+		return NORMAL;
+	}
+
+	/**
+	 * @return the priority named, ignoring case, or normal if there is none
+	 */
+	public static SparkPriority fromName(final String name) {
+		for (SparkPriority priority : values()) {
+			if (priority.name().equalsIgnoreCase(name)) {
+				return priority;
+			}
+		}
+		return NORMAL;
+	}
+}
@@ -0,0 +1,189 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.util.Timer;
+
+/**
+ * Client-side token bucket for one spark token. The allowed rate is learned:
+ * it is halved and paused for Retry-After whenever the api answers 429, and
+ * creeps back up while requests succeed. A token's bucket is dropped once it
+ * has not been used for a while.
+ */
+public class SparkRateLimiter {
+	static final int TOO_MANY_REQUESTS = 429;
+
+	private static final double INITIAL_RATE = 10;
+	private static final double MIN_RATE = 0.2;
+	private static final double MAX_RATE = 100;
+	private static final long DEFAULT_RETRY_AFTER_SECONDS = 5;
+	private static final long MAX_RETRY_AFTER_SECONDS = 300;
+	private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+	private static final ConcurrentMap<String, SparkRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+	/** turns off client-side pacing, for benchmarks and load tests against a local server */
+	private static volatile boolean disabled;
+
+	private final String key;
+	private double ratePerSecond = INITIAL_RATE;
+	private double tokens = 1;
+	private long lastRefillNanos = System.nanoTime();
+	private long lastUsedNanos = lastRefillNanos;
+	/** dropped from the limiters; the next caller creates a new one */
+	private boolean evicted;
+
+	SparkRateLimiter() {
+		this(null);
+	}
+
+	private SparkRateLimiter(final String key) {
+		this.key = key;
+	}
+
+	/**
+	 * @param key
+	 *            identifies the token the requests are sent with, never the
+	 *            token itself
+	 */
+	public static SparkRateLimiter forKey(final String key) {
+		while (true) {
+			SparkRateLimiter limiter = LIMITERS.get(key);
+			if (limiter == null) {
+				SparkRateLimiter created = new SparkRateLimiter(key);
+				limiter = LIMITERS.putIfAbsent(key, created);
+				if (limiter == null) {
+					created.scheduleEviction(IDLE_NANOS);
+					return created;
+				}
+			}
+			if (limiter.touch()) {
+				return limiter;
+			}
+		}
+	}
+
+	/**
+	 * @return false if the limiter was already evicted
+	 */
+	private synchronized boolean touch() {
+		lastUsedNanos = System.nanoTime();
+		return !evicted;
+	}
+
+	private void scheduleEviction(final long delayNanos) {
+		Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				evictIfIdle();
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Drops the limiter if it has not been used for a while and is not
+	 * waiting out a Retry-After
+	 */
+	private void evictIfIdle() {
+		long idleNanos;
+		synchronized (this) {
+			idleNanos = System.nanoTime() - Math.max(lastUsedNanos, lastRefillNanos);
+			if (idleNanos >= IDLE_NANOS) {
+				evicted = true;
+				LIMITERS.remove(key, this);
+				return;
+			}
+		}
+		scheduleEviction(IDLE_NANOS - idleNanos);
+	}
+
+	/**
+	 * Blocks until the caller may send a request
+	 */
+	public void acquire() throws InterruptedException {
+		long waitNanos = reserve();
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Takes a token, going into debt if none is available
+	 *
+	 * @return nanoseconds the caller must wait before sending
+	 */
+	public synchronized long reserve() {
+		long now = System.nanoTime();
+		lastUsedNanos = now;
+		if (disabled) {
+			return 0;
+		}
+		refill(now);
+		tokens -= 1;
+		long waitNanos = lastRefillNanos - now;
+		if (tokens < 0) {
+			waitNanos += (long) (-tokens / ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+		}
+		return Math.max(0, waitNanos);
+	}
+
+	/**
+	 * Records a request that was not rate limited
+	 */
+	public synchronized void onSuccess() {
+		ratePerSecond = Math.min(MAX_RATE, ratePerSecond + 1 / ratePerSecond);
+	}
+
+	/**
+	 * Records a 429 response: halves the rate and stops issuing tokens until
+	 * Retry-After has passed
+	 *
+	 * @param retryAfter
+	 *            value of the Retry-After header, may be null
+	 * @return seconds until requests may be sent again
+	 */
+	public synchronized long onRateLimited(final String retryAfter) {
+		long retryAfterSeconds = parseRetryAfter(retryAfter);
+		ratePerSecond = Math.max(MIN_RATE, ratePerSecond / 2);
+		long now = System.nanoTime();
+		refill(now);
+		tokens = Math.min(tokens, 0);
+		lastRefillNanos = Math.max(lastRefillNanos, now + TimeUnit.SECONDS.toNanos(retryAfterSeconds));
+		return retryAfterSeconds;
+	}
+
+	/**
+	 * Only for benchmarks and tests; there is no way to turn pacing off in a
+	 * running jenkins
+	 */
+	static void setDisabled(final boolean disabled) {
+		SparkRateLimiter.disabled = disabled;
+	}
+
+	public synchronized double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	private void refill(final long now) {
+		if (now > lastRefillNanos) {
+			double burst = Math.max(1, ratePerSecond);
+			tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+			lastRefillNanos = now;
+		}
+	}
+
+	private static long parseRetryAfter(final String retryAfter) {
+		if (retryAfter == null) {
+			return DEFAULT_RETRY_AFTER_SECONDS;
+		}
+		try {
+			long seconds = Long.parseLong(retryAfter.trim());
+			return Math.min(MAX_RETRY_AFTER_SECONDS, Math.max(1, seconds));
+		} catch (NumberFormatException e) {
+			// http-date form is not used by the spark api
+			return DEFAULT_RETRY_AFTER_SECONDS;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and how long a failed send is retried: exponential backoff with
+ * full jitter, bounded by a number of attempts and an overall deadline
+ */
+public class SparkRetryPolicy {
+	private static final Random JITTER = new Random();
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long deadlineMillis;
+
+	public SparkRetryPolicy(final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis,
+			final long deadlineMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	public static SparkRetryPolicy fromConfiguration(final SparkGlobalConfiguration config) {
+		return new SparkRetryPolicy(config.getRetryAttempts(), config.getRetryDelay(),
+				TimeUnit.SECONDS.toMillis(config.getRetryMaxDelay()), TimeUnit.SECONDS.toMillis(config.getRetryDeadline()));
+	}
+
+	/**
+	 * @return total number of attempts, including the first one
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return nanoTime after which no further attempt is started
+	 */
+	public long deadlineFrom(final long startNanos) {
+		return startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+	}
+
+	/**
+	 * @param retry
+	 *            zero for the first retry
+	 * @return a random delay between zero and the exponential backoff cap
+	 */
+	public long backoffMillis(final int retry) {
+		long cap = baseDelayMillis << Math.min(retry, 20);
+		cap = Math.min(maxDelayMillis, cap);
+		synchronized (JITTER) {
+			return (long) (JITTER.nextDouble() * cap);
+		}
+	}
+
+	/**
+	 * @return true if another attempt fits in both the attempt count and the
+	 *         deadline
+	 */
+	public boolean canRetry(final int attemptsMade, final long delayMillis, final long deadlineNanos) {
+		return attemptsMade < maxAttempts
+				&& System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) < deadlineNanos;
+	}
+
+	public static boolean isRetryable(final int responseCode) {
+		return responseCode >= 500;
+	}
+
+	/**
+	 * Connection resets, timeouts and other transport errors are retried;
+	 * configuration problems reported as SparkNotifyException are not
+	 */
+	public static boolean isRetryable(final Exception e) {
+		return e instanceof IOException && !(e instanceof SparkNotifyException);
+	}
+}
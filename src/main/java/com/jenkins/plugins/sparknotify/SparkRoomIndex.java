@@ -0,0 +1,555 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * The titles of every room a token's bot is in, so a space can be targeted by
+ * name instead of its id. Each index is loaded from the paginated rooms
+ * listing and refreshed on a background thread; a send only ever looks up the
+ * last loaded snapshot and never calls the listing itself.
+ *
+ * Refreshes page through the rooms with the most recent activity first and
+ * stop at the first room untouched since the previous refresh. Rooms the bot
+ * left and titles changed without activity are picked up by a full reload
+ * every hour.
+ */
+public final class SparkRoomIndex {
+	private static final Logger LOGGER = Logger.getLogger(SparkRoomIndex.class.getName());
+
+	static final String ROOMS_PATH = "/rooms";
+	static final int PAGE_SIZE = 1000;
+	private static final long REFRESH_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+	/** until the first load succeeds */
+	private static final long LOAD_RETRY_SECONDS = 30;
+	private static final long FULL_RELOAD_NANOS = TimeUnit.HOURS.toNanos(1);
+	/** indexes of tokens that sent nothing by name for this long stop refreshing */
+	private static final long IDLE_NANOS = TimeUnit.DAYS.toNanos(1);
+
+	private static final Map<String, SparkRoomIndex> INDEXES = new ConcurrentHashMap<>();
+	private static final JsonFactory JSON = new JsonFactory();
+	private static ScheduledExecutorService refresher;
+
+	private final String key;
+	private volatile String authorization;
+	private volatile Snapshot snapshot;
+	private volatile long lastUsed;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	/** first loads that failed, so lookups waiting for it give up early */
+	private int failedLoads;
+	/** lastActivity of the most recently active room seen, as returned by the api */
+	private String newestActivity;
+	private long lastFullLoad;
+
+	private SparkRoomIndex(final String key, final String authorization) {
+		this.key = key;
+		this.authorization = authorization;
+		lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * @param key
+	 *            a digest of the token, so each index only ever holds one
+	 *            token's authorization; never the token itself
+	 * @return the shared index for the token, starting to load it in the
+	 *         background if there is none yet
+	 */
+	static SparkRoomIndex forToken(final String key, final String authorization) {
+		SparkRoomIndex index = INDEXES.get(key);
+		if (index == null) {
+			SparkRoomIndex created = new SparkRoomIndex(key, authorization);
+			index = INDEXES.putIfAbsent(key, created);
+			if (index == null) {
+				index = created;
+				index.schedule(0);
+			}
+		}
+		index.authorization = authorization;
+		index.lastUsed = System.nanoTime();
+		return index;
+	}
+
+	/**
+	 * @return an index that is neither shared nor refreshed in the background,
+	 *         for driving {@link #refresh()} against a stub of the listing
+	 */
+	static SparkRoomIndex standalone(final String authorization) {
+		return new SparkRoomIndex("standalone", authorization);
+	}
+
+	/**
+	 * @return the id of the only room with exactly this title, without
+	 *         waiting for the first load
+	 */
+	public String resolve(final String title) throws SparkNotifyException {
+		return lookup(snapshot, title);
+	}
+
+	/**
+	 * @param deadlineNanos
+	 *            until when to wait for the first load, e.g. the first send
+	 *            by name after a restart
+	 * @return the id of the only room with exactly this title
+	 */
+	public String resolve(final String title, final long deadlineNanos)
+			throws SparkNotifyException, InterruptedException {
+		return lookup(awaitLoaded(deadlineNanos), title);
+	}
+
+	private static String lookup(final Snapshot rooms, final String title) throws SparkNotifyException {
+		if (rooms == null) {
+			throw new SparkNotifyException("Could not find space " + title
+					+ " because the list of spaces is still loading; try again shortly or use the space ID");
+		}
+		String id = rooms.get(title);
+		if (id == null) {
+			throw new SparkNotifyException("Could not find a space named " + title
+					+ "; check that the bot is a member or use the space ID");
+		}
+		if (id == Snapshot.AMBIGUOUS) {
+			throw new SparkNotifyException("Could not send to space " + title
+					+ " because more than one space has that name; use the space ID");
+		}
+		return id;
+	}
+
+	/**
+	 * @return titles indexed, or -1 before the first load
+	 */
+	public int size() {
+		Snapshot rooms = snapshot;
+		return rooms != null ? rooms.size() : -1;
+	}
+
+	/**
+	 * @return the snapshot, or null if the first load neither finished nor
+	 *         failed before the deadline
+	 */
+	private synchronized Snapshot awaitLoaded(final long deadlineNanos) throws InterruptedException {
+		int failed = failedLoads;
+		long remaining = deadlineNanos - System.nanoTime();
+		while (snapshot == null && failedLoads == failed && remaining > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = deadlineNanos - System.nanoTime();
+		}
+		return snapshot;
+	}
+
+	private synchronized void loadFailed() {
+		if (snapshot == null) {
+			failedLoads++;
+			notifyAll();
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getRefresher() {
+		if (refresher == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					new NamingThreadFactory(new DaemonThreadFactory(), "SparkRoomIndex.refresh"));
+			executor.setRemoveOnCancelPolicy(true);
+			refresher = executor;
+		}
+		return refresher;
+	}
+
+	private void schedule(final long delaySeconds) {
+		getRefresher().schedule(new Runnable() {
+			@Override
+			public void run() {
+				refreshOrExpire();
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void refreshOrExpire() {
+		if (System.nanoTime() - lastUsed > IDLE_NANOS) {
+			// dropped with its copy of the authorization header; the next lookup starts a new index
+			INDEXES.remove(key, this);
+			return;
+		}
+		try {
+			refresh();
+		} catch (IOException | ProcessingException e) {
+			LOGGER.log(Level.FINE, "Could not refresh the spark room index", e);
+			loadFailed();
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Could not refresh the spark room index", e);
+			loadFailed();
+		}
+		schedule(snapshot != null ? REFRESH_SECONDS : LOAD_RETRY_SECONDS);
+	}
+
+	/**
+	 * Loads every room, or only those active since the last refresh
+	 */
+	void refresh() throws IOException {
+		if (!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = System.nanoTime();
+			boolean full = snapshot == null || now - lastFullLoad > FULL_RELOAD_NANOS;
+			Listing listing = list(full ? null : newestActivity);
+			if (full) {
+				Snapshot loaded = Snapshot.of(listing.rooms, null);
+				synchronized (this) {
+					snapshot = loaded;
+					notifyAll();
+				}
+				lastFullLoad = now;
+			} else if (!listing.rooms.isEmpty()) {
+				snapshot = Snapshot.of(listing.rooms, snapshot);
+			}
+			if (listing.newestActivity != null) {
+				newestActivity = listing.newestActivity;
+			}
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * @param since
+	 *            lastActivity to stop at, or null to list every room
+	 */
+	private Listing list(final String since) throws IOException {
+		Listing listing = new Listing();
+		WebTarget target = SparkTransport.get().getClient()
+				.target(SparkGlobalConfiguration.get().getApiUrl() + ROOMS_PATH)
+				.queryParam("sortBy", "lastactivity").queryParam("max", PAGE_SIZE);
+		while (target != null) {
+			Response response = target.request(MediaType.APPLICATION_JSON)
+					.header(HttpHeaders.AUTHORIZATION, authorization).get();
+			try {
+				if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+					throw new SparkNotifyException(
+							"Could not list spark spaces; response code: " + response.getStatus());
+				}
+				boolean more;
+				try (InputStream body = response.readEntity(InputStream.class)) {
+					more = listing.read(body, since);
+				}
+				Link next = response.getLink("next");
+				target = more && next != null ? SparkTransport.get().getClient().target(next.getUri()) : null;
+			} finally {
+				response.close();
+			}
+		}
+		return listing;
+	}
+
+	/**
+	 * Rooms from the listing, most recently active first
+	 */
+	static final class Listing {
+		/** title by room id */
+		final Map<String, String> rooms = new LinkedHashMap<>();
+		String newestActivity;
+
+		/**
+		 * Reads one page without building a tree of it
+		 *
+		 * @return false if a room older than since was reached
+		 */
+		boolean read(final InputStream page, final String since) throws IOException {
+			try (JsonParser parser = JSON.createParser(page)) {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new SparkNotifyException("Could not read the list of spark spaces");
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.START_ARRAY && "items".equals(field)) {
+						while (parser.nextToken() == JsonToken.START_OBJECT) {
+							if (!readRoom(parser, since)) {
+								return false;
+							}
+						}
+					} else {
+						parser.skipChildren();
+					}
+				}
+			}
+			return true;
+		}
+
+		private boolean readRoom(final JsonParser parser, final String since) throws IOException {
+			String id = null;
+			String title = null;
+			String lastActivity = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (value == JsonToken.VALUE_STRING && "id".equals(field)) {
+					id = parser.getText();
+				} else if (value == JsonToken.VALUE_STRING && "title".equals(field)) {
+					title = parser.getText();
+				} else if (value == JsonToken.VALUE_STRING && "lastActivity".equals(field)) {
+					lastActivity = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (lastActivity != null) {
+				if (newestActivity == null || lastActivity.compareTo(newestActivity) > 0) {
+					newestActivity = lastActivity;
+				}
+				// iso timestamps in the same format sort as strings
+				if (since != null && lastActivity.compareTo(since) < 0) {
+					return false;
+				}
+			}
+			if (id != null && title != null) {
+				rooms.put(id, title);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * An immutable open addressing table from title to room id. Ids of the
+	 * usual form, base64 of ciscospark://us/ROOM/ and a uuid, are kept as two
+	 * longs and encoded again on lookup, which keeps tens of thousands of
+	 * rooms to a few megabytes; other ids are kept as they are.
+	 */
+	static final class Snapshot {
+		/** returned by {@link #get(String)} for a title shared by several rooms */
+		static final String AMBIGUOUS = new String("ambiguous");
+		private static final String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+		/** 21 bytes, a whole number of base64 groups, so ids start with its encoding */
+		private static final String ENCODED_PREFIX = DatatypeConverter
+				.printBase64Binary(ROOM_ID_PREFIX.getBytes(StandardCharsets.US_ASCII));
+		private static final int UUID_LENGTH = 36;
+		private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+		private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+				.toCharArray();
+
+		private final String[] titles;
+		/** most and least significant bits of each slot's uuid */
+		private final long[] uuids;
+		/** ids that are not encoded uuids, by title */
+		private final Map<String, String> otherIds;
+		/** every id for titles shared by several rooms */
+		private final Map<String, List<String>> ambiguous;
+		private final int size;
+		private final int mask;
+
+		private Snapshot(final Map<String, String> idsByTitle, final Map<String, List<String>> ambiguous) {
+			int capacity = Integer.highestOneBit(Math.max(2, idsByTitle.size() * 4 / 3 + 1) - 1) << 1;
+			titles = new String[capacity];
+			uuids = new long[capacity * 2];
+			mask = capacity - 1;
+			Map<String, String> others = new HashMap<>();
+			for (Map.Entry<String, String> entry : idsByTitle.entrySet()) {
+				int slot = slot(entry.getKey());
+				titles[slot] = entry.getKey();
+				if (!pack(entry.getValue(), uuids, slot)) {
+					others.put(entry.getKey(), entry.getValue());
+				}
+			}
+			otherIds = others.isEmpty() ? Collections.<String, String>emptyMap() : others;
+			this.ambiguous = ambiguous.isEmpty() ? Collections.<String, List<String>>emptyMap() : ambiguous;
+			size = idsByTitle.size() + ambiguous.size();
+		}
+
+		/**
+		 * @param rooms
+		 *            title by room id
+		 * @param previous
+		 *            rooms to keep unless listed again, or null
+		 */
+		static Snapshot of(final Map<String, String> rooms, final Snapshot previous) {
+			Map<String, String> idsByTitle = new HashMap<>(rooms.size() * 4 / 3 + 1);
+			Map<String, List<String>> ambiguous = new HashMap<>();
+			if (previous != null) {
+				Set<String> updated = rooms.keySet();
+				for (Iterator<Map.Entry<String, String>> it = previous.entries(); it.hasNext();) {
+					Map.Entry<String, String> entry = it.next();
+					if (!updated.contains(entry.getValue())) {
+						add(idsByTitle, ambiguous, entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			for (Map.Entry<String, String> room : rooms.entrySet()) {
+				add(idsByTitle, ambiguous, room.getValue(), room.getKey());
+			}
+			return new Snapshot(idsByTitle, ambiguous);
+		}
+
+		private static void add(final Map<String, String> idsByTitle, final Map<String, List<String>> ambiguous,
+				final String title, final String id) {
+			List<String> shared = ambiguous.get(title);
+			if (shared != null) {
+				if (!shared.contains(id)) {
+					shared.add(id);
+				}
+				return;
+			}
+			String existing = idsByTitle.put(title, id);
+			if (existing != null && !existing.equals(id)) {
+				idsByTitle.remove(title);
+				shared = new ArrayList<>(2);
+				shared.add(existing);
+				shared.add(id);
+				ambiguous.put(title, shared);
+			}
+		}
+
+		/**
+		 * @return the room id, {@link #AMBIGUOUS} or null
+		 */
+		String get(final String title) {
+			if (ambiguous.containsKey(title)) {
+				return AMBIGUOUS;
+			}
+			for (int slot = hash(title) & mask;; slot = (slot + 1) & mask) {
+				String candidate = titles[slot];
+				if (candidate == null) {
+					return null;
+				}
+				if (candidate.equals(title)) {
+					return idAt(slot);
+				}
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+		private int slot(final String title) {
+			int slot = hash(title) & mask;
+			while (titles[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private String idAt(final int slot) {
+			String other = otherIds.get(titles[slot]);
+			if (other != null) {
+				return other;
+			}
+			return encode(uuids[slot * 2], uuids[slot * 2 + 1]);
+		}
+
+		/**
+		 * @return base64 of the room uri, without going through
+		 *         {@link UUID#toString()} and a second string
+		 */
+		static String encode(final long most, final long least) {
+			byte[] uuid = new byte[UUID_LENGTH];
+			hex(most >>> 32, 8, uuid, 0);
+			uuid[8] = '-';
+			hex(most >>> 16, 4, uuid, 9);
+			uuid[13] = '-';
+			hex(most, 4, uuid, 14);
+			uuid[18] = '-';
+			hex(least >>> 48, 4, uuid, 19);
+			uuid[23] = '-';
+			hex(least, 12, uuid, 24);
+
+			char[] id = new char[ENCODED_PREFIX.length() + UUID_LENGTH / 3 * 4];
+			ENCODED_PREFIX.getChars(0, ENCODED_PREFIX.length(), id, 0);
+			int j = ENCODED_PREFIX.length();
+			for (int i = 0; i < UUID_LENGTH; i += 3) {
+				int group = (uuid[i] & 0xff) << 16 | (uuid[i + 1] & 0xff) << 8 | uuid[i + 2] & 0xff;
+				id[j++] = BASE64[group >>> 18];
+				id[j++] = BASE64[group >>> 12 & 0x3f];
+				id[j++] = BASE64[group >>> 6 & 0x3f];
+				id[j++] = BASE64[group & 0x3f];
+			}
+			return new String(id);
+		}
+
+		private static void hex(final long value, final int digits, final byte[] into, final int offset) {
+			for (int i = 0; i < digits; i++) {
+				into[offset + i] = HEX[(int) (value >>> (digits - 1 - i) * 4) & 0xf];
+			}
+		}
+
+		/**
+		 * @return false if the id is not an encoded room uuid that encodes
+		 *         back to exactly the same string
+		 */
+		private static boolean pack(final String id, final long[] uuids, final int slot) {
+			byte[] decoded;
+			try {
+				decoded = DatatypeConverter.parseBase64Binary(id);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			String uri = new String(decoded, StandardCharsets.US_ASCII);
+			if (!uri.startsWith(ROOM_ID_PREFIX)) {
+				return false;
+			}
+			UUID uuid;
+			try {
+				uuid = UUID.fromString(uri.substring(ROOM_ID_PREFIX.length()));
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			if (!encode(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()).equals(id)) {
+				return false;
+			}
+			uuids[slot * 2] = uuid.getMostSignificantBits();
+			uuids[slot * 2 + 1] = uuid.getLeastSignificantBits();
+			return true;
+		}
+
+		private static int hash(final String title) {
+			int h = title.hashCode();
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * @return every title and id, ambiguous ones included
+		 */
+		private Iterator<Map.Entry<String, String>> entries() {
+			List<Map.Entry<String, String>> entries = new ArrayList<>(size);
+			for (int slot = 0; slot < titles.length; slot++) {
+				if (titles[slot] != null) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<>(titles[slot], idAt(slot)));
+				}
+			}
+			for (Map.Entry<String, List<String>> shared : ambiguous.entrySet()) {
+				for (String id : shared.getValue()) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<>(shared.getKey(), id));
+				}
+			}
+			return entries.iterator();
+		}
+	}
+}
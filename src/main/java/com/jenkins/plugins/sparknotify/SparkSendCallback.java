@@ -0,0 +1,14 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.List;
+
+/**
+ * Receives the results of {@link SparkNotifier#sendMessagesAsync}
+ */
+public interface SparkSendCallback {
+	/**
+	 * @param results
+	 *            one result per space, in the order the spaces were given
+	 */
+	void completed(List<SparkSendResult> results);
+}
@@ -0,0 +1,258 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits sends to the spark api one lane per {@link SparkPriority}. At most
+ * {@link SparkConcurrencyLimit} messages are in flight; when one finishes the
+ * oldest message in the most urgent lane goes next. A few of those slots are kept
+ * for high priority messages, so an alert does not wait for a slow api to
+ * finish a backlog of routine ones.
+ *
+ * Each lane holds a bounded number of waiting messages; what happens to a
+ * message arriving at a full lane is set by {@link OverloadPolicy}.
+ */
+final class SparkSendLanes {
+	/**
+	 * What to do with a message whose lane is full
+	 */
+	enum OverloadPolicy {
+		/** wait for room; callers that must not block are rejected instead */
+		BLOCK,
+		/**
+		 * drop the oldest message waiting in the full lane; high priority
+		 * messages are never dropped and wait as with block
+		 */
+		DROP_OLDEST,
+		/** fail the new message */
+		REJECT;
+
+		/**
+		 * @return the policy named, or block if there is none
+		 */
+		static OverloadPolicy fromName(final String name) {
+			for (OverloadPolicy policy : values()) {
+				if (policy.name().equals(name)) {
+					return policy;
+				}
+			}
+			return BLOCK;
+		}
+	}
+
+	/**
+	 * A message waiting for a slot
+	 */
+	abstract static class Task {
+		private final SparkPriority priority;
+
+		Task(final SparkPriority priority) {
+			this.priority = priority;
+		}
+
+		/**
+		 * Starts sending; must not block, and must lead to exactly one
+		 * {@link SparkSendLanes#release()} once the send finishes
+		 */
+		abstract void start();
+
+		/**
+		 * The message was not admitted; no slot is held
+		 */
+		abstract void rejected(SparkNotifyException e);
+	}
+
+	/**
+	 * A message turned away because its lane was full; sending it again
+	 * later may succeed
+	 */
+	static class OverloadedException extends SparkNotifyException {
+		private static final long serialVersionUID = 1L;
+
+		OverloadedException(final String message) {
+			super(message);
+		}
+	}
+
+	private static SparkSendLanes instance;
+
+	private final List<Deque<Task>> lanes = new ArrayList<>();
+	private int capacity;
+	private OverloadPolicy policy;
+	private int running;
+
+	SparkSendLanes(final SparkGlobalConfiguration config) {
+		for (int i = 0; i < SparkPriority.values().length; i++) {
+			lanes.add(new ArrayDeque<Task>());
+		}
+		configure(config);
+	}
+
+	static synchronized SparkSendLanes get() {
+		if (instance == null) {
+			instance = new SparkSendLanes(SparkGlobalConfiguration.get());
+		}
+		return instance;
+	}
+
+	/**
+	 * Applies changed global settings; waiting messages keep their place
+	 */
+	static void reconfigure(final SparkGlobalConfiguration config) {
+		SparkSendLanes lanes;
+		synchronized (SparkSendLanes.class) {
+			lanes = instance;
+		}
+		if (lanes != null) {
+			List<Task> ready;
+			synchronized (lanes) {
+				lanes.configure(config);
+				// a larger capacity or a new policy may free blocked callers
+				lanes.notifyAll();
+				ready = lanes.takeReady();
+			}
+			start(ready);
+		}
+	}
+
+	/**
+	 * Starts waiting messages after the concurrency limit has grown
+	 */
+	static void limitChanged() {
+		SparkSendLanes lanes;
+		synchronized (SparkSendLanes.class) {
+			lanes = instance;
+		}
+		if (lanes != null) {
+			List<Task> ready;
+			synchronized (lanes) {
+				ready = lanes.takeReady();
+			}
+			start(ready);
+		}
+	}
+
+	private void configure(final SparkGlobalConfiguration config) {
+		capacity = config.getQueueCapacity();
+		policy = OverloadPolicy.fromName(config.getOverloadPolicy());
+	}
+
+	/**
+	 * Queues the message, starting it straight away if a slot is free
+	 *
+	 * @param mayBlock
+	 *            false if the caller must not wait for room in a full lane
+	 * @param deadlineNanos
+	 *            when to stop waiting for room in a full lane
+	 * @return false if the deadline passed before there was room; the task is
+	 *         then neither queued nor rejected
+	 */
+	boolean submit(final Task task, final boolean mayBlock, final long deadlineNanos)
+			throws InterruptedException {
+		List<Task> ready;
+		Task dropped = null;
+		SparkNotifyException rejection = null;
+		synchronized (this) {
+			Deque<Task> lane = lanes.get(task.priority.ordinal());
+			while (lane.size() >= capacity && mayBlock && waits(task.priority)) {
+				long remaining = deadlineNanos - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			if (lane.size() >= capacity) {
+				if (policy == OverloadPolicy.DROP_OLDEST && task.priority != SparkPriority.HIGH) {
+					dropped = lane.pollFirst();
+				}
+				if (dropped == null) {
+					rejection = new OverloadedException("Could not send message because the "
+							+ task.priority.name().toLowerCase() + " priority send queue is full");
+				}
+			}
+			if (rejection == null) {
+				lane.addLast(task);
+			}
+			ready = takeReady();
+		}
+		if (dropped != null) {
+			dropped.rejected(new OverloadedException(
+					"Could not send message because it was dropped to make room for newer messages"));
+		}
+		if (rejection != null) {
+			task.rejected(rejection);
+		}
+		start(ready);
+		return true;
+	}
+
+	/**
+	 * Removes a message that has not started yet
+	 *
+	 * @return false if it already started or was rejected
+	 */
+	boolean cancel(final Task task) {
+		synchronized (this) {
+			if (!lanes.get(task.priority.ordinal()).remove(task)) {
+				return false;
+			}
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Frees the slot of a finished send and starts the next message
+	 */
+	void release() {
+		List<Task> ready;
+		synchronized (this) {
+			running--;
+			ready = takeReady();
+		}
+		start(ready);
+	}
+
+	private boolean waits(final SparkPriority priority) {
+		return policy == OverloadPolicy.BLOCK
+				|| policy == OverloadPolicy.DROP_OLDEST && priority == SparkPriority.HIGH;
+	}
+
+	private List<Task> takeReady() {
+		List<Task> ready = new ArrayList<>();
+		SparkConcurrencyLimit concurrency = SparkConcurrencyLimit.get();
+		int slots = concurrency.getLimit();
+		// slots only high priority messages may use
+		int reservedSlots = slots > 1 ? Math.max(1, slots / 5) : 0;
+		boolean waiting = false;
+		for (int i = 0; i < lanes.size(); i++) {
+			int limit = i == SparkPriority.HIGH.ordinal() ? slots : slots - reservedSlots;
+			Deque<Task> lane = lanes.get(i);
+			while (running < limit && !lane.isEmpty()) {
+				ready.add(lane.pollFirst());
+				running++;
+			}
+			waiting |= !lane.isEmpty();
+		}
+		if (waiting) {
+			concurrency.saturated();
+		}
+		if (!ready.isEmpty()) {
+			notifyAll();
+		}
+		return ready;
+	}
+
+	/**
+	 * Starts outside the lock, since a task may finish and release at once
+	 */
+	private static void start(final List<Task> ready) {
+		for (Task task : ready) {
+			task.start();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.jenkins.plugins.sparknotify;
+
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Outcome of sending a message to a single spark space
+ */
+public class SparkSendResult {
+	private final String spaceId;
+	private final int responseCode;
+	private final Exception exception;
+	private final boolean queued;
+	private final boolean suppressed;
+	private final SparkSendTiming timing;
+
+	private SparkSendResult(final String spaceId, final int responseCode, final Exception exception,
+			final boolean queued, final boolean suppressed, final SparkSendTiming timing) {
+		this.spaceId = spaceId;
+		this.responseCode = responseCode;
+		this.exception = exception;
+		this.queued = queued;
+		this.suppressed = suppressed;
+		this.timing = timing;
+		if (timing != null) {
+			timing.finish();
+		}
+	}
+
+	public static SparkSendResult response(final String spaceId, final int responseCode) {
+		return response(spaceId, responseCode, null);
+	}
+
+	public static SparkSendResult response(final String spaceId, final int responseCode,
+			final SparkSendTiming timing) {
+		return new SparkSendResult(spaceId, responseCode, null, false, false, timing);
+	}
+
+	public static SparkSendResult failure(final String spaceId, final Exception exception) {
+		return failure(spaceId, exception, null);
+	}
+
+	public static SparkSendResult failure(final String spaceId, final Exception exception,
+			final SparkSendTiming timing) {
+		return new SparkSendResult(spaceId, -1, exception, false, false, timing);
+	}
+
+	/**
+	 * @return a result for a message held back to be sent later as part of a
+	 *         digest
+	 */
+	public static SparkSendResult queued(final String spaceId) {
+		return new SparkSendResult(spaceId, Status.ACCEPTED.getStatusCode(), null, true, false, null);
+	}
+
+	/**
+	 * @return a result for a message not sent because the same message was
+	 *         sent to the space recently
+	 */
+	public static SparkSendResult suppressed(final String spaceId) {
+		return new SparkSendResult(spaceId, -1, null, false, true, null);
+	}
+
+	public String getSpaceId() {
+		return spaceId;
+	}
+
+	/**
+	 * @return the http response code, or -1 if no response was received or
+	 *         the message was suppressed
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * @return the exception thrown while sending, or null if a response was
+	 *         received
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * @return true if the message was not sent yet but will be as part of a
+	 *         digest
+	 */
+	public boolean isQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return true if the message was not sent because the same message was
+	 *         sent to the space recently
+	 */
+	public boolean isSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @return where the time went while sending, or null if nothing was sent
+	 */
+	public SparkSendTiming getTiming() {
+		return timing;
+	}
+
+	public boolean isSuccess() {
+		return exception == null && responseCode == Status.OK.getStatusCode();
+	}
+}
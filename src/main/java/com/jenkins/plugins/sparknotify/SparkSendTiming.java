@@ -0,0 +1,72 @@
+package com.jenkins.plugins.sparknotify;
+
+/**
+ * Where the time went while sending one message to one space. Updated by one
+ * send at a time, so it is not synchronized.
+ */
+public class SparkSendTiming {
+	private final long startNanos = System.nanoTime();
+	private final long renderNanos;
+	private int attempts;
+	private long connectNanos;
+	private long requestNanos;
+	private long totalNanos = -1;
+
+	/**
+	 * @param renderNanos
+	 *            time spent rendering the message, shared by every space it
+	 *            is sent to
+	 */
+	public SparkSendTiming(final long renderNanos) {
+		this.renderNanos = renderNanos;
+	}
+
+	/**
+	 * Records one http request
+	 *
+	 * @param connectNanos
+	 *            part of the request spent opening a connection
+	 */
+	void addRequest(final long requestNanos, final long connectNanos) {
+		attempts++;
+		this.requestNanos += requestNanos;
+		this.connectNanos += connectNanos;
+	}
+
+	void finish() {
+		if (totalNanos < 0) {
+			totalNanos = System.nanoTime() - startNanos;
+		}
+	}
+
+	public long getRenderNanos() {
+		return renderNanos;
+	}
+
+	/**
+	 * @return http requests made, including retries
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	/**
+	 * @return time between sending requests and receiving their responses,
+	 *         not counting connecting
+	 */
+	public long getResponseNanos() {
+		return requestNanos - connectNanos;
+	}
+
+	/**
+	 * @return time spent waiting for a sender thread, the rate limiter and
+	 *         retry backoff
+	 */
+	public long getDelayNanos() {
+		return Math.max(0, (totalNanos < 0 ? System.nanoTime() - startNanos : totalNanos) - requestNanos);
+	}
+}
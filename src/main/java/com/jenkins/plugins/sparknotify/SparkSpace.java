@@ -3,6 +3,7 @@ package com.jenkins.plugins.sparknotify;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 
@@ -18,6 +19,14 @@ public final class SparkSpace extends AbstractDescribableImpl<SparkSpace> {
 		return spaceId;
 	}
 
+	/**
+	 * @return true if only a name is given, so the space is looked up by its
+	 *         title
+	 */
+	public boolean isByName() {
+		return Util.fixEmptyAndTrim(spaceId) == null && Util.fixEmptyAndTrim(spaceName) != null;
+	}
+
 	@DataBoundConstructor
 	public SparkSpace(final String spaceName, final String spaceId) {
 		this.spaceName = spaceName;
@@ -0,0 +1,217 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks space ids without throwing: either a plain uuid or a base64 encoded
+ * ciscospark://us/ROOM/ uuid. Recent results are cached since config pages
+ * validate every row each time they are loaded.
+ *
+ * As the original check did, the first character after the prefix is not
+ * part of the uuid that is checked.
+ */
+public final class SparkSpaceIdValidator {
+	private static final String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+	private static final byte[] ROOM_ID_PREFIX_BYTES = ROOM_ID_PREFIX.getBytes(StandardCharsets.US_ASCII);
+	private static final int CACHE_SIZE = 1024;
+	private static final int UUID_COMPONENTS = 5;
+	private static final int MAX_SIGNIFICANT_HEX_DIGITS = 16;
+
+	/** values of the standard and url-safe base64 alphabets, -1 elsewhere */
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+		BASE64_VALUES['+'] = 62;
+		BASE64_VALUES['-'] = 62;
+		BASE64_VALUES['/'] = 63;
+		BASE64_VALUES['_'] = 63;
+	}
+
+	private static final Map<String, Boolean> CACHE = Collections
+			.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private SparkSpaceIdValidator() {}
+
+	public static boolean isValid(final String spaceId) {
+		if (spaceId == null) {
+			return false;
+		}
+		Boolean valid = CACHE.get(spaceId);
+		if (valid == null) {
+			valid = check(spaceId);
+			CACHE.put(spaceId, valid);
+		}
+		return valid;
+	}
+
+	/**
+	 * Validates without consulting the cache
+	 */
+	static boolean check(final String spaceId) {
+		return isUuid(spaceId, 0, spaceId.length()) || isEncodedRoomId(spaceId);
+	}
+
+	/**
+	 * @return whether each id is valid, in the order given
+	 */
+	public static Map<String, Boolean> validateAll(final Collection<String> spaceIds) {
+		Map<String, Boolean> results = new LinkedHashMap<>(spaceIds.size() * 4 / 3 + 1);
+		for (String spaceId : spaceIds) {
+			if (!results.containsKey(spaceId)) {
+				results.put(spaceId, isValid(spaceId));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Same rules as {@link java.util.UUID#fromString(String)}: five hyphen
+	 * separated groups of hex digits, each fitting in a long
+	 */
+	static boolean isUuid(final CharSequence value, final int from, final int to) {
+		int end = to;
+		// String.split drops trailing empty groups
+		while (end > from && value.charAt(end - 1) == '-') {
+			end--;
+		}
+
+		int components = 0;
+		int start = from;
+		while (start <= end) {
+			int hyphen = start;
+			while (hyphen < end && value.charAt(hyphen) != '-') {
+				hyphen++;
+			}
+			if (++components > UUID_COMPONENTS || !isHexLong(value, start, hyphen)) {
+				return false;
+			}
+			start = hyphen + 1;
+		}
+		return components == UUID_COMPONENTS;
+	}
+
+	private static boolean isHexLong(final CharSequence value, final int from, final int to) {
+		if (from >= to) {
+			return false;
+		}
+		int significant = 0;
+		int firstDigit = 0;
+		for (int i = from; i < to; i++) {
+			int digit = Character.digit(value.charAt(i), 16);
+			if (digit < 0) {
+				return false;
+			}
+			if (significant == 0) {
+				firstDigit = digit;
+			}
+			if (significant > 0 || digit != 0) {
+				significant++;
+			}
+		}
+		return significant < MAX_SIGNIFICANT_HEX_DIGITS
+				|| (significant == MAX_SIGNIFICANT_HEX_DIGITS && firstDigit < 8);
+	}
+
+	/**
+	 * Decodes leniently like commons-codec: characters outside the alphabets
+	 * are skipped and padding ends the input
+	 */
+	private static boolean isEncodedRoomId(final String spaceId) {
+		byte[] decoded = new byte[spaceId.length() * 3 / 4 + 2];
+		int length = 0;
+		int bits = 0;
+		int buffered = 0;
+		for (int i = 0; i < spaceId.length(); i++) {
+			char c = spaceId.charAt(i);
+			if (c == '=') {
+				break;
+			}
+			if (c >= BASE64_VALUES.length || BASE64_VALUES[c] < 0) {
+				continue;
+			}
+			bits = bits << 6 | BASE64_VALUES[c];
+			if (++buffered == 4) {
+				decoded[length++] = (byte) (bits >> 16);
+				decoded[length++] = (byte) (bits >> 8);
+				decoded[length++] = (byte) bits;
+				bits = 0;
+				buffered = 0;
+			}
+		}
+		if (buffered == 2) {
+			decoded[length++] = (byte) (bits >> 4);
+		} else if (buffered == 3) {
+			decoded[length++] = (byte) (bits >> 10);
+			decoded[length++] = (byte) (bits >> 2);
+		}
+
+		if (length < ROOM_ID_PREFIX_BYTES.length) {
+			return false;
+		}
+		for (int i = 0; i < ROOM_ID_PREFIX_BYTES.length; i++) {
+			if (decoded[i] != ROOM_ID_PREFIX_BYTES[i]) {
+				return false;
+			}
+		}
+		for (int i = ROOM_ID_PREFIX_BYTES.length; i < length; i++) {
+			if (decoded[i] < 0) {
+				// not ascii, let the charset decide what the characters are
+				String suffix = new String(decoded, ROOM_ID_PREFIX_BYTES.length, length - ROOM_ID_PREFIX_BYTES.length,
+						StandardCharsets.UTF_8);
+				return isUuid(suffix, 1, suffix.length());
+			}
+		}
+		return isUuid(new AsciiSequence(decoded, length), ROOM_ID_PREFIX_BYTES.length + 1, length);
+	}
+
+	/**
+	 * Views ascii bytes as characters without copying them
+	 */
+	private static final class AsciiSequence implements CharSequence {
+		private final byte[] bytes;
+		private final int length;
+
+		AsciiSequence(final byte[] bytes, final int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			return (char) bytes[index];
+		}
+
+		@Override
+		public CharSequence subSequence(final int start, final int end) {
+			return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+}
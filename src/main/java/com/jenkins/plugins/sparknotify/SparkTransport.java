@@ -0,0 +1,227 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+
+import jenkins.util.Timer;
+
+/**
+ * Shared http client for the spark api, backed by a pool of keep-alive
+ * connections. Rebuilt whenever the global configuration changes.
+ */
+public final class SparkTransport {
+	private static final long EVICTION_INTERVAL_SECONDS = 10;
+
+	private static SparkTransport instance;
+
+	/**
+	 * Time spent opening connections on each thread; the apache connector
+	 * opens the connection on the thread that executes the request
+	 */
+	private static final ThreadLocal<long[]> CONNECT_NANOS = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private final CountingConnectionManager connectionManager;
+	private final Client client;
+	private final ScheduledFuture<?> evictor;
+
+	private SparkTransport(final SparkGlobalConfiguration config) {
+		connectionManager = new CountingConnectionManager();
+		connectionManager.setMaxTotal(config.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+		connectionManager.setValidateAfterInactivity(2000);
+
+		int connectTimeout = (int) TimeUnit.SECONDS.toMillis(config.getConnectTimeout());
+		// a hedged request may use two async threads at once
+		int asyncThreads = SparkConcurrencyLimit.getMaxLimit(config) * (config.getHedgePercentile() > 0 ? 2 : 1);
+		ClientConfig clientConfig = new ClientConfig()
+				.register(JacksonJsonProvider.class)
+				.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+				// waiting for a pooled connection counts against the connect timeout
+				.property(ApacheClientProperties.REQUEST_CONFIG,
+						RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).build())
+				.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout)
+				.property(ClientProperties.READ_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(config.getReadTimeout()))
+				.property(ClientProperties.ASYNC_THREADPOOL_SIZE, asyncThreads)
+				.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED)
+				.connectorProvider(new ApacheConnectorProvider());
+		client = ClientBuilder.newClient(clientConfig);
+
+		final long idleTimeout = config.getIdleTimeout();
+		evictor = Timer.get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+			}
+		}, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public static synchronized SparkTransport get() {
+		if (instance == null) {
+			instance = new SparkTransport(SparkGlobalConfiguration.get());
+		}
+		return instance;
+	}
+
+	/**
+	 * Replaces the shared transport; the previous one is closed once requests
+	 * already using it have had time to finish
+	 */
+	static synchronized void reconfigure(final SparkGlobalConfiguration config) {
+		final SparkTransport previous = instance;
+		instance = new SparkTransport(config);
+		if (previous != null) {
+			Timer.get().schedule(new Runnable() {
+				@Override
+				public void run() {
+					previous.close();
+				}
+			}, config.getConnectTimeout() + config.getReadTimeout(), TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return nanoseconds the current thread spent opening connections since
+	 *         the last call
+	 */
+	static long takeConnectNanos() {
+		long[] connectNanos = CONNECT_NANOS.get();
+		long taken = connectNanos[0];
+		connectNanos[0] = 0;
+		return taken;
+	}
+
+	public Client getClient() {
+		return client;
+	}
+
+	/**
+	 * @return a snapshot of the connection pool
+	 */
+	public Statistics getStatistics() {
+		PoolStats stats = connectionManager.getTotalStats();
+		return new Statistics(stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(),
+				connectionManager.requests.get(), connectionManager.connects.get());
+	}
+
+	private void close() {
+		evictor.cancel(false);
+		client.close();
+		connectionManager.shutdown();
+	}
+
+	/**
+	 * Counts leases and newly opened connections so connection reuse can be
+	 * observed
+	 */
+	private static class CountingConnectionManager extends PoolingHttpClientConnectionManager {
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong connects = new AtomicLong();
+
+		@Override
+		public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+			requests.incrementAndGet();
+			return super.requestConnection(route, state);
+		}
+
+		@Override
+		public void connect(final HttpClientConnection managedConn, final HttpRoute route, final int connectTimeout,
+				final HttpContext context) throws IOException {
+			connects.incrementAndGet();
+			long started = System.nanoTime();
+			try {
+				super.connect(managedConn, route, connectTimeout, context);
+			} finally {
+				CONNECT_NANOS.get()[0] += System.nanoTime() - started;
+			}
+		}
+	}
+
+	public static class Statistics {
+		private final int leased;
+		private final int available;
+		private final int pending;
+		private final int max;
+		private final long requests;
+		private final long connects;
+
+		Statistics(final int leased, final int available, final int pending, final int max, final long requests,
+				final long connects) {
+			this.leased = leased;
+			this.available = available;
+			this.pending = pending;
+			this.max = max;
+			this.requests = requests;
+			this.connects = connects;
+		}
+
+		public int getLeased() {
+			return leased;
+		}
+
+		public int getAvailable() {
+			return available;
+		}
+
+		public int getPending() {
+			return pending;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		/**
+		 * @return number of connections leased from the pool since it was
+		 *         created
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return number of new connections opened since the pool was created
+		 */
+		public long getConnects() {
+			return connects;
+		}
+
+		/**
+		 * @return fraction of requests served by an already open connection
+		 */
+		public double getReuseRatio() {
+			return requests == 0 ? 0 : (double) (requests - connects) / requests;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("leased=%d available=%d pending=%d max=%d requests=%d connects=%d reuse=%.2f",
+					leased, available, pending, max, requests, connects, getReuseRatio());
+		}
+	}
+}
@@ -1,40 +1,38 @@
 package com.jenkins.plugins.sparknotify.workflow;
 
-import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
-import javax.ws.rs.core.Response.Status;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.jenkins.plugins.sparknotify.SparkDispatch;
+import com.jenkins.plugins.sparknotify.SparkDispatcher;
 import com.jenkins.plugins.sparknotify.SparkMessage;
-import com.jenkins.plugins.sparknotify.SparkMessageType;
-import com.jenkins.plugins.sparknotify.SparkNotifier;
-import com.jenkins.plugins.sparknotify.SparkNotifyException;
+import com.jenkins.plugins.sparknotify.SparkPriority;
 import com.jenkins.plugins.sparknotify.SparkSpace;
 
 import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -51,6 +49,9 @@ public class SparkSendStep extends AbstractStepImpl {
 	private List<SparkSpace> spaceList;
 	private boolean disable;
 	private boolean failOnError;
+	private String attachment;
+	private String priority;
+	private int timeout;
 
 	public String getMessage() {
 		return message;
@@ -94,6 +95,45 @@ public class SparkSendStep extends AbstractStepImpl {
 		this.failOnError = failOnError;
 	}
 
+	/**
+	 * @return path of a file to send with the message, relative to the
+	 *         workspace or the archived artifacts
+	 */
+	public String getAttachment() {
+		return attachment;
+	}
+
+	@DataBoundSetter
+	public void setAttachment(final String attachment) {
+		this.attachment = Util.fixEmptyAndTrim(attachment);
+	}
+
+	/**
+	 * @return high, normal or low; which messages go first while every send
+	 *         is busy
+	 */
+	public String getPriority() {
+		return priority;
+	}
+
+	@DataBoundSetter
+	public void setPriority(final String priority) {
+		this.priority = Util.fixEmptyAndTrim(priority);
+	}
+
+	/**
+	 * @return seconds the message may take to reach every space, or 0 for
+	 *         the global send timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	@DataBoundSetter
+	public void setTimeout(final int timeout) {
+		this.timeout = timeout;
+	}
+
 	@DataBoundConstructor
 	public SparkSendStep(final String message, final List<SparkSpace> spaceList, final String credentialsId) {
 		this.message = message;
@@ -101,7 +141,12 @@ public class SparkSendStep extends AbstractStepImpl {
 		this.credentialsId = credentialsId;
 	}
 
-	public static class SparkSendStepExecution extends AbstractSynchronousNonBlockingStepExecution<Void> {
+	/**
+	 * Sends without holding a thread for the duration of the http requests, and
+	 * without rendering or resolving anything on the CPS thread; the step
+	 * completes from the dispatcher's callback once every space has a result
+	 */
+	public static class SparkSendStepExecution extends AbstractStepExecutionImpl {
 
 		private static final long serialVersionUID = 1L;
 
@@ -114,77 +159,69 @@ public class SparkSendStep extends AbstractStepImpl {
 		@StepContextParameter
 		transient TaskListener listener;
 
-		@Override
-		protected Void run() throws IOException, InterruptedException {
-			if (step.disable) {
-				listener.getLogger().println("Spark Notifier Plugin Disabled!");
-				return null;
-			}
+		/** set by whichever of the dispatch and stop completes the step */
+		private final AtomicBoolean done = new AtomicBoolean();
+		private transient volatile Future<?> dispatching;
 
-			if (!SparkMessage.isMessageValid(step.getMessage())) {
-				String error = "Skipping spark notifications because no message was defined";
-				if (step.failOnError) {
-					throw new AbortException(error);
+		@Override
+		public boolean start() throws Exception {
+			SparkDispatch dispatch = new SparkDispatch("sparkSend", getContext().get(Run.class), listener, envVars);
+			dispatch.setDisabled(step.disable);
+			dispatch.setFailOnError(step.failOnError);
+			dispatch.setMessage(step.getMessage());
+			dispatch.setMessageType(step.messageType);
+			dispatch.setPriority(SparkPriority.fromName(step.priority));
+			dispatch.setTimeout(step.timeout);
+			List<String> spaceIds = new ArrayList<>(step.getSpaceList().size());
+			List<String> spaceNames = new ArrayList<>();
+			for (SparkSpace space : step.getSpaceList()) {
+				if (space.isByName()) {
+					spaceNames.add(space.getSpaceName().trim());
+				} else {
+					spaceIds.add(space.getSpaceId());
 				}
-				listener.getLogger().println(error);
-				return null;
 			}
-
-			if (CollectionUtils.isEmpty(step.spaceList)) {
-				String error = "Skipping spark notifications because no spaces were defined";
-				if (step.failOnError) {
-					throw new AbortException(error);
+			dispatch.setSpaceIds(spaceIds);
+			dispatch.setSpaceNames(spaceNames);
+			dispatch.setCredentialsId(step.credentialsId);
+			dispatch.setAttachment(step.attachment);
+			// only available inside a node block; attachments are then looked up in the artifacts
+			dispatch.setWorkspace(getContext().get(FilePath.class));
+
+			dispatching = SparkDispatcher.get().dispatchOnWorkerPool(dispatch, new SparkDispatcher.Callback() {
+				@Override
+				public void completed() {
+					if (done.compareAndSet(false, true)) {
+						getContext().onSuccess(null);
+					}
 				}
-				listener.getLogger().println(error);
-				return null;
-			}
 
-			if (StringUtils.isEmpty(step.messageType)) {
-				step.messageType = "text";
-			}
-
-			SparkMessageType sparkMessageType = SparkMessageType.valueOf(step.messageType.toUpperCase());
-
-			SparkNotifier notifier = new SparkNotifier(getCredentials(step.credentialsId, getContext().get(Run.class)), envVars);
-
-			for (int i = 0; i < step.spaceList.size(); i++) {
-				listener.getLogger().println("Sending message to spark space: " + step.spaceList.get(i).getSpaceId());
-				try {
-					int responseCode = notifier.sendMessage(step.spaceList.get(i).getSpaceId(), step.getMessage(), sparkMessageType);
-					if (responseCode != Status.OK.getStatusCode()) {
-						String error = "Could not send message; response code: " + responseCode;
-						if (step.failOnError) {
-							throw new AbortException(error);
-						}
-						listener.getLogger().println(error);
-					} else {
-						listener.getLogger().println("Message sent");
-					}
-				} catch (SparkNotifyException e) {
-					if (step.failOnError) {
-						throw new AbortException(e.getMessage());
-					}
-					listener.getLogger().println(e.getMessage());
-				} catch (SocketException e) {
-					String error = "Could not send message because spark server did not provide a response; this is likely intermittent";
-					if (step.failOnError) {
-						throw new AbortException(error);
-					}
-					listener.getLogger().println(error);
-				} catch (RuntimeException e) {
-					String error = "Could not send message because of an unknown issue; please file an issue";
-					if (step.failOnError) {
-						throw new AbortException(error);
+				@Override
+				public void failed(final Exception e) {
+					if (done.compareAndSet(false, true)) {
+						getContext().onFailure(e);
 					}
-					listener.getLogger().println(error);
 				}
-			}
+			});
+			return false;
+		}
 
-			return null;
+		@Override
+		public void stop(final Throwable cause) throws Exception {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			Future<?> running = dispatching;
+			if (running != null) {
+				running.cancel(true);
+			}
+			getContext().onFailure(cause);
 		}
 
-		private Credentials getCredentials(final String credentialsId, final Run<?, ?> run) {
-			return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, run);
+		@Override
+		public void onResume() {
+			// in-flight requests do not survive a restart
+			getContext().onFailure(new AbortException("Jenkins restarted while sending spark notifications"));
 		}
 	}
 
@@ -220,6 +257,13 @@ public class SparkSendStep extends AbstractStepImpl {
 					new Option("html", "html", messageType.matches("html")));
 		}
 
+		public ListBoxModel doFillPriorityItems(@QueryParameter final String priority) {
+			SparkPriority selected = SparkPriority.fromName(priority);
+			return new ListBoxModel(new Option("normal", "normal", selected == SparkPriority.NORMAL),
+					new Option("high", "high", selected == SparkPriority.HIGH),
+					new Option("low", "low", selected == SparkPriority.LOW));
+		}
+
 		public FormValidation doMessageCheck(@QueryParameter final String message) {
 			if (SparkMessage.isMessageValid(message)) {
 				return FormValidation.ok();
@@ -229,7 +273,8 @@ public class SparkSendStep extends AbstractStepImpl {
 		}
 
 		public FormValidation doSpaceIdCheck(@QueryParameter final String spaceId) {
-			if (SparkMessage.isRoomIdValid(spaceId)) {
+			// an empty id sends to the space by name
+			if (Util.fixEmptyAndTrim(spaceId) == null || SparkMessage.isRoomIdValid(spaceId)) {
 				return FormValidation.ok();
 			} else {
 				return FormValidation.error("Invalid spaceId; see help message");
@@ -0,0 +1,339 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the spark api's /v1/messages, with configurable
+ * latency and faults: 429 responses with Retry-After, 503 responses,
+ * connections closed without a response and a fixed status for chosen
+ * rooms. /v1/rooms lists a configurable number of rooms, most recently active
+ * first, a page at a time.
+ */
+public class SparkApiStub {
+	private static final byte[] RESPONSE = "{\"id\":\"message\"}".getBytes(StandardCharsets.UTF_8);
+	private static final Pattern ROOM_ID = Pattern.compile("\"roomId\"\\s*:\\s*\"([^\"]+)\"");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+	private volatile double rateLimitedRatio;
+	private volatile int retryAfterSeconds = 1;
+	private volatile double serverErrorRatio;
+	private volatile double droppedRatio;
+	/** statuses that messages to these rooms are always answered with */
+	private final Map<String, Integer> roomStatuses = new ConcurrentHashMap<>();
+	/** requests still to be answered 429 whatever the ratio */
+	private final AtomicInteger rateLimitedNext = new AtomicInteger();
+
+	/** room numbers, most recently active first */
+	private final List<Integer> roomsByActivity = new ArrayList<>();
+	private final Map<Integer, String> renamed = new HashMap<>();
+	private long lastActivity;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong roomPages = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong serverErrors = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public SparkApiStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/v1/messages", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.createContext("/v1/rooms", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				try {
+					listRooms(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	public SparkApiStub start() {
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return url to use as the plugin's api url
+	 */
+	public String getApiUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/v1";
+	}
+
+	public SparkApiStub latency(final long millis) {
+		latencyMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Adds up to this much more latency to each request, at random
+	 */
+	public SparkApiStub jitter(final long millis) {
+		jitterMillis = millis;
+		return this;
+	}
+
+	public SparkApiStub rateLimited(final double ratio, final int retryAfter) {
+		rateLimitedRatio = ratio;
+		retryAfterSeconds = retryAfter;
+		return this;
+	}
+
+	/**
+	 * Answers the next requests 429, then goes back to the ratio
+	 */
+	public SparkApiStub rateLimitedNext(final int count, final int retryAfter) {
+		retryAfterSeconds = retryAfter;
+		rateLimitedNext.set(count);
+		return this;
+	}
+
+	/**
+	 * Answers every message to the room with this status
+	 */
+	public SparkApiStub roomStatus(final String roomId, final int status) {
+		roomStatuses.put(roomId, status);
+		return this;
+	}
+
+	public SparkApiStub serverErrors(final double ratio) {
+		serverErrorRatio = ratio;
+		return this;
+	}
+
+	public SparkApiStub dropped(final double ratio) {
+		droppedRatio = ratio;
+		return this;
+	}
+
+	/**
+	 * Lists this many rooms, titled room-0 onwards
+	 */
+	public synchronized SparkApiStub rooms(final int count) {
+		roomsByActivity.clear();
+		renamed.clear();
+		for (int i = 0; i < count; i++) {
+			roomsByActivity.add(i);
+		}
+		lastActivity = count;
+		return this;
+	}
+
+	/**
+	 * Gives a room a new title and makes it the most recently active
+	 */
+	public synchronized SparkApiStub renameRoom(final int room, final String title) {
+		renamed.put(room, title);
+		roomsByActivity.remove(Integer.valueOf(room));
+		roomsByActivity.add(0, room);
+		lastActivity++;
+		return this;
+	}
+
+	/**
+	 * @return the id the listing gives the room
+	 */
+	public static String roomId(final int room) {
+		String uri = "ciscospark://us/ROOM/" + new UUID(0x5350415243L, room);
+		return DatatypeConverter.printBase64Binary(uri.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return requests whose body arrived complete, whatever the response
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	public long getRateLimited() {
+		return rateLimited.get();
+	}
+
+	public long getRoomPages() {
+		return roomPages.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests: " + requests + ", rate limited: " + rateLimited + ", server errors: " + serverErrors
+				+ ", dropped: " + dropped;
+	}
+
+	private void listRooms(final HttpExchange exchange) throws IOException {
+		roomPages.incrementAndGet();
+		if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+			exchange.sendResponseHeaders(401, -1);
+			return;
+		}
+		int max = SparkRoomIndex.PAGE_SIZE;
+		int offset = 0;
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				if (parameter.startsWith("max=")) {
+					max = Integer.parseInt(parameter.substring(4));
+				} else if (parameter.startsWith("offset=")) {
+					offset = Integer.parseInt(parameter.substring(7));
+				}
+			}
+		}
+
+		StringBuilder page = new StringBuilder("{\"items\":[");
+		Calendar activity = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		int end;
+		synchronized (this) {
+			end = Math.min(roomsByActivity.size(), offset + max);
+			for (int i = offset; i < end; i++) {
+				int room = roomsByActivity.get(i);
+				String title = renamed.containsKey(room) ? renamed.get(room) : "room-" + room;
+				if (i > offset) {
+					page.append(',');
+				}
+				// a second apart is enough to order the rooms
+				activity.setTimeInMillis((lastActivity - i) * 1000);
+				page.append("{\"id\":\"").append(roomId(room)).append("\",\"title\":\"").append(title)
+						.append("\",\"type\":\"group\",\"lastActivity\":\"")
+						.append(String.format("%tFT%<tT.000Z", activity)).append("\"}");
+			}
+			if (end < roomsByActivity.size()) {
+				exchange.getResponseHeaders().set("Link", "<" + getApiUrl() + "/rooms?sortBy=lastactivity&max=" + max
+						+ "&offset=" + end + ">; rel=\"next\"");
+			}
+		}
+		page.append("]}");
+
+		byte[] body = page.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+
+	private boolean takeRateLimitedNext() {
+		int left;
+		do {
+			left = rateLimitedNext.get();
+			if (left <= 0) {
+				return false;
+			}
+		} while (!rateLimitedNext.compareAndSet(left, left - 1));
+		return true;
+	}
+
+	private void respond(final HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try (InputStream body = exchange.getRequestBody()) {
+			int read;
+			while ((read = body.read(buffer)) >= 0) {
+				received.write(buffer, 0, read);
+			}
+		}
+		messages.incrementAndGet();
+		Matcher roomId = ROOM_ID.matcher(new String(received.toByteArray(), StandardCharsets.UTF_8));
+		Integer roomStatus = roomId.find() ? roomStatuses.get(roomId.group(1)) : null;
+
+		long delayMillis = latencyMillis;
+		if (jitterMillis > 0) {
+			delayMillis += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		}
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+			exchange.sendResponseHeaders(401, -1);
+			return;
+		}
+
+		double roll = ThreadLocalRandom.current().nextDouble();
+		if (roll < droppedRatio) {
+			// closing the exchange before any response closes the connection
+			dropped.incrementAndGet();
+			return;
+		}
+		roll -= droppedRatio;
+		if (takeRateLimitedNext() || roll < rateLimitedRatio) {
+			rateLimited.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+			exchange.sendResponseHeaders(SparkRateLimiter.TOO_MANY_REQUESTS, -1);
+			return;
+		}
+		roll -= rateLimitedRatio;
+		if (roomStatus != null) {
+			exchange.sendResponseHeaders(roomStatus, -1);
+			return;
+		}
+		if (roll < serverErrorRatio) {
+			serverErrors.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, RESPONSE.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(RESPONSE);
+		}
+	}
+}
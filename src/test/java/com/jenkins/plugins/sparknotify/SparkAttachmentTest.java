@@ -0,0 +1,77 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+public class SparkAttachmentTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File workspace;
+	private File outside;
+
+	@Before
+	public void createFiles() throws IOException {
+		workspace = folder.newFolder("workspace");
+		new File(workspace, "reports").mkdir();
+		Files.write(new File(workspace, "reports/result.txt").toPath(), "passed".getBytes("UTF-8"));
+		outside = folder.newFile("secret.key");
+		Files.write(outside.toPath(), "secret".getBytes("UTF-8"));
+	}
+
+	@Test
+	public void resolvesFileInsideWorkspace() throws Exception {
+		SparkAttachment attachment = SparkAttachment.resolve("reports/result.txt", new FilePath(workspace), null);
+		assertEquals("result.txt", attachment.getName());
+		assertEquals("text/plain", attachment.getContentType());
+	}
+
+	@Test
+	public void rejectsAbsolutePaths() throws Exception {
+		assertRejected(outside.getAbsolutePath());
+		assertRejected("/etc/passwd");
+		assertRejected("\\\\server\\share\\secret.key");
+		assertRejected("C:\\Windows\\win.ini");
+	}
+
+	@Test
+	public void rejectsParentSegments() throws Exception {
+		assertRejected("../secret.key");
+		assertRejected("reports/../../secret.key");
+		assertRejected("reports\\..\\..\\secret.key");
+	}
+
+	@Test
+	public void rejectsLinksOutOfWorkspace() throws Exception {
+		Files.createSymbolicLink(new File(workspace, "reports/link.key").toPath(), outside.toPath());
+		assertRejected("reports/link.key");
+	}
+
+	@Test
+	public void acceptsLinksWithinWorkspace() throws Exception {
+		Files.createSymbolicLink(new File(workspace, "latest.txt").toPath(),
+				new File(workspace, "reports/result.txt").toPath());
+		assertEquals("latest.txt", SparkAttachment.resolve("latest.txt", new FilePath(workspace), null).getName());
+	}
+
+	private void assertRejected(final String path) throws Exception {
+		try {
+			SparkAttachment.resolve(path, new FilePath(workspace), null);
+			fail("Attached " + path);
+		} catch (SparkNotifyException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Could not attach " + path + " because"));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class SparkCircuitBreakerTest {
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkCircuitBreaker breaker;
+
+	@Before
+	public void configure() {
+		SparkGlobalConfiguration config = SparkGlobalConfiguration.get();
+		config.setCircuitBreakerThreshold(1);
+		config.setCircuitBreakerCooldown(1);
+		config.setConnectTimeout(1);
+		config.setReadTimeout(1);
+		breaker = new SparkCircuitBreaker();
+	}
+
+	@Test
+	public void closedBreakerHandsOutNoTrial() throws Exception {
+		assertFalse(breaker.checkAllowed(null));
+		assertEquals(SparkCircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void opensAfterThresholdAndFailsFast() throws Exception {
+		breaker.onFailure(null);
+		assertEquals(SparkCircuitBreaker.State.OPEN, breaker.getState());
+		assertOpen();
+	}
+
+	@Test
+	public void trialSuccessCloses() throws Exception {
+		startTrial();
+		breaker.onSuccess(null);
+		assertEquals(SparkCircuitBreaker.State.CLOSED, breaker.getState());
+		assertFalse(breaker.checkAllowed(null));
+	}
+
+	@Test
+	public void trialFailureOpensAgain() throws Exception {
+		startTrial();
+		breaker.onFailure(null);
+		assertEquals(SparkCircuitBreaker.State.OPEN, breaker.getState());
+		assertOpen();
+	}
+
+	@Test
+	public void trialWithoutVerdictHandsTrialOn() throws Exception {
+		startTrial();
+		assertOpen();
+		breaker.onNoVerdict(true);
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.checkAllowed(null));
+		assertOpen();
+	}
+
+	@Test
+	public void noVerdictFromOtherRequestsKeepsTrial() throws Exception {
+		startTrial();
+		breaker.onNoVerdict(false);
+		assertOpen();
+	}
+
+	@Test
+	public void lostTrialExpires() throws Exception {
+		startTrial();
+		assertOpen();
+		// the connect and read timeouts, one second each
+		TimeUnit.MILLISECONDS.sleep(2100);
+		assertTrue(breaker.checkAllowed(null));
+	}
+
+	private void startTrial() throws Exception {
+		breaker.onFailure(null);
+		TimeUnit.MILLISECONDS.sleep(1100);
+		assertTrue(breaker.checkAllowed(null));
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	private void assertOpen() throws Exception {
+		try {
+			breaker.checkAllowed(null);
+			fail("Allowed a request while the trial is in flight");
+		} catch (SparkCircuitBreaker.OpenException e) {
+			// expected
+		}
+	}
+}
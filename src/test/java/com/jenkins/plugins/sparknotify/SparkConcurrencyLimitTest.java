@@ -0,0 +1,147 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ten concurrent sends to start with and forty connections per host, fed
+ * windows of five requests on a synthetic clock
+ */
+public class SparkConcurrencyLimitTest {
+	private static final int WINDOW_SAMPLES = 5;
+	private static final int PROBE_INTERVAL_WINDOWS = 60;
+
+	private SparkGlobalConfiguration config;
+	private SparkConcurrencyLimit limit;
+	private long now;
+
+	@Before
+	public void createLimit() {
+		config = SparkGlobalConfiguration.get();
+		config.setSendThreads(10);
+		config.setMaxConnectionsPerRoute(40);
+		config.setAdaptiveConcurrency(true);
+		limit = new SparkConcurrencyLimit(config);
+		now = System.nanoTime();
+	}
+
+	@Test
+	public void holdsWhileApiKeepsUpWithoutQueueing() {
+		windows(10, 10, false);
+		assertEquals(10, limit.getLimit());
+	}
+
+	@Test
+	public void growsWhileSaturatedAndApiKeepsUp() {
+		window(10, false, true);
+		// smoothed, so a window adds a fifth of the square root
+		assertEquals(10, limit.getLimit());
+		windows(5, 10, true);
+		assertEquals(14, limit.getLimit());
+	}
+
+	@Test
+	public void growsNoFurtherThanMaxConnections() {
+		windows(50, 10, true);
+		assertEquals(40, limit.getLimit());
+	}
+
+	@Test
+	public void shrinksAsRoundTripGrows() {
+		window(10, false, false);
+		// the gradient is never below a half, smoothed by a fifth
+		window(40, false, false);
+		assertEquals(9, limit.getLimit());
+		windows(20, 40, false);
+		assertEquals(1, limit.getLimit());
+	}
+
+	@Test
+	public void toleratesSomeExtraRoundTrip() {
+		window(10, false, false);
+		windows(10, 15, false);
+		assertEquals(10, limit.getLimit());
+	}
+
+	@Test
+	public void backsOffByATenthOnErrors() {
+		window(10, true, false);
+		assertEquals(9, limit.getLimit());
+		window(10, true, true);
+		assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	public void probeMeasuresRoundTripWithoutLoadAgain() {
+		windows(PROBE_INTERVAL_WINDOWS - 1, 10, false);
+		assertEquals(10, limit.getLimit());
+		window(10, false, false);
+		assertEquals(2, limit.getLimit());
+
+		// the first probe window still sees requests started under the old limit
+		window(20, false, false);
+		assertEquals(2, limit.getLimit());
+		window(20, false, false);
+		assertEquals(10, limit.getLimit());
+
+		// twenty milliseconds is now the round trip without load
+		windows(5, 20, false);
+		assertEquals(10, limit.getLimit());
+	}
+
+	@Test
+	public void errorDuringProbeEndsIt() {
+		windows(PROBE_INTERVAL_WINDOWS, 10, false);
+		assertEquals(2, limit.getLimit());
+		window(10, true, false);
+		assertEquals(9, limit.getLimit());
+		windows(PROBE_INTERVAL_WINDOWS - 1, 10, false);
+		assertEquals(9, limit.getLimit());
+	}
+
+	@Test
+	public void windowWaitsForEnoughSamples() {
+		for (int i = 0; i < WINDOW_SAMPLES - 1; i++) {
+			limit.sample(TimeUnit.MILLISECONDS.toNanos(10), true, now);
+		}
+		assertEquals(10, limit.getLimit());
+		now += TimeUnit.MILLISECONDS.toNanos(100);
+		limit.sample(TimeUnit.MILLISECONDS.toNanos(10), false, now);
+		assertEquals(9, limit.getLimit());
+	}
+
+	@Test
+	public void ignoresSamplesWhenNotAdaptive() {
+		config.setAdaptiveConcurrency(false);
+		limit = new SparkConcurrencyLimit(config);
+		windows(10, 10, true);
+		window(10, true, false);
+		assertEquals(10, limit.getLimit());
+	}
+
+	private void windows(final int count, final long rttMillis, final boolean saturated) {
+		for (int i = 0; i < count; i++) {
+			window(rttMillis, false, saturated);
+		}
+	}
+
+	/**
+	 * Completes one window of requests taking rttMillis each
+	 */
+	private void window(final long rttMillis, final boolean dropped, final boolean saturated) {
+		if (saturated) {
+			limit.saturated();
+		}
+		long rttNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis);
+		for (int i = 0; i < WINDOW_SAMPLES - 1; i++) {
+			limit.sample(rttNanos, false, now);
+		}
+		// long enough for any window to end
+		now += TimeUnit.SECONDS.toNanos(1);
+		limit.sample(rttNanos, dropped, now);
+	}
+}
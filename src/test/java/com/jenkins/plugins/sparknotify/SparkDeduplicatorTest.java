@@ -0,0 +1,47 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class SparkDeduplicatorTest {
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkDeduplicator deduplicator;
+
+	@Before
+	public void configure() {
+		SparkGlobalConfiguration.get().setDedupWindow(60);
+		deduplicator = new SparkDeduplicator();
+	}
+
+	@Test
+	public void suppressesRepeatWithinWindow() {
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "hash"));
+		assertNull(deduplicator.claim("space", SparkMessageType.TEXT, "hash"));
+		assertNotNull(deduplicator.claim("other", SparkMessageType.TEXT, "hash"));
+	}
+
+	@Test
+	public void releasedMessageIsNotSuppressed() {
+		deduplicator.release(deduplicator.claim("space", SparkMessageType.TEXT, "hash"));
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "hash"));
+	}
+
+	@Test
+	public void shorterWindowAppliesToEarlierMessages() throws Exception {
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "old"));
+		SparkGlobalConfiguration.get().setDedupWindow(1);
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "new"));
+		TimeUnit.MILLISECONDS.sleep(1100);
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "old"));
+		assertNotNull(deduplicator.claim("space", SparkMessageType.TEXT, "new"));
+	}
+}
@@ -0,0 +1,116 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+
+/**
+ * A build step sending in the background, against an api stub slower than
+ * the build itself
+ */
+public class SparkDispatcherTest {
+	private static final int SPACES = 3;
+	private static final long LATENCY_MILLIS = 3000;
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkApiStub stub;
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().latency(LATENCY_MILLIS).start();
+		SparkGlobalConfiguration.get().setApiUrl(stub.getApiUrl());
+		SparkRateLimiter.setDisabled(true);
+		SystemCredentialsProvider credentials = SystemCredentialsProvider.getInstance();
+		credentials.getCredentials()
+				.add(new StringCredentialsImpl(CredentialsScope.GLOBAL, "token", null, Secret.fromString("token")));
+		credentials.save();
+	}
+
+	@After
+	public void stopStub() {
+		SparkRateLimiter.setDisabled(false);
+		stub.stop();
+	}
+
+	@Test
+	public void backgroundResultsAreRecordedAfterTheBuild() throws Exception {
+		FreeStyleBuild build = jenkins.buildAndAssertSuccess(project());
+		jenkins.assertLogContains("the results will be shown on the build page", build);
+		assertTrue(String.valueOf(build.getDuration()), build.getDuration() < LATENCY_MILLIS);
+		assertNull(build.getAction(SparkNotificationAction.class));
+
+		List<SparkNotificationAction.Entry> entries = awaitEntries(build);
+		for (int i = 0; i < SPACES; i++) {
+			assertEquals(SparkApiStub.roomId(i), entries.get(i).getSpaceId());
+			assertEquals(200, entries.get(i).getStatus());
+			assertTrue(entries.get(i).getResponseMillis() >= LATENCY_MILLIS - 100);
+		}
+		// the finished build is saved again with them
+		String saved = new String(Files.readAllBytes(new File(build.getRootDir(), "build.xml").toPath()),
+				StandardCharsets.UTF_8);
+		assertTrue(saved, saved.contains(SparkNotificationAction.class.getName()));
+		assertTrue(saved, saved.contains(SparkApiStub.roomId(SPACES - 1)));
+		// the sends stay out of the finished build's log
+		jenkins.assertLogNotContains("Sending message to spark space", build);
+	}
+
+	@Test
+	public void backgroundFailuresAreRecorded() throws Exception {
+		stub.latency(0).roomStatus(SparkApiStub.roomId(1), 404);
+		FreeStyleBuild build = jenkins.buildAndAssertSuccess(project());
+		List<SparkNotificationAction.Entry> entries = awaitEntries(build);
+		assertEquals(200, entries.get(0).getStatus());
+		assertEquals(404, entries.get(1).getStatus());
+		assertEquals(200, entries.get(2).getStatus());
+	}
+
+	private FreeStyleProject project() throws Exception {
+		List<SparkNotifyBuilder.SparkRoom> rooms = new ArrayList<>(SPACES);
+		for (int i = 0; i < SPACES; i++) {
+			rooms.add(new SparkNotifyBuilder.SparkRoom(null, SparkApiStub.roomId(i)));
+		}
+		SparkNotifyBuilder builder = new SparkNotifyBuilder(false, "${JOB_NAME} #${BUILD_NUMBER}", "text", rooms,
+				"token");
+		builder.setSendInBackground(true);
+		FreeStyleProject project = jenkins.createFreeStyleProject();
+		project.getBuildersList().add(builder);
+		return project;
+	}
+
+	private static List<SparkNotificationAction.Entry> awaitEntries(final FreeStyleBuild build)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		SparkNotificationAction action = build.getAction(SparkNotificationAction.class);
+		while ((action == null || action.getEntries().size() < SPACES) && System.nanoTime() < deadline) {
+			Thread.sleep(100);
+			action = build.getAction(SparkNotificationAction.class);
+		}
+		assertNotNull(action);
+		assertEquals(SPACES, action.getEntries().size());
+		return action.getEntries();
+	}
+}
@@ -0,0 +1,169 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Stalls a copy of the request while connecting by aiming it at a server
+ * whose accept backlog is full, so the other copy gets to write the body
+ */
+public class SparkHedgedPostTest {
+	private static final long HEDGE_DELAY_MILLIS = 100;
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkGlobalConfiguration config;
+	private SparkApiStub stub;
+	private ServerSocket stalled;
+	private final List<Socket> backlog = new ArrayList<>();
+	private final AtomicInteger writes = new AtomicInteger();
+	private final Outcome outcome = new Outcome();
+
+	@Before
+	public void startServers() throws Exception {
+		stub = new SparkApiStub().start();
+		config = SparkGlobalConfiguration.get();
+		config.setConnectTimeout(1);
+		SparkTransport.reconfigure(config);
+
+		// never accepts, so once the backlog is full further connects stall
+		stalled = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		for (int i = 0; i < 2; i++) {
+			Socket socket = new Socket();
+			socket.connect(stalled.getLocalSocketAddress(), 300);
+			backlog.add(socket);
+		}
+	}
+
+	@After
+	public void stopServers() throws IOException {
+		for (Socket socket : backlog) {
+			socket.close();
+		}
+		stalled.close();
+		stub.stop();
+		config.setConnectTimeout(0);
+		SparkTransport.reconfigure(config);
+	}
+
+	@Test
+	public void hedgeWritesTheBodyWhenThePrimaryStalls() throws Exception {
+		SparkHedgedPost.post(request(stalledUrl()), request(stub.getApiUrl()), body(), delay(), outcome);
+		assertTrue(outcome.await());
+		assertEquals(200, outcome.status);
+
+		// the primary's connect times out after the hedge has answered
+		Thread.sleep(TimeUnit.SECONDS.toMillis(config.getConnectTimeout()) + 500);
+		assertEquals(1, outcome.completed.get());
+		assertEquals(0, outcome.failed.get());
+		assertEquals(1, writes.get());
+		assertEquals(1, stub.getMessages());
+	}
+
+	@Test
+	public void noHedgeOnceThePrimaryWritesTheBody() throws Exception {
+		// slower to answer than the hedge delay
+		stub.latency(HEDGE_DELAY_MILLIS * 10);
+		SparkHedgedPost.post(request(stub.getApiUrl()), request(stub.getApiUrl()), body(), delay(), outcome);
+		assertTrue(outcome.await());
+		assertEquals(200, outcome.status);
+		assertEquals(1, outcome.completed.get());
+		assertEquals(1, writes.get());
+		assertEquals(1, stub.getRequests());
+	}
+
+	@Test
+	public void failsOnceWhenNeitherCopyConnects() throws Exception {
+		SparkHedgedPost.post(request(stalledUrl()), request(stalledUrl()), body(), delay(), outcome);
+		assertTrue(outcome.await());
+		// reported once both copies have failed, and never again
+		Thread.sleep(HEDGE_DELAY_MILLIS + 500);
+		assertEquals(0, outcome.completed.get());
+		assertEquals(1, outcome.failed.get());
+		assertEquals(0, writes.get());
+	}
+
+	private static long delay() {
+		return TimeUnit.MILLISECONDS.toNanos(HEDGE_DELAY_MILLIS);
+	}
+
+	private String stalledUrl() {
+		InetSocketAddress address = (InetSocketAddress) stalled.getLocalSocketAddress();
+		return "http://" + address.getHostString() + ":" + address.getPort() + "/v1";
+	}
+
+	private static Invocation.Builder request(final String apiUrl) {
+		return SparkTransport.get().getClient().target(apiUrl + "/messages").request(MediaType.APPLICATION_JSON)
+				.header(HttpHeaders.AUTHORIZATION, "Bearer token")
+				.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+	}
+
+	private Entity<StreamingOutput> body() {
+		return Entity.entity(new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				writes.incrementAndGet();
+				output.write(("{\"roomId\":\"" + SparkApiStub.roomId(0) + "\",\"text\":\"hello\"}")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+		}, MediaType.APPLICATION_JSON_TYPE);
+	}
+
+	/**
+	 * Counts every outcome reported, and keeps the first
+	 */
+	private static final class Outcome implements InvocationCallback<Response> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicInteger completed = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private volatile int status;
+
+		@Override
+		public void completed(final Response response) {
+			status = response.getStatus();
+			response.close();
+			completed.incrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public void failed(final Throwable throwable) {
+			failed.incrementAndGet();
+			done.countDown();
+		}
+
+		boolean await() throws InterruptedException {
+			return done.await(30, TimeUnit.SECONDS);
+		}
+	}
+}
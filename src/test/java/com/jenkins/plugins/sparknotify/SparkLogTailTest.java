@@ -0,0 +1,74 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.console.HyperlinkNote;
+import hudson.model.FreeStyleBuild;
+
+public class SparkLogTailTest {
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void dropsTrailingLineBreak() throws Exception {
+		assertEquals("b\nc", read("a\nb\nc\n", 2));
+		assertEquals("b\nc", read("a\nb\nc", 2));
+	}
+
+	@Test
+	public void countsCrlfLines() throws Exception {
+		assertEquals("b\r\nc", read("a\r\nb\r\nc\r\n", 2));
+	}
+
+	@Test
+	public void returnsWholeFileWhenShorterThanTail() throws Exception {
+		assertEquals("a\nb", read("a\nb\n", 10));
+		assertEquals("", read("", 10));
+	}
+
+	@Test
+	public void startsOnWholeLineAtByteCap() throws Exception {
+		assertEquals("last", read("first\n" + repeat('x', SparkLogTail.MAX_READ_BYTES) + "\nlast\n", 5));
+	}
+
+	@Test
+	public void startsOnWholeCharacterAtByteCap() throws Exception {
+		// two bytes each, and one more after them puts the cap inside the second
+		int characters = SparkLogTail.MAX_READ_BYTES / 2 + 1;
+		assertEquals(repeat('\u00e9', characters - 2) + "z", read(repeat('\u00e9', characters) + "z\n", 5));
+	}
+
+	@Test
+	public void stripsConsoleNotes() throws Exception {
+		FreeStyleBuild build = jenkins.buildAndAssertSuccess(jenkins.createFreeStyleProject());
+		String log = "first\nsee " + HyperlinkNote.encodeTo("/job/x/", "the job") + " here\nlast\n";
+		Files.write(build.getLogFile().toPath(), log.getBytes(StandardCharsets.UTF_8));
+		assertEquals("tail: see the job here\nlast", SparkLogTail.expand("tail: ${BUILD_LOG_TAIL:2}", build));
+	}
+
+	private static String repeat(final char c, final int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private String read(final String content, final int lines) throws IOException {
+		File log = folder.newFile();
+		Files.write(log.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return SparkLogTail.read(log, StandardCharsets.UTF_8, lines);
+	}
+}
@@ -0,0 +1,244 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class SparkMessageChunkerTest {
+	private static final Pattern TAG = Pattern.compile("<(/?)([a-zA-Z][a-zA-Z0-9-]*)[^>]*>");
+	private static final List<String> VOID_ELEMENTS = Arrays.asList("br", "hr", "img");
+	private static final String FENCE = "```java\n";
+
+	@Test
+	public void shortMessageIsOnePart() {
+		assertEquals(Arrays.asList("all in one"), chunk("all in one", SparkMessageType.TEXT, 100));
+	}
+
+	@Test
+	public void defaultLimitIsTheApiLimit() {
+		StringBuilder message = new StringBuilder();
+		while (utf8(message.toString()) <= SparkMessageChunker.MAX_MESSAGE_BYTES) {
+			message.append("a line of the build log\n");
+		}
+		List<String> parts = new ArrayList<>();
+		for (SparkMessageChunker chunker = new SparkMessageChunker(message.toString(), SparkMessageType.TEXT); chunker
+				.hasNext();) {
+			parts.add(chunker.next());
+		}
+		assertEquals(2, parts.size());
+		assertTrue(utf8(parts.get(0)) <= SparkMessageChunker.MAX_MESSAGE_BYTES);
+		assertEquals(message.toString(), join(parts));
+	}
+
+	@Test
+	public void cutsAtLineEnds() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			message.append("line ").append(i).append(" of the log\n");
+		}
+		List<String> parts = chunk(message.toString(), SparkMessageType.TEXT, 100);
+		assertEquals(message.toString(), join(parts));
+		for (String part : parts) {
+			assertTrue(part, part.endsWith("\n"));
+		}
+	}
+
+	@Test
+	public void cutsAtWordsWithinLongLines() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 60; i++) {
+			message.append("word").append(i).append(' ');
+		}
+		List<String> parts = chunk(message.toString(), SparkMessageType.TEXT, 50);
+		assertEquals(message.toString(), join(parts));
+		for (String part : parts.subList(0, parts.size() - 1)) {
+			assertTrue(part, part.endsWith(" "));
+		}
+	}
+
+	@Test
+	public void neverSplitsSurrogatePairs() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			message.append("😀");
+		}
+		List<String> parts = chunk(message.toString(), SparkMessageType.TEXT, 10);
+		assertEquals(message.toString(), join(parts));
+		for (String part : parts) {
+			assertFalse(part, Character.isLowSurrogate(part.charAt(0)));
+			assertFalse(part, Character.isHighSurrogate(part.charAt(part.length() - 1)));
+		}
+	}
+
+	@Test
+	public void randomTextIsSplitLosslessly() {
+		String alphabet = "ab c\né€😀";
+		Random random = new Random(20170601);
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder message = new StringBuilder();
+			int length = random.nextInt(400);
+			for (int j = 0; j < length; j++) {
+				int at = random.nextInt(alphabet.length() - 1);
+				if (Character.isLowSurrogate(alphabet.charAt(at))) {
+					at--;
+				}
+				message.append(alphabet.charAt(at));
+				if (Character.isHighSurrogate(alphabet.charAt(at))) {
+					message.append(alphabet.charAt(at + 1));
+				}
+			}
+			int maxBytes = 8 + random.nextInt(100);
+			assertEquals(message.toString(), join(chunk(message.toString(), SparkMessageType.TEXT, maxBytes)));
+		}
+	}
+
+	@Test
+	public void codeBlockIsClosedAndOpenedAgain() {
+		StringBuilder message = new StringBuilder("Build failed:\n").append(FENCE);
+		for (int i = 0; i < 30; i++) {
+			message.append("    at Frame").append(i).append(".call()\n");
+		}
+		message.append("```\nsee the console");
+		List<String> parts = chunk(message.toString(), SparkMessageType.MARKDOWN, 120);
+
+		assertTrue(parts.size() > 2);
+		for (int i = 0; i < parts.size(); i++) {
+			String part = parts.get(i);
+			assertEquals(part, 0, fenceLines(part) % 2);
+			if (i > 0 && i < parts.size() - 1) {
+				assertTrue(part, part.startsWith(FENCE));
+				assertTrue(part, part.endsWith("\n```"));
+			}
+		}
+		String joined = join(parts);
+		for (int i = 0; i < 30; i++) {
+			assertTrue(joined.contains("    at Frame" + i + ".call()\n"));
+		}
+		assertTrue(parts.get(parts.size() - 1).endsWith("```\nsee the console"));
+	}
+
+	@Test
+	public void textOutsideCodeBlocksIsNotWrapped() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			message.append("plain line ").append(i).append('\n');
+		}
+		message.append("```\ncode\n```\n");
+		List<String> parts = chunk(message.toString(), SparkMessageType.MARKDOWN, 80);
+		assertEquals(message.toString(), join(parts));
+	}
+
+	@Test
+	public void htmlElementsAreClosedAndOpenedAgain() {
+		StringBuilder message = new StringBuilder("<p>Failed tests:</p><ul>");
+		for (int i = 0; i < 30; i++) {
+			message.append("<li><b>Test").append(i).append("</b> failed<br></li>");
+		}
+		message.append("</ul>");
+		List<String> parts = chunk(message.toString(), SparkMessageType.HTML, 100);
+
+		assertTrue(parts.size() > 2);
+		for (int i = 0; i < parts.size(); i++) {
+			String part = parts.get(i);
+			assertBalanced(part);
+			if (i > 0) {
+				assertTrue(part, part.startsWith("<ul>"));
+			}
+		}
+		String joined = join(parts);
+		for (int i = 0; i < 30; i++) {
+			assertTrue(joined.contains("<b>Test" + i + "</b>"));
+		}
+	}
+
+	@Test
+	public void neverCutsInsideTag() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			message.append("<a href=\"https://jenkins.example.com/job/").append(i).append("/\">job ").append(i)
+					.append("</a> ");
+		}
+		for (String part : chunk(message.toString(), SparkMessageType.HTML, 120)) {
+			assertBalanced(part);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void unclosedTagsOnlySearchThePart() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			message.append("<a ");
+		}
+		message.append("<!-- ");
+		for (int i = 0; i < 100000; i++) {
+			message.append("<a ");
+		}
+		List<String> parts = chunk(message.toString(), SparkMessageType.HTML, 1000);
+		assertEquals(message.toString(), join(parts));
+	}
+
+	private static List<String> chunk(final String message, final SparkMessageType messageType, final int maxBytes) {
+		List<String> parts = new ArrayList<>();
+		for (SparkMessageChunker chunker = new SparkMessageChunker(message, messageType, maxBytes); chunker
+				.hasNext();) {
+			String part = chunker.next();
+			assertTrue(part, utf8(part) <= maxBytes);
+			assertFalse(part.isEmpty());
+			parts.add(part);
+		}
+		return parts;
+	}
+
+	private static void assertBalanced(final String part) {
+		assertEquals(part, part.indexOf('<') >= 0, part.indexOf('>') >= 0);
+		assertTrue(part, part.lastIndexOf('<') < part.lastIndexOf('>'));
+		Deque<String> open = new ArrayDeque<>();
+		Matcher tag = TAG.matcher(part);
+		while (tag.find()) {
+			String name = tag.group(2).toLowerCase();
+			if (VOID_ELEMENTS.contains(name)) {
+				continue;
+			}
+			if (tag.group(1).isEmpty()) {
+				open.push(name);
+			} else {
+				assertEquals(part, name, open.poll());
+			}
+		}
+		assertTrue(part, open.isEmpty());
+	}
+
+	private static int fenceLines(final String part) {
+		int fences = 0;
+		for (String line : part.split("\n", -1)) {
+			if (line.startsWith("```")) {
+				fences++;
+			}
+		}
+		return fences;
+	}
+
+	private static String join(final List<String> parts) {
+		StringBuilder joined = new StringBuilder();
+		for (String part : parts) {
+			joined.append(part);
+		}
+		return joined.toString();
+	}
+
+	private static int utf8(final String text) {
+		return text.getBytes(StandardCharsets.UTF_8).length;
+	}
+}
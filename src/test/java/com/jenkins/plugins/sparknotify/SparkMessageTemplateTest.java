@@ -0,0 +1,84 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+/**
+ * The compiled template must render exactly what the original regex
+ * replacement followed by {@link EnvVars#expand(String)} produced
+ */
+public class SparkMessageTemplateTest {
+	private static final Pattern ENV_PATTERN_WORKFLOW = Pattern.compile("\\$\\{env\\.(.+?)\\}");
+	private static final EnvVars ENV = new EnvVars("A", "alpha", "B", "beta", "JOB_NAME", "folder/job", "EMPTY", "",
+			"DOLLAR", "costs $5", "REF", "${A}", "ENV_REF", "${env.B}", "X.Y", "dotted", "BRACES", "{}");
+
+	private static final String[] TOKENS = { "$", "$$", "{", "}", ".", "env", "env.", "${", "${env.", "A", "B",
+			"JOB_NAME", "MISSING", "DOLLAR", "REF", "ENV_REF", "X.Y", "BRACES", "EMPTY", "_", "1", " ", "x", "\n", "\r",
+			"\u2028", "${A}", "${env.A}", "$A", "${env.MISSING}", "$${A}", "**", "<b>" };
+
+	@Test
+	public void rendersLikeTwoStepExpansion() {
+		String[] messages = { "", "plain text", "$A and ${B}", "${env.A} and ${env.MISSING}", "$$A costs $$",
+				"${env.DOLLAR}", "${env.REF} ${REF}", "${env.ENV_REF}", "${X.Y} ${env.X.Y}", "$MISSING ${MISSING} $",
+				"${env.A}${env.B}", "x${env.A}", "$${env.A}", "${env.A}B", "${env.${A}}", "${env.}", "${env.A\n}",
+				"${env.A}}", "${env.{A}", "${", "$", "$$$", "${A.}", "${.}", "${env.BRACES}",
+				"**${env.JOB_NAME}** build [#${env.BUILD_NUMBER}](${env.BUILD_URL}) finished with $BUILD_STATUS" };
+		for (String message : messages) {
+			assertRendersLikeOriginal(message);
+		}
+	}
+
+	@Test
+	public void randomMessagesRenderLikeTwoStepExpansion() {
+		Random random = new Random(20170601);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder message = new StringBuilder();
+			int tokens = 1 + random.nextInt(12);
+			for (int j = 0; j < tokens; j++) {
+				message.append(TOKENS[random.nextInt(TOKENS.length)]);
+			}
+			assertRendersLikeOriginal(message.toString());
+		}
+	}
+
+	@Test
+	public void presetsAreReplacedBeforeExpansion() {
+		SparkMessageTemplate template = SparkMessageTemplate.compile("${BUILD_RESULT} $A ${env.B}",
+				Collections.singletonMap("BUILD_RESULT", "SUCCESS"));
+		assertEquals("SUCCESS alpha beta", template.render(ENV));
+	}
+
+	@Test
+	public void withoutEnvironmentRendersSource() {
+		assertEquals("${env.A} $B", SparkMessageTemplate.compile("${env.A} $B").render(null));
+	}
+
+	private static void assertRendersLikeOriginal(final String message) {
+		assertEquals(escape(message), original(message, ENV), SparkMessageTemplate.compile(message).render(ENV));
+	}
+
+	/**
+	 * SparkNotifier's expansion before templates were compiled, kept here
+	 * unchanged as the reference
+	 */
+	private static String original(String message, final EnvVars env) {
+		Matcher workflowMatcher = ENV_PATTERN_WORKFLOW.matcher(message);
+		while (workflowMatcher.find()) {
+			String var = workflowMatcher.group(1);
+			message = message.replace("${env." + var + "}", env.get(var, ""));
+		}
+		return env.expand(message);
+	}
+
+	private static String escape(final String message) {
+		return message.replace("\n", "\\n").replace("\r", "\\r").replace("\u2028", "\\u2028");
+	}
+}
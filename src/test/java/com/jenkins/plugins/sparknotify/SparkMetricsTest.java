@@ -0,0 +1,211 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A metrics instance of its own per test, so the shared one can keep
+ * counting other tests' requests
+ */
+public class SparkMetricsTest {
+	private static final String SPACE = "spark_notifier_space_request_seconds";
+	private static final String CREDENTIALS = "spark_notifier_credentials_request_seconds";
+
+	private SparkMetrics metrics;
+
+	@Before
+	public void createMetrics() {
+		metrics = new SparkMetrics();
+	}
+
+	@Test
+	public void boundIsInsideItsBucket() {
+		metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(5));
+		metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(5) + 1);
+		String out = write();
+		assertEquals("1", value(out, SPACE + "_bucket{space=\"a\",le=\"0.005\"}"));
+		assertEquals("2", value(out, SPACE + "_bucket{space=\"a\",le=\"0.01\"}"));
+		assertEquals("2", value(out, SPACE + "_bucket{space=\"a\",le=\"30.0\"}"));
+		assertEquals("2", value(out, SPACE + "_bucket{space=\"a\",le=\"+Inf\"}"));
+		assertEquals("2", value(out, CREDENTIALS + "_bucket{credentials=\"token\",le=\"0.01\"}"));
+	}
+
+	@Test
+	public void slowerThanEveryBucketOnlyCountsInInf() {
+		metrics.record("a", "token", TimeUnit.SECONDS.toNanos(30) + 1);
+		String out = write();
+		assertEquals("0", value(out, SPACE + "_bucket{space=\"a\",le=\"30.0\"}"));
+		assertEquals("1", value(out, SPACE + "_bucket{space=\"a\",le=\"+Inf\"}"));
+		assertEquals("1", value(out, SPACE + "_count{space=\"a\"}"));
+	}
+
+	@Test
+	public void bucketsAreCumulative() {
+		long[] millis = { 1, 7, 7, 60, 400, 400, 400, 3000 };
+		for (long sample : millis) {
+			metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(sample));
+		}
+		String out = write();
+		String[] bounds = { "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1.0", "2.5", "5.0", "10.0",
+				"30.0" };
+		long[] expected = { 1, 3, 3, 3, 4, 4, 7, 7, 7, 8, 8, 8 };
+		for (int i = 0; i < bounds.length; i++) {
+			assertEquals(bounds[i], String.valueOf(expected[i]),
+					value(out, SPACE + "_bucket{space=\"a\",le=\"" + bounds[i] + "\"}"));
+		}
+		assertEquals("8", value(out, SPACE + "_count{space=\"a\"}"));
+	}
+
+	@Test
+	public void sumIsInSeconds() {
+		metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(1500));
+		metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(250));
+		assertEquals("1.75", value(write(), SPACE + "_sum{space=\"a\"}"));
+	}
+
+	@Test
+	public void percentileIsTheBoundOfItsBucket() {
+		for (int i = 0; i < 90; i++) {
+			metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		for (int i = 0; i < 9; i++) {
+			metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(200));
+		}
+		// too few requests to tell
+		assertEquals(-1, metrics.latencyPercentileNanos(50));
+		metrics.record("a", "token", TimeUnit.MILLISECONDS.toNanos(200));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), metrics.latencyPercentileNanos(50));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), metrics.latencyPercentileNanos(90));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(250), metrics.latencyPercentileNanos(91));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(250), metrics.latencyPercentileNanos(99));
+	}
+
+	@Test
+	public void percentileSlowerThanEveryBucketIsUnknown() {
+		for (int i = 0; i < 100; i++) {
+			metrics.record("a", "token", TimeUnit.SECONDS.toNanos(31));
+		}
+		assertEquals(-1, metrics.latencyPercentileNanos(50));
+	}
+
+	@Test
+	public void countsResponsesByClass() {
+		for (int status : new int[] { 200, 204, 404, 429, 503, 0, 999 }) {
+			metrics.requestCompleted("a", "token", metrics.requestStarted(), status);
+		}
+		String out = write();
+		assertEquals("0", value(out, "spark_notifier_responses_total{class=\"1xx\"}"));
+		assertEquals("2", value(out, "spark_notifier_responses_total{class=\"2xx\"}"));
+		assertEquals("0", value(out, "spark_notifier_responses_total{class=\"3xx\"}"));
+		assertEquals("2", value(out, "spark_notifier_responses_total{class=\"4xx\"}"));
+		assertEquals("1", value(out, "spark_notifier_responses_total{class=\"5xx\"}"));
+		// unknown statuses still count as requests
+		assertEquals("7", value(out, SPACE + "_count{space=\"a\"}"));
+	}
+
+	@Test
+	public void countsErrorsByType() {
+		Exception[] errors = { new ConnectException(), new SocketTimeoutException(),
+				new SparkNotifyException("no token"), new IOException(), new IllegalStateException(),
+				new SocketTimeoutException() };
+		for (Exception e : errors) {
+			metrics.requestFailed("a", "token", metrics.requestStarted(), e);
+		}
+		String out = write();
+		assertEquals("1", value(out, "spark_notifier_errors_total{type=\"socket\"}"));
+		assertEquals("2", value(out, "spark_notifier_errors_total{type=\"timeout\"}"));
+		assertEquals("1", value(out, "spark_notifier_errors_total{type=\"io\"}"));
+		assertEquals("1", value(out, "spark_notifier_errors_total{type=\"spark_notify\"}"));
+		assertEquals("1", value(out, "spark_notifier_errors_total{type=\"runtime\"}"));
+	}
+
+	@Test
+	public void countsRequestsInFlight() {
+		long first = metrics.requestStarted();
+		metrics.requestStarted();
+		assertEquals("2", value(write(), "spark_notifier_requests_in_flight"));
+		metrics.requestCompleted("a", "token", first, 200);
+		assertEquals("1", value(write(), "spark_notifier_requests_in_flight"));
+	}
+
+	@Test
+	public void labelsAreSortedAndEscaped() {
+		metrics.record("b", "token", 1);
+		metrics.record("a\"\\\nz", "token", 1);
+		String out = write();
+		int escaped = out.indexOf(SPACE + "_count{space=\"a\\\"\\\\\\nz\"} 1\n");
+		int plain = out.indexOf(SPACE + "_count{space=\"b\"} 1\n");
+		assertTrue(out, escaped >= 0);
+		assertTrue(out, escaped < plain);
+	}
+
+	@Test
+	public void labelsPastTheLimitShareOneSeries() {
+		for (int i = 0; i < 502; i++) {
+			metrics.record("space-" + i, "token", 1);
+		}
+		metrics.record(null, "token", 1);
+		metrics.record("space-0", "token", 1);
+		String out = write();
+		assertEquals("2", value(out, SPACE + "_count{space=\"space-0\"}"));
+		assertEquals("1", value(out, SPACE + "_count{space=\"space-499\"}"));
+		// the two spaces past the limit, and the one without an id
+		assertEquals("3", value(out, SPACE + "_count{space=\"other\"}"));
+		assertFalse(out, out.contains("space=\"space-500\""));
+		assertEquals("504", value(out, CREDENTIALS + "_count{credentials=\"token\"}"));
+	}
+
+	@Test
+	public void everySampleFollowsItsHelpAndType() {
+		metrics.record("a", "token", 1);
+		metrics.requestFailed("a", "token", metrics.requestStarted(), new IOException());
+		Set<String> typed = new HashSet<>();
+		Set<String> helped = new HashSet<>();
+		for (String line : write().split("\n")) {
+			if (line.startsWith("# HELP ")) {
+				helped.add(line.split(" ")[2]);
+			} else if (line.startsWith("# TYPE ")) {
+				String[] type = line.split(" ");
+				assertTrue(line, helped.contains(type[2]));
+				assertTrue(line, type[3].matches("counter|gauge|histogram"));
+				typed.add(type[2]);
+			} else {
+				assertTrue(line, line.matches("[a-z_]+(\\{.*\\})? [0-9.E+-]+"));
+				String name = line.split("[{ ]")[0];
+				if (!typed.contains(name)) {
+					name = name.replaceFirst("_(bucket|sum|count)$", "");
+				}
+				assertTrue(line, typed.contains(name));
+			}
+		}
+	}
+
+	private String write() {
+		StringBuilder out = new StringBuilder();
+		metrics.writeTo(out);
+		return out.toString();
+	}
+
+	/**
+	 * @return the value of the sample with exactly this name and labels
+	 */
+	private static String value(final String out, final String series) {
+		for (String line : out.split("\n")) {
+			if (line.startsWith(series + " ")) {
+				return line.substring(series.length() + 1);
+			}
+		}
+		throw new AssertionError(series + " not in\n" + out);
+	}
+}
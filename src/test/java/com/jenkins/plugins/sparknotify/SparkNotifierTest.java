@@ -0,0 +1,90 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+
+import hudson.util.Secret;
+
+/**
+ * One message to many spaces at once, against a stub whose answers take a
+ * random time and fail for every third space
+ */
+public class SparkNotifierTest {
+	private static final int SPACES = 30;
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkApiStub stub;
+	private SparkNotifier notifier;
+	private final List<String> spaceIds = new ArrayList<>(SPACES);
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().jitter(100).start();
+		SparkGlobalConfiguration.get().setApiUrl(stub.getApiUrl());
+		// the stub is local; pacing would only slow the test down
+		SparkRateLimiter.setDisabled(true);
+		for (int i = 0; i < SPACES; i++) {
+			spaceIds.add(SparkApiStub.roomId(i));
+			if (i % 3 == 0) {
+				stub.roomStatus(SparkApiStub.roomId(i), 404);
+			}
+		}
+		notifier = new SparkNotifier(new StringCredentialsImpl(CredentialsScope.GLOBAL, "token", null,
+				Secret.fromString(UUID.randomUUID().toString())), null);
+	}
+
+	@After
+	public void stopStub() {
+		SparkRateLimiter.setDisabled(false);
+		stub.stop();
+	}
+
+	@Test
+	public void resultsFollowSpaceOrder() throws Exception {
+		assertInSpaceOrder(notifier.sendMessages(spaceIds, "hello " + UUID.randomUUID(), SparkMessageType.TEXT));
+	}
+
+	@Test
+	public void asyncResultsFollowSpaceOrder() throws Exception {
+		final AtomicReference<List<SparkSendResult>> results = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		notifier.sendMessagesAsync(spaceIds, "hello " + UUID.randomUUID(), SparkMessageType.TEXT,
+				new SparkSendCallback() {
+					@Override
+					public void completed(final List<SparkSendResult> completed) {
+						results.set(completed);
+						done.countDown();
+					}
+				});
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertInSpaceOrder(results.get());
+	}
+
+	private void assertInSpaceOrder(final List<SparkSendResult> results) {
+		assertEquals(SPACES, results.size());
+		for (int i = 0; i < SPACES; i++) {
+			SparkSendResult result = results.get(i);
+			assertEquals(spaceIds.get(i), result.getSpaceId());
+			assertEquals(result.getSpaceId(), i % 3 == 0 ? 404 : 200, result.getResponseCode());
+		}
+		assertEquals(SPACES, stub.getRequests());
+	}
+}
@@ -0,0 +1,125 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.util.Secret;
+
+/**
+ * Concurrent freestyle builds, each notifying many spaces from a build step,
+ * against the api stub. The default run only checks that every message is
+ * delivered; with the full property set, as ./gradlew loadTest does, hundreds
+ * of builds run and throughput, response time percentiles and the executor
+ * time the builds spent notifying are reported.
+ */
+public class SparkNotifyLoadTest {
+	private static final String FULL_PROPERTY = SparkNotifyLoadTest.class.getName() + ".full";
+	private static final boolean FULL = Boolean.getBoolean(FULL_PROPERTY);
+	private static final int BUILDS = FULL ? 200 : 10;
+	private static final int SPACES = FULL ? 20 : 5;
+	private static final int TOKENS = 4;
+	private static final String MESSAGE = "**${JOB_NAME}** build [#${BUILD_NUMBER}](${BUILD_URL}) finished";
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkApiStub stub;
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().latency(20).start();
+		SparkGlobalConfiguration.get().setApiUrl(stub.getApiUrl());
+		// the stub is local; pacing would only measure the limiter
+		SparkRateLimiter.setDisabled(true);
+
+		SystemCredentialsProvider credentials = SystemCredentialsProvider.getInstance();
+		for (int i = 0; i < TOKENS; i++) {
+			credentials.getCredentials().add(new StringCredentialsImpl(CredentialsScope.GLOBAL, "token-" + i, null,
+					Secret.fromString("token-" + i)));
+		}
+		credentials.save();
+		jenkins.jenkins.setNumExecutors(BUILDS);
+	}
+
+	@After
+	public void stopStub() {
+		SparkRateLimiter.setDisabled(false);
+		stub.stop();
+	}
+
+	@Test
+	public void concurrentBuildsNotifyEverySpace() throws Exception {
+		List<SparkNotifyBuilder.SparkRoom> rooms = new ArrayList<>(SPACES);
+		for (int i = 0; i < SPACES; i++) {
+			rooms.add(new SparkNotifyBuilder.SparkRoom(null, SparkApiStub.roomId(i)));
+		}
+		List<FreeStyleProject> projects = new ArrayList<>(BUILDS);
+		for (int i = 0; i < BUILDS; i++) {
+			FreeStyleProject project = jenkins.createFreeStyleProject("job-" + i);
+			project.getBuildersList()
+					.add(new SparkNotifyBuilder(false, MESSAGE, "markdown", rooms, "token-" + i % TOKENS));
+			projects.add(project);
+		}
+
+		long started = System.nanoTime();
+		List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>(BUILDS);
+		for (FreeStyleProject project : projects) {
+			futures.add(project.scheduleBuild2(0));
+		}
+		long[] buildMillis = new long[BUILDS];
+		List<Integer> responseMillis = new ArrayList<>(BUILDS * SPACES);
+		for (int i = 0; i < BUILDS; i++) {
+			FreeStyleBuild build = jenkins.assertBuildStatusSuccess(futures.get(i));
+			buildMillis[i] = build.getDuration();
+			for (SparkNotificationAction.Entry entry : build.getAction(SparkNotificationAction.class).getEntries()) {
+				assertEquals(entry.getSpaceId(), 200, entry.getStatus());
+				responseMillis.add(entry.getResponseMillis());
+			}
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+		assertEquals(BUILDS * SPACES, responseMillis.size());
+		assertEquals(BUILDS * SPACES, stub.getRequests());
+		if (FULL) {
+			report(elapsedMillis, buildMillis, responseMillis);
+		}
+	}
+
+	private void report(final long elapsedMillis, final long[] buildMillis, final List<Integer> responseMillis) {
+		long executorMillis = 0;
+		for (long millis : buildMillis) {
+			executorMillis += millis;
+		}
+		Arrays.sort(buildMillis);
+		Integer[] responses = responseMillis.toArray(new Integer[responseMillis.size()]);
+		Arrays.sort(responses);
+		System.out.println(BUILDS + " builds notifying " + SPACES + " spaces each in " + elapsedMillis + " ms: "
+				+ BUILDS * SPACES * 1000L / Math.max(1, elapsedMillis) + " messages/s");
+		System.out.println("Response time p50: " + percentile(responses, 50) + " ms, p99: "
+				+ percentile(responses, 99) + " ms");
+		System.out.println("Executor time notifying: " + executorMillis + " ms in total, p50: "
+				+ buildMillis[BUILDS / 2] + " ms, p99: " + buildMillis[BUILDS * 99 / 100] + " ms per build");
+		System.out.println("Spark api stub: " + stub);
+	}
+
+	private static int percentile(final Integer[] sorted, final int percent) {
+		return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+	}
+}
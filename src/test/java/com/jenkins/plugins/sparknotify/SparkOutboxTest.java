@@ -0,0 +1,158 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SparkOutboxTest {
+	private static final int RECORD_OVERHEAD = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private File journal;
+	private File quarantine;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = folder.newFolder("spark-notifier");
+		journal = new File(directory, "outbox.journal");
+		quarantine = new File(directory, "outbox.quarantine");
+	}
+
+	@Test
+	public void readsRecordsInOrder() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a", "b", "c");
+		assertEquals(journal.length(), outbox.getPendingBytes());
+
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		assertEquals(recordLength("a") + recordLength("b"), outbox.readBatch(batch, 2));
+		assertMessages(batch, "a", "b");
+		assertFalse(quarantine.exists());
+	}
+
+	@Test
+	public void recoveryDropsTornTail() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a", "b");
+		long complete = journal.length();
+		byte[] torn = record("c");
+		try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+			file.seek(complete);
+			file.write(torn, 0, torn.length - 3);
+		}
+
+		outbox = new SparkOutbox(directory);
+		assertEquals(complete, journal.length());
+		assertEquals(complete, outbox.getPendingBytes());
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		assertEquals(complete, outbox.readBatch(batch, 10));
+		assertMessages(batch, "a", "b");
+	}
+
+	@Test
+	public void recoveryResetsStaleOffset() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a");
+		try (RandomAccessFile file = new RandomAccessFile(new File(directory, "outbox.offset"), "rw")) {
+			file.writeLong(journal.length() + 100);
+		}
+
+		outbox = new SparkOutbox(directory);
+		assertEquals(journal.length(), outbox.getPendingBytes());
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		outbox.readBatch(batch, 10);
+		assertMessages(batch, "a");
+	}
+
+	@Test
+	public void quarantinesRecordWithChecksumMismatch() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a", "b", "c");
+		try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+			long last = recordLength("a") + recordLength("b") - 5;
+			file.seek(last);
+			int value = file.read();
+			file.seek(last);
+			file.write(value ^ 0xff);
+		}
+
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		assertEquals(journal.length(), outbox.readBatch(batch, 10));
+		assertMessages(batch, "a", "c");
+		assertEquals(recordLength("b"), quarantine.length());
+	}
+
+	@Test
+	public void quarantinesRecordThatCannotBeDecoded() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a");
+		outbox.appendRecord(new byte[] { 9, 9, 9 });
+		append(outbox, "c");
+
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		assertEquals(journal.length(), outbox.readBatch(batch, 10));
+		assertMessages(batch, "a", "c");
+		assertEquals(3 + RECORD_OVERHEAD, quarantine.length());
+	}
+
+	@Test
+	public void quarantinesEverythingAfterInvalidLength() throws Exception {
+		SparkOutbox outbox = new SparkOutbox(directory);
+		append(outbox, "a", "b", "c");
+		try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+			file.seek(recordLength("a"));
+			file.writeInt(-1);
+		}
+
+		outbox = new SparkOutbox(directory);
+		List<SparkOutbox.Entry> batch = new ArrayList<>();
+		assertEquals(journal.length(), outbox.readBatch(batch, 10));
+		assertMessages(batch, "a");
+		assertEquals(recordLength("b") + recordLength("c"), quarantine.length());
+	}
+
+	private static void append(final SparkOutbox outbox, final String... messages) throws IOException {
+		for (String message : messages) {
+			outbox.appendRecord(entry(message).encode());
+		}
+	}
+
+	private static SparkOutbox.Entry entry(final String message) {
+		return new SparkOutbox.Entry("folder/job", 1, "credentials", "space", SparkMessageType.TEXT, message);
+	}
+
+	/**
+	 * The bytes of a record as the journal holds them
+	 */
+	private static byte[] record(final String message) throws IOException {
+		byte[] payload = entry(message).encode();
+		return ByteBuffer.allocate(payload.length + RECORD_OVERHEAD).putInt(payload.length).put(payload).putInt(0)
+				.array();
+	}
+
+	private static long recordLength(final String message) throws IOException {
+		return entry(message).encode().length + RECORD_OVERHEAD;
+	}
+
+	private static void assertMessages(final List<SparkOutbox.Entry> batch, final String... messages) {
+		assertEquals(messages.length, batch.size());
+		for (int i = 0; i < messages.length; i++) {
+			assertEquals("space", batch.get(i).getSpaceId());
+			assertEquals(messages[i], batch.get(i).getMessage());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+
+import hudson.util.Secret;
+
+public class SparkRateLimiterTest {
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkApiStub stub;
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().start();
+		SparkGlobalConfiguration.get().setApiUrl(stub.getApiUrl());
+	}
+
+	@After
+	public void stopStub() {
+		stub.stop();
+	}
+
+	@Test
+	public void rateLimitHalvesRateAndPausesForRetryAfter() {
+		SparkRateLimiter limiter = new SparkRateLimiter();
+		assertEquals(0, limiter.reserve());
+		assertEquals(2, limiter.onRateLimited("2"));
+		assertEquals(5, limiter.getRatePerSecond(), 0.001);
+		assertTrue(limiter.reserve() > TimeUnit.MILLISECONDS.toNanos(1900));
+	}
+
+	@Test
+	public void successesRaiseRateSlowly() {
+		SparkRateLimiter limiter = new SparkRateLimiter();
+		limiter.onRateLimited("1");
+		limiter.onSuccess();
+		assertEquals(5.2, limiter.getRatePerSecond(), 0.001);
+		for (int i = 0; i < 100000; i++) {
+			limiter.onSuccess();
+		}
+		assertEquals(100, limiter.getRatePerSecond(), 0.001);
+	}
+
+	@Test
+	public void rateNeverFallsBelowMinimum() {
+		SparkRateLimiter limiter = new SparkRateLimiter();
+		for (int i = 0; i < 20; i++) {
+			limiter.onRateLimited("1");
+		}
+		assertEquals(0.2, limiter.getRatePerSecond(), 0.001);
+	}
+
+	@Test
+	public void retryAfterIsBounded() {
+		SparkRateLimiter limiter = new SparkRateLimiter();
+		assertEquals(5, limiter.onRateLimited(null));
+		assertEquals(5, limiter.onRateLimited("Wed, 21 Oct 2015 07:28:00 GMT"));
+		assertEquals(1, limiter.onRateLimited("0"));
+		assertEquals(300, limiter.onRateLimited("100000"));
+	}
+
+	@Test
+	public void sendWaitsForRetryAfterAndLearnsRate() throws Exception {
+		stub.rateLimitedNext(1, 1);
+		SparkNotifier notifier = notifier("token", UUID.randomUUID().toString());
+		long started = System.nanoTime();
+		assertEquals(200, notifier.sendMessage(SparkApiStub.roomId(0), "hello", SparkMessageType.TEXT));
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(900));
+		assertEquals(2, stub.getRequests());
+		assertEquals(1, stub.getRateLimited());
+		assertEquals(5.2, SparkRateLimiter.forKey(notifier.getTokenKey()).getRatePerSecond(), 0.001);
+	}
+
+	@Test
+	public void asyncSendWaitsForRetryAfterAndLearnsRate() throws Exception {
+		stub.rateLimitedNext(1, 1);
+		SparkNotifier notifier = notifier("token", UUID.randomUUID().toString());
+		final AtomicReference<SparkSendResult> result = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		notifier.sendMessagesAsync(Collections.singletonList(SparkApiStub.roomId(0)), "hello " + UUID.randomUUID(),
+				SparkMessageType.TEXT,
+				new SparkSendCallback() {
+					@Override
+					public void completed(final List<SparkSendResult> results) {
+						result.set(results.get(0));
+						done.countDown();
+					}
+				});
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(200, result.get().getResponseCode());
+		assertEquals(2, stub.getRequests());
+		assertEquals(5.2, SparkRateLimiter.forKey(notifier.getTokenKey()).getRatePerSecond(), 0.001);
+	}
+
+	@Test
+	public void limiterIsSharedByTokenNotCredentialsId() throws Exception {
+		String token = UUID.randomUUID().toString();
+		SparkNotifier first = notifier("first", token);
+		SparkNotifier second = notifier("second", token);
+		SparkNotifier other = notifier("first", UUID.randomUUID().toString());
+		assertEquals(first.getTokenKey(), second.getTokenKey());
+		assertNotEquals(first.getTokenKey(), other.getTokenKey());
+		assertSame(SparkRateLimiter.forKey(first.getTokenKey()), SparkRateLimiter.forKey(second.getTokenKey()));
+	}
+
+	private static SparkNotifier notifier(final String credentialsId, final String token) {
+		return new SparkNotifier(
+				new StringCredentialsImpl(CredentialsScope.GLOBAL, credentialsId, null, Secret.fromString(token)),
+				null);
+	}
+}
@@ -0,0 +1,156 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SparkRoomIndexTest {
+	private SparkApiStub stub;
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().start();
+		SparkGlobalConfiguration.setDefaultApiUrl(stub.getApiUrl());
+	}
+
+	@After
+	public void stopStub() {
+		SparkGlobalConfiguration.setDefaultApiUrl(null);
+		stub.stop();
+	}
+
+	@Test
+	public void loadsEveryPage() throws Exception {
+		stub.rooms(SparkRoomIndex.PAGE_SIZE * 2 + 500);
+		SparkRoomIndex index = load();
+		assertEquals(3, stub.getRoomPages());
+		assertEquals(SparkRoomIndex.PAGE_SIZE * 2 + 500, index.size());
+		assertEquals(SparkApiStub.roomId(0), index.resolve("room-0"));
+		assertEquals(SparkApiStub.roomId(1500), index.resolve("room-1500"));
+		assertEquals(SparkApiStub.roomId(2499), index.resolve("room-2499"));
+	}
+
+	@Test
+	public void refreshListsOnlyRoomsActiveSinceTheLastOne() throws Exception {
+		stub.rooms(SparkRoomIndex.PAGE_SIZE * 2 + 500);
+		SparkRoomIndex index = load();
+		stub.renameRoom(2000, "renamed");
+		index.refresh();
+		assertEquals(4, stub.getRoomPages());
+		assertEquals(SparkApiStub.roomId(2000), index.resolve("renamed"));
+		assertEquals(SparkApiStub.roomId(1999), index.resolve("room-1999"));
+		assertNotFound(index, "room-2000");
+		assertEquals(SparkRoomIndex.PAGE_SIZE * 2 + 500, index.size());
+	}
+
+	@Test
+	public void sharedTitleIsAmbiguous() throws Exception {
+		stub.rooms(3).renameRoom(2, "room-0");
+		SparkRoomIndex index = load();
+		try {
+			index.resolve("room-0");
+			fail("Resolved a title shared by two rooms");
+		} catch (SparkNotifyException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("more than one space"));
+		}
+		assertEquals(SparkApiStub.roomId(1), index.resolve("room-1"));
+	}
+
+	@Test
+	public void renamingAwayResolvesAmbiguity() throws Exception {
+		stub.rooms(3).renameRoom(2, "room-0");
+		SparkRoomIndex index = load();
+		stub.renameRoom(2, "room-2");
+		index.refresh();
+		assertEquals(SparkApiStub.roomId(0), index.resolve("room-0"));
+		assertEquals(SparkApiStub.roomId(2), index.resolve("room-2"));
+	}
+
+	@Test
+	public void keepsIdsThatAreNotEncodedUuids() {
+		String upperCase = encode("ciscospark://us/ROOM/" + new UUID(1, 2).toString().toUpperCase());
+		String notUuid = encode("ciscospark://us/ROOM/not-a-uuid");
+		String otherKind = encode("ciscospark://us/TEAM/" + new UUID(1, 2));
+		Map<String, String> rooms = new HashMap<>();
+		rooms.put(SparkApiStub.roomId(7), "uuid");
+		rooms.put(upperCase, "upper case");
+		rooms.put(notUuid, "not a uuid");
+		rooms.put(otherKind, "team");
+		rooms.put("plain-id", "plain");
+
+		SparkRoomIndex.Snapshot snapshot = SparkRoomIndex.Snapshot.of(rooms, null);
+		assertEquals(SparkApiStub.roomId(7), snapshot.get("uuid"));
+		assertEquals(upperCase, snapshot.get("upper case"));
+		assertEquals(notUuid, snapshot.get("not a uuid"));
+		assertEquals(otherKind, snapshot.get("team"));
+		assertEquals("plain-id", snapshot.get("plain"));
+		assertNull(snapshot.get("missing"));
+		assertEquals(5, snapshot.size());
+	}
+
+	@Test
+	public void snapshotKeepsRoomsNotListedAgain() {
+		Map<String, String> rooms = new HashMap<>();
+		rooms.put(SparkApiStub.roomId(1), "one");
+		rooms.put(SparkApiStub.roomId(2), "two");
+		SparkRoomIndex.Snapshot previous = SparkRoomIndex.Snapshot.of(rooms, null);
+
+		Map<String, String> updated = new HashMap<>();
+		updated.put(SparkApiStub.roomId(3), "two");
+		SparkRoomIndex.Snapshot snapshot = SparkRoomIndex.Snapshot.of(updated, previous);
+		assertEquals(SparkApiStub.roomId(1), snapshot.get("one"));
+		assertSame(SparkRoomIndex.Snapshot.AMBIGUOUS, snapshot.get("two"));
+	}
+
+	@Test
+	public void firstLookupWaitsForTheFirstLoad() throws Exception {
+		stub.rooms(10);
+		SparkRoomIndex index = SparkRoomIndex.forToken("first-lookup-" + UUID.randomUUID(), "Bearer test");
+		assertEquals(SparkApiStub.roomId(9),
+				index.resolve("room-9", System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+	}
+
+	@Test
+	public void lookupBeforeTheFirstLoadFails() throws Exception {
+		SparkRoomIndex index = SparkRoomIndex.standalone("Bearer test");
+		try {
+			index.resolve("room-0", System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+			fail("Resolved a space before the index was loaded");
+		} catch (SparkNotifyException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("still loading"));
+		}
+	}
+
+	private static SparkRoomIndex load() throws Exception {
+		SparkRoomIndex index = SparkRoomIndex.standalone("Bearer test");
+		index.refresh();
+		return index;
+	}
+
+	private static void assertNotFound(final SparkRoomIndex index, final String title) {
+		try {
+			index.resolve(title);
+			fail("Resolved " + title);
+		} catch (SparkNotifyException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Could not find a space named"));
+		}
+	}
+
+	private static String encode(final String uri) {
+		return DatatypeConverter.printBase64Binary(uri.getBytes(StandardCharsets.US_ASCII));
+	}
+}
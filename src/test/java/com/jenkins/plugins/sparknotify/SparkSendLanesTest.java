@@ -0,0 +1,213 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Five slots, one of them kept for high priority messages, and one waiting
+ * message per lane
+ */
+public class SparkSendLanesTest {
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private SparkGlobalConfiguration config;
+
+	@Before
+	public void configure() {
+		config = SparkGlobalConfiguration.get();
+		config.setSendThreads(5);
+		config.setAdaptiveConcurrency(false);
+		config.setQueueCapacity(1);
+		SparkConcurrencyLimit.reconfigure(config);
+	}
+
+	@After
+	public void stopExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void keepsSlotForHighPriority() throws Exception {
+		SparkSendLanes lanes = lanes("BLOCK");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		RecordingTask normal = submit(lanes, SparkPriority.NORMAL);
+		assertFalse(normal.started);
+
+		RecordingTask high = submit(lanes, SparkPriority.HIGH);
+		assertTrue(high.started);
+
+		// the high priority send holds a slot too
+		lanes.release();
+		assertFalse(normal.started);
+		lanes.release();
+		assertTrue(normal.started);
+	}
+
+	@Test
+	public void mostUrgentLaneGoesFirst() throws Exception {
+		SparkSendLanes lanes = lanes("BLOCK");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		RecordingTask low = submit(lanes, SparkPriority.LOW);
+		RecordingTask normal = submit(lanes, SparkPriority.NORMAL);
+
+		lanes.release();
+		assertTrue(normal.started);
+		assertFalse(low.started);
+		lanes.release();
+		assertTrue(low.started);
+	}
+
+	@Test
+	public void blockWaitsForRoom() throws Exception {
+		final SparkSendLanes lanes = lanes("BLOCK");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		RecordingTask queued = submit(lanes, SparkPriority.NORMAL);
+		final RecordingTask blocked = new RecordingTask(SparkPriority.NORMAL);
+		Future<Boolean> submitted = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return lanes.submit(blocked, true, deadline(10000));
+			}
+		});
+		TimeUnit.MILLISECONDS.sleep(100);
+		assertFalse(submitted.isDone());
+
+		lanes.release();
+		assertTrue(queued.started);
+		assertTrue(submitted.get(10, TimeUnit.SECONDS));
+		assertFalse(blocked.started);
+		assertNull(blocked.rejection);
+	}
+
+	@Test
+	public void blockGivesUpAtDeadline() throws Exception {
+		SparkSendLanes lanes = lanes("BLOCK");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		submit(lanes, SparkPriority.NORMAL);
+		RecordingTask late = new RecordingTask(SparkPriority.NORMAL);
+		assertFalse(lanes.submit(late, true, deadline(50)));
+		assertFalse(late.started);
+		assertNull(late.rejection);
+		assertFalse(lanes.cancel(late));
+	}
+
+	@Test
+	public void blockRejectsCallersThatMustNotWait() throws Exception {
+		SparkSendLanes lanes = lanes("BLOCK");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		submit(lanes, SparkPriority.NORMAL);
+		RecordingTask background = new RecordingTask(SparkPriority.NORMAL);
+		assertTrue(lanes.submit(background, false, deadline(10000)));
+		assertTrue(background.rejection instanceof SparkSendLanes.OverloadedException);
+	}
+
+	@Test
+	public void dropOldestMakesRoomForNewest() throws Exception {
+		SparkSendLanes lanes = lanes("DROP_OLDEST");
+		fill(lanes, SparkPriority.LOW, 4);
+		RecordingTask oldest = submit(lanes, SparkPriority.LOW);
+		RecordingTask newest = submit(lanes, SparkPriority.LOW);
+		assertTrue(oldest.rejection instanceof SparkSendLanes.OverloadedException);
+		assertNull(newest.rejection);
+
+		lanes.release();
+		assertFalse(oldest.started);
+		assertTrue(newest.started);
+	}
+
+	@Test
+	public void dropOldestNeverDropsHighPriority() throws Exception {
+		SparkSendLanes lanes = lanes("DROP_OLDEST");
+		fill(lanes, SparkPriority.HIGH, 5);
+		RecordingTask queued = submit(lanes, SparkPriority.HIGH);
+		RecordingTask late = new RecordingTask(SparkPriority.HIGH);
+		assertFalse(lanes.submit(late, true, deadline(50)));
+		assertNull(queued.rejection);
+		assertNull(late.rejection);
+	}
+
+	@Test
+	public void rejectFailsNewMessage() throws Exception {
+		SparkSendLanes lanes = lanes("REJECT");
+		fill(lanes, SparkPriority.HIGH, 5);
+		RecordingTask queued = submit(lanes, SparkPriority.HIGH);
+		RecordingTask rejected = submit(lanes, SparkPriority.HIGH);
+		assertNull(queued.rejection);
+		assertTrue(rejected.rejection instanceof SparkSendLanes.OverloadedException);
+
+		lanes.release();
+		assertTrue(queued.started);
+		assertFalse(rejected.started);
+	}
+
+	@Test
+	public void cancelledMessageMakesRoom() throws Exception {
+		SparkSendLanes lanes = lanes("REJECT");
+		fill(lanes, SparkPriority.NORMAL, 4);
+		RecordingTask cancelled = submit(lanes, SparkPriority.NORMAL);
+		assertTrue(lanes.cancel(cancelled));
+		RecordingTask next = submit(lanes, SparkPriority.NORMAL);
+		assertNull(next.rejection);
+
+		lanes.release();
+		assertFalse(cancelled.started);
+		assertTrue(next.started);
+	}
+
+	private SparkSendLanes lanes(final String policy) {
+		config.setOverloadPolicy(policy);
+		return new SparkSendLanes(config);
+	}
+
+	private static void fill(final SparkSendLanes lanes, final SparkPriority priority, final int count)
+			throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			assertTrue(submit(lanes, priority).started);
+		}
+	}
+
+	private static RecordingTask submit(final SparkSendLanes lanes, final SparkPriority priority)
+			throws InterruptedException {
+		RecordingTask task = new RecordingTask(priority);
+		assertTrue(lanes.submit(task, false, deadline(10000)));
+		return task;
+	}
+
+	private static long deadline(final long millis) {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	private static class RecordingTask extends SparkSendLanes.Task {
+		private volatile boolean started;
+		private volatile SparkNotifyException rejection;
+
+		RecordingTask(final SparkPriority priority) {
+			super(priority);
+		}
+
+		@Override
+		void start() {
+			started = true;
+		}
+
+		@Override
+		void rejected(final SparkNotifyException e) {
+			rejection = e;
+		}
+	}
+}
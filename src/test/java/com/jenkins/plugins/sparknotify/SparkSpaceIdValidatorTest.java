@@ -0,0 +1,167 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * The validator must accept exactly the ids the original check, UUID.fromString
+ * and a commons-codec decode, accepted on the java 7 and 8 runtimes the plugin
+ * targets
+ */
+public class SparkSpaceIdValidatorTest {
+	private static final String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+	private static final String UUID_CHARS = "0123456789abcdefABCDEF-";
+
+	@Test
+	public void acceptsSpaceIds() {
+		String uuid = "5a4d4b10-0fe4-11e7-8a5b-51b2dc4bc3d1";
+		assertValid(uuid);
+		assertValid(uuid.toUpperCase());
+		assertValid(encode(ROOM_ID_PREFIX + uuid));
+		assertValid(Base64.encodeBase64URLSafeString(bytes(ROOM_ID_PREFIX + uuid)));
+		assertValid(Base64.encodeBase64String(bytes(ROOM_ID_PREFIX + uuid)).replace("=", ""));
+		// commons-codec skips characters outside the alphabet
+		assertValid(encode(ROOM_ID_PREFIX + uuid).replaceAll("(.{8})", "$1\n"));
+		assertValid("1-2-3-4-5");
+	}
+
+	@Test
+	public void rejectsOtherIds() {
+		assertInvalid("");
+		assertInvalid("not a space");
+		assertInvalid("5a4d4b10-0fe4-11e7-8a5b");
+		assertInvalid("5a4d4b10-0fe4-11e7-8a5b-51b2dc4bc3d1-1");
+		assertInvalid("15a4d4b100fe411e7-0fe4-11e7-8a5b-51b2dc4bc3d1");
+		assertInvalid(encode("ciscospark://us/TEAM/5a4d4b10-0fe4-11e7-8a5b-51b2dc4bc3d1"));
+		assertInvalid(encode(ROOM_ID_PREFIX + "x5a4d4b10"));
+	}
+
+	/**
+	 * The original check skipped the first character after the prefix, so it
+	 * is not required to be part of the uuid
+	 */
+	@Test
+	public void skipsFirstCharacterAfterPrefix() {
+		assertValid(encode(ROOM_ID_PREFIX + "z5a4d4b10-0fe4-11e7-8a5b-51b2dc4bc3d1"));
+		assertValid(encode(ROOM_ID_PREFIX + "-1-2-3-4-5"));
+		assertValid(encode(ROOM_ID_PREFIX + "\u00e91-2-3-4-5"));
+		assertInvalid(encode(ROOM_ID_PREFIX + "1"));
+	}
+
+	/**
+	 * The original check threw StringIndexOutOfBoundsException for the bare
+	 * prefix; it is simply invalid now
+	 */
+	@Test
+	public void rejectsBarePrefix() {
+		assertFalse(SparkSpaceIdValidator.check(encode(ROOM_ID_PREFIX)));
+	}
+
+	@Test
+	public void randomIdsMatchOriginalCheck() {
+		Random random = new Random(20170601);
+		for (int i = 0; i < 50000; i++) {
+			String id = randomId(random);
+			if (!id.isEmpty() && !isBarePrefix(id)) {
+				assertEquals(id, original(id), SparkSpaceIdValidator.check(id));
+			}
+		}
+	}
+
+	@Test
+	public void validateAllKeepsOrderAndDuplicatesOnce() {
+		String valid = UUID.randomUUID().toString();
+		Map<String, Boolean> expected = new LinkedHashMap<>();
+		expected.put("b", false);
+		expected.put(valid, true);
+		assertEquals(expected, SparkSpaceIdValidator.validateAll(Arrays.asList("b", valid, "b")));
+	}
+
+	private static String randomId(final Random random) {
+		StringBuilder uuid = new StringBuilder();
+		if (random.nextInt(4) == 0) {
+			uuid.append(UUID.randomUUID());
+		} else {
+			int length = random.nextInt(45);
+			for (int i = 0; i < length; i++) {
+				uuid.append(UUID_CHARS.charAt(random.nextInt(UUID_CHARS.length())));
+			}
+		}
+		if (random.nextInt(8) == 0) {
+			uuid.insert(random.nextInt(uuid.length() + 1), random.nextBoolean() ? 'z' : '\u00e9');
+		}
+		switch (random.nextInt(6)) {
+		case 0:
+			return uuid.toString();
+		case 1:
+			return Base64.encodeBase64URLSafeString(bytes(ROOM_ID_PREFIX + uuid));
+		case 2:
+			String encoded = encode(ROOM_ID_PREFIX + uuid);
+			int at = random.nextInt(encoded.length());
+			return encoded.substring(0, at) + " =\n!".charAt(random.nextInt(4)) + encoded.substring(at);
+		case 3:
+			return encode(ROOM_ID_PREFIX.substring(0, random.nextInt(ROOM_ID_PREFIX.length() + 1)) + uuid);
+		default:
+			return encode(ROOM_ID_PREFIX + uuid);
+		}
+	}
+
+	private static boolean isBarePrefix(final String id) {
+		return new String(new Base64().decode(id), StandardCharsets.UTF_8).equals(ROOM_ID_PREFIX);
+	}
+
+	/**
+	 * SparkMessage.isRoomIdValid before the validator, kept here unchanged as
+	 * the reference
+	 */
+	private static boolean original(final String roomId) {
+		try {
+			UUID.fromString(roomId);
+			return true;
+		} catch (IllegalArgumentException e1) {
+			String roomIdDecodedFull = null;
+			try {
+				Base64 base64 = new Base64();
+				roomIdDecodedFull = new String(base64.decode(roomId), StandardCharsets.UTF_8);
+				if (!roomIdDecodedFull.startsWith(ROOM_ID_PREFIX)) {
+					return false;
+				}
+				UUID.fromString(roomIdDecodedFull.substring(ROOM_ID_PREFIX.length() + 1));
+				return true;
+			} catch (IllegalArgumentException e2) {
+				return false;
+			}
+		}
+	}
+
+	private static void assertValid(final String id) {
+		assertTrue(id, original(id));
+		assertTrue(id, SparkSpaceIdValidator.check(id));
+		assertTrue(id, SparkSpaceIdValidator.isValid(id));
+	}
+
+	private static void assertInvalid(final String id) {
+		assertFalse(id, original(id));
+		assertFalse(id, SparkSpaceIdValidator.check(id));
+		assertFalse(id, SparkSpaceIdValidator.isValid(id));
+	}
+
+	private static String encode(final String value) {
+		return Base64.encodeBase64String(bytes(value));
+	}
+
+	private static byte[] bytes(final String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
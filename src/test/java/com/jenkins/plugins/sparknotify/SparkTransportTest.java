@@ -0,0 +1,166 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+
+import hudson.util.Secret;
+
+/**
+ * Every way a send can fail has to give its pooled connection back, or the
+ * pool runs dry and later builds wait for a connection until they time out
+ */
+public class SparkTransportTest {
+	private static final int SPACES = 5;
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private SparkGlobalConfiguration config;
+	private SparkApiStub stub;
+	private SparkNotifier notifier;
+	private final List<String> spaceIds = new ArrayList<>(SPACES);
+
+	@Before
+	public void startStub() throws Exception {
+		stub = new SparkApiStub().start();
+		config = SparkGlobalConfiguration.get();
+		config.setApiUrl(stub.getApiUrl());
+		config.setRetryAttempts(3);
+		config.setRetryDelay(10);
+		config.setReadTimeout(1);
+		// failing is what these tests do; the breaker would cut them short
+		config.setCircuitBreakerThreshold(1000);
+		// a pool of its own, so nothing else holds a connection
+		SparkTransport.reconfigure(config);
+		SparkRateLimiter.setDisabled(true);
+		for (int i = 0; i < SPACES; i++) {
+			spaceIds.add(SparkApiStub.roomId(i));
+		}
+		notifier = new SparkNotifier(new StringCredentialsImpl(CredentialsScope.GLOBAL, "token", null,
+				Secret.fromString(UUID.randomUUID().toString())), null);
+	}
+
+	@After
+	public void stopStub() {
+		SparkRateLimiter.setDisabled(false);
+		stub.stop();
+		config.setReadTimeout(0);
+		SparkTransport.reconfigure(config);
+	}
+
+	@Test
+	public void serverErrorsReleaseConnections() throws Exception {
+		stub.serverErrors(1);
+		for (SparkSendResult result : send()) {
+			assertEquals(503, result.getResponseCode());
+		}
+		assertEquals(SPACES * 3, stub.getRequests());
+		assertReleased();
+	}
+
+	@Test
+	public void droppedConnectionsReleaseConnections() throws Exception {
+		stub.dropped(1);
+		for (SparkSendResult result : send()) {
+			assertNotNull(result.getException());
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void readTimeoutsReleaseConnections() throws Exception {
+		config.setRetryAttempts(1);
+		stub.latency(2000);
+		for (SparkSendResult result : send()) {
+			assertNotNull(result.getException());
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void rejectedMessagesReleaseConnections() throws Exception {
+		for (String spaceId : spaceIds) {
+			stub.roomStatus(spaceId, 404);
+		}
+		for (SparkSendResult result : send()) {
+			assertEquals(404, result.getResponseCode());
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void asyncFailuresReleaseConnections() throws Exception {
+		stub.serverErrors(0.4).dropped(0.3).rateLimited(0.2, 0);
+		for (int i = 0; i < 5; i++) {
+			final AtomicReference<List<SparkSendResult>> results = new AtomicReference<>();
+			final CountDownLatch done = new CountDownLatch(1);
+			notifier.sendMessagesAsync(spaceIds, "hello " + UUID.randomUUID(), SparkMessageType.TEXT,
+					new SparkSendCallback() {
+						@Override
+						public void completed(final List<SparkSendResult> completed) {
+							results.set(completed);
+							done.countDown();
+						}
+					});
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+			assertEquals(SPACES, results.get().size());
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void errorResponsesKeepTheConnectionOpen() throws Exception {
+		stub.serverErrors(1);
+		config.setRetryAttempts(1);
+		List<String> space = Collections.singletonList(spaceIds.get(0));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(503, notifier.sendMessages(space, "hello " + UUID.randomUUID(), SparkMessageType.TEXT)
+					.get(0).getResponseCode());
+		}
+		SparkTransport.Statistics statistics = SparkTransport.get().getStatistics();
+		assertEquals(10, statistics.getRequests());
+		// a response left unread would close its connection, or keep it leased
+		assertEquals(statistics.toString(), 1, statistics.getConnects());
+		assertReleased();
+	}
+
+	private List<SparkSendResult> send() throws InterruptedException {
+		List<SparkSendResult> results = notifier.sendMessages(spaceIds, "hello " + UUID.randomUUID(),
+				SparkMessageType.TEXT);
+		assertEquals(SPACES, results.size());
+		return results;
+	}
+
+	/**
+	 * Async responses are released on the client's threads, possibly just
+	 * after the results are handed over
+	 */
+	private static void assertReleased() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		SparkTransport.Statistics statistics = SparkTransport.get().getStatistics();
+		while (statistics.getLeased() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+			statistics = SparkTransport.get().getStatistics();
+		}
+		assertEquals(statistics.toString(), 0, statistics.getLeased());
+		assertEquals(statistics.toString(), 0, statistics.getPending());
+	}
+}